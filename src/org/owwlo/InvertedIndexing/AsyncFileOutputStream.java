@@ -0,0 +1,188 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output stream which fills large direct buffers on the calling thread and
+ * writes full ones to the file from a background thread, so encoding
+ * overlaps with disk I/O.
+ * <p>
+ * At most {@link #BUFFER_COUNT} buffers exist: while one is being filled the
+ * others are queued for, or being written by, the background thread. A
+ * writer that fills its buffer before any of them comes back waits, which
+ * bounds memory when the disk is slower than encoding. Failures of the
+ * background thread are thrown by the next call on the stream. Not thread
+ * safe.
+ *
+ * @author owwlo
+ */
+class AsyncFileOutputStream extends OutputStream {
+    static final int BUFFER_SIZE = 1 << 20;
+    static final int BUFFER_COUNT = 2;
+
+    /**
+     * Queued after the last buffer to stop the background thread.
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileOutputStream file;
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> full;
+    private final Thread writer;
+    private volatile IOException failure;
+    private ByteBuffer current;
+    private boolean closed = false;
+
+    AsyncFileOutputStream(File f) throws FileNotFoundException {
+        this(f, BUFFER_SIZE, BUFFER_COUNT);
+    }
+
+    AsyncFileOutputStream(File f, int bufferSize, int bufferCount) throws FileNotFoundException {
+        if (bufferCount < 2) {
+            throw new IllegalArgumentException("At least two buffers are needed: " + bufferCount);
+        }
+        file = new FileOutputStream(f, false);
+        channel = file.getChannel();
+        free = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+        full = new ArrayBlockingQueue<ByteBuffer>(bufferCount + 1);
+        for (int i = 1; i < bufferCount; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        current = ByteBuffer.allocateDirect(bufferSize);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Posting List writer " + f.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!current.hasRemaining()) {
+            handOff();
+        }
+        current.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!current.hasRemaining()) {
+                handOff();
+            }
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Queue the bytes written so far without waiting for them to reach the
+     * file. {@link #close()} waits for all of them.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (current != null && current.position() > 0) {
+            handOff();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        boolean interrupted = false;
+        try {
+            flush();
+        } finally {
+            // Stop the background thread even if the last buffer failed.
+            closed = true;
+            full.add(END);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                interrupted = true;
+            } finally {
+                file.close();
+            }
+        }
+        if (interrupted) {
+            throw new InterruptedIOException("Interrupted while closing the file.");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Pass the current buffer to the background thread and take a free one.
+     */
+    private void handOff() throws IOException {
+        checkFailure();
+        if (closed) {
+            throw new IOException("Stream is closed.");
+        }
+        current.flip();
+        full.add(current);
+        current = null;
+        try {
+            while ((current = free.poll(1, TimeUnit.SECONDS)) == null) {
+                if (!writer.isAlive()) {
+                    checkFailure();
+                    throw new IOException("Background writer stopped.");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free buffer.");
+        }
+        current.clear();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Body of the background thread: write queued buffers in order and hand
+     * them back. After a failure buffers are still handed back, so the
+     * writing thread never blocks and sees the failure on its next call.
+     */
+    private void drain() {
+        try {
+            while (true) {
+                ByteBuffer buffer = full.take();
+                if (buffer == END) {
+                    return;
+                }
+                try {
+                    while (failure == null && buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+                free.add(buffer);
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Background writer interrupted.");
+        }
+    }
+}
@@ -0,0 +1,331 @@
+
+package org.owwlo.InvertedIndexing;
+
+/**
+ * Block based, bit-packed (PFOR) codec for long Posting Lists.
+ * <p>
+ * Documents are grouped into blocks of {@link #BLOCK_SIZE}. Each block
+ * packs its document gaps (and, for <code>docId, position</code> pairs, its
+ * frequencies and position gaps) at the smallest bit width that keeps the
+ * block compact; the few values that do not fit are stored as exceptions.
+ * Documents after the last full block are stored as variable-byte ints.
+ * <p>
+ * Record layout:
+ * 
+ * <pre>
+ * [vint valueCount][vint docCount]
+ * [int lastDoc][int endOffset] * (docCount / BLOCK_SIZE)   skip table
+ * block * (docCount / BLOCK_SIZE)
+ * tail, like {@link VBytePostingCodec}
+ * </pre>
+ * 
+ * <code>lastDoc</code> is the largest document id of a block and
+ * <code>endOffset</code> where the block ends, counted from the end of the
+ * skip table, so readers can pass over whole blocks without decoding them.
+ * A block is a packed run of document gaps, followed for pairs by a packed
+ * run of <code>freq - 1</code> and the position gaps of its documents, in
+ * packed runs of 128 plus variable-byte ints for the rest.
+ * <p>
+ * A packed run of 128 ints at bit width <code>b</code> is
+ * <code>[byte b][byte exceptionCount][int] * (4 * b)</code> followed by
+ * <code>[byte index][vint value >>> b]</code> per exception. Values are laid
+ * out vertically over four lanes: value <code>i</code> goes to lane
+ * <code>i % 4</code> at bit <code>(i / 4) * b</code> of that lane, and the
+ * words of the lanes are interleaved. Unpacking one row of four values is
+ * then the same shift and mask on four adjacent words, which keeps the
+ * decode loop free of branches and data dependencies.
+ * 
+ * @author owwlo
+ */
+class BlockPackedPostingCodec extends PostingCodec {
+    static final int BLOCK_SIZE = 128;
+    static final int SKIP_ENTRY_SIZE = 8;
+    private static final int LANES = 4;
+
+    BlockPackedPostingCodec(int entrySize) {
+        super(entrySize);
+    }
+
+    @Override
+    int getId() {
+        return ID_BLOCK_PACKED;
+    }
+
+    @Override
+    void encode(int[] values, int offset, int length, ByteArrayDataOutput out) {
+        checkEntries(length);
+        int end = offset + length;
+
+        // Split the list into documents: gap, frequency and first value.
+        int docCount = 0;
+        int[] docStart = new int[length / getEntrySize() + 1];
+        int lastDoc = 0;
+        for (int i = offset; i < end; i += getEntrySize()) {
+            int doc = values[i];
+            if (doc < lastDoc) {
+                throw new IllegalArgumentException("Posting List is not sorted: " + doc
+                        + " after " + lastDoc);
+            }
+            if (getEntrySize() == 1 || docCount == 0 || doc != lastDoc) {
+                docStart[docCount++] = i;
+            } else if (values[i + 1] < values[i - 1]) {
+                throw new IllegalArgumentException("Positions are not sorted: " + values[i + 1]
+                        + " after " + values[i - 1]);
+            }
+            lastDoc = doc;
+        }
+        docStart[docCount] = end;
+
+        out.writeVInt(length);
+        out.writeVInt(docCount);
+        int blockCount = docCount / BLOCK_SIZE;
+        int skipAt = out.size();
+        for (int i = 0; i < blockCount * SKIP_ENTRY_SIZE; i++) {
+            out.writeByte(0);
+        }
+        int dataStart = out.size();
+
+        int[] run = new int[BLOCK_SIZE];
+        int[] positions = new int[BLOCK_SIZE];
+        lastDoc = 0;
+        for (int block = 0; block < blockCount; block++) {
+            int first = block * BLOCK_SIZE;
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                int doc = values[docStart[first + i]];
+                run[i] = doc - lastDoc;
+                lastDoc = doc;
+            }
+            packRun(run, out);
+            if (getEntrySize() == 2) {
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    run[i] = (docStart[first + i + 1] - docStart[first + i]) / 2 - 1;
+                }
+                packRun(run, out);
+                int n = 0;
+                for (int i = first; i < first + BLOCK_SIZE; i++) {
+                    int lastPos = 0;
+                    for (int j = docStart[i]; j < docStart[i + 1]; j += 2) {
+                        positions[n++] = values[j + 1] - lastPos;
+                        lastPos = values[j + 1];
+                        if (n == BLOCK_SIZE) {
+                            packRun(positions, out);
+                            n = 0;
+                        }
+                    }
+                }
+                for (int i = 0; i < n; i++) {
+                    out.writeVInt(positions[i]);
+                }
+            }
+            out.setInt(skipAt + block * SKIP_ENTRY_SIZE, lastDoc);
+            out.setInt(skipAt + block * SKIP_ENTRY_SIZE + 4, out.size() - dataStart);
+        }
+
+        for (int i = blockCount * BLOCK_SIZE; i < docCount; i++) {
+            int doc = values[docStart[i]];
+            out.writeVInt(doc - lastDoc);
+            lastDoc = doc;
+            if (getEntrySize() == 2) {
+                out.writeVInt((docStart[i + 1] - docStart[i]) / 2);
+                int lastPos = 0;
+                for (int j = docStart[i]; j < docStart[i + 1]; j += 2) {
+                    out.writeVInt(values[j + 1] - lastPos);
+                    lastPos = values[j + 1];
+                }
+            }
+        }
+    }
+
+    @Override
+    void decode(byte[] in, int offset, int length, PostingBuffer out) {
+        int[] pos = { offset };
+        int count = ByteDataInput.readVInt(in, pos);
+        int docCount = ByteDataInput.readVInt(in, pos);
+        int blockCount = docCount / BLOCK_SIZE;
+        pos[0] += blockCount * SKIP_ENTRY_SIZE;
+
+        int size = out.size();
+        int[] values = out.reserve(count);
+        int at = size;
+        int[] docs = new int[BLOCK_SIZE];
+        int[] freqs = new int[BLOCK_SIZE];
+        int[] positions = new int[BLOCK_SIZE];
+        int[] words = new int[BLOCK_SIZE];
+        int doc = 0;
+        for (int block = 0; block < blockCount; block++) {
+            unpackRun(in, pos, docs, 0, words);
+            doc = prefixSum(docs, doc);
+            if (getEntrySize() == 1) {
+                System.arraycopy(docs, 0, values, at, BLOCK_SIZE);
+                at += BLOCK_SIZE;
+                continue;
+            }
+            unpackRun(in, pos, freqs, 0, words);
+            positions = unpackPositions(in, pos, freqs, positions, words);
+            for (int i = 0, p = 0; i < BLOCK_SIZE; i++) {
+                int position = 0;
+                for (int end = p + freqs[i] + 1; p < end; p++, at += 2) {
+                    position += positions[p];
+                    values[at] = docs[i];
+                    values[at + 1] = position;
+                }
+            }
+        }
+
+        while (at < size + count) {
+            doc += ByteDataInput.readVInt(in, pos);
+            if (getEntrySize() == 1) {
+                values[at++] = doc;
+                continue;
+            }
+            int freq = ByteDataInput.readVInt(in, pos);
+            int position = 0;
+            for (int j = 0; j < freq; j++) {
+                position += ByteDataInput.readVInt(in, pos);
+                values[at++] = doc;
+                values[at++] = position;
+            }
+        }
+        out.setSize(size + count);
+    }
+
+    /**
+     * Unpack the position gaps of one block.
+     * 
+     * @param freqs <code>freq - 1</code> of each document in the block.
+     * @param positions Scratch space, replaced if it is too small.
+     * @return An array holding the position gaps of all documents in order.
+     */
+    static int[] unpackPositions(byte[] in, int[] pos, int[] freqs, int[] positions, int[] words) {
+        int total = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            total += freqs[i] + 1;
+        }
+        if (positions.length < total + BLOCK_SIZE) {
+            positions = new int[total + BLOCK_SIZE];
+        }
+        int n = 0;
+        for (; n + BLOCK_SIZE <= total; n += BLOCK_SIZE) {
+            unpackRun(in, pos, positions, n, words);
+        }
+        for (; n < total; n++) {
+            positions[n] = ByteDataInput.readVInt(in, pos);
+        }
+        return positions;
+    }
+
+    /**
+     * Turn gaps into absolute values in place.
+     * 
+     * @return The last value.
+     */
+    static int prefixSum(int[] gaps, int base) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            base += gaps[i];
+            gaps[i] = base;
+        }
+        return base;
+    }
+
+    /**
+     * Pack {@link #BLOCK_SIZE} non-negative ints.
+     */
+    static void packRun(int[] values, ByteArrayDataOutput out) {
+        // Pick the bit width with the smallest total size, exceptions
+        // included. The cost of an exception only depends on the bit length
+        // of the value, so a histogram of bit lengths is enough.
+        int[] histogram = new int[33];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            histogram[32 - Integer.numberOfLeadingZeros(values[i])]++;
+        }
+        int bits = 32;
+        int bestCost = Integer.MAX_VALUE;
+        for (int b = 32; b >= 0; b--) {
+            int cost = BLOCK_SIZE * b / 8;
+            for (int l = b + 1; l <= 32; l++) {
+                cost += histogram[l] * (1 + (l - b + 6) / 7);
+            }
+            if (cost < bestCost) {
+                bestCost = cost;
+                bits = b;
+            }
+        }
+
+        int exceptions = 0;
+        for (int l = bits + 1; l <= 32; l++) {
+            exceptions += histogram[l];
+        }
+        out.writeByte(bits);
+        out.writeByte(exceptions);
+
+        int mask = bits == 32 ? -1 : (1 << bits) - 1;
+        int[] words = new int[LANES * bits];
+        for (int i = 0; bits > 0 && i < BLOCK_SIZE; i++) {
+            int value = values[i] & mask;
+            int bit = (i / LANES) * bits;
+            int w = (bit >>> 5) * LANES + i % LANES;
+            int shift = bit & 31;
+            words[w] |= value << shift;
+            if (shift + bits > 32) {
+                words[w + LANES] |= value >>> (32 - shift);
+            }
+        }
+        out.ensureCapacity(out.size() + words.length * 4);
+        for (int word : words) {
+            out.writeInt(word);
+        }
+        for (int i = 0; exceptions > 0 && i < BLOCK_SIZE; i++) {
+            if ((values[i] & ~mask) != 0) {
+                out.writeByte(i);
+                out.writeVInt(values[i] >>> bits);
+            }
+        }
+    }
+
+    /**
+     * Unpack a run written by {@link #packRun(int[], ByteArrayDataOutput)}
+     * at <code>pos[0]</code> into <code>out[o, o + BLOCK_SIZE)</code> and
+     * advance <code>pos[0]</code>.
+     * 
+     * @param words Scratch space of at least {@link #BLOCK_SIZE} ints.
+     */
+    static void unpackRun(byte[] in, int[] pos, int[] out, int o, int[] words) {
+        int p = pos[0];
+        int bits = in[p] & 0xff;
+        int exceptions = in[p + 1] & 0xff;
+        p += 2;
+        int wordCount = LANES * bits;
+        for (int i = 0; i < wordCount; i++, p += 4) {
+            words[i] = ((in[p] & 0xff) << 24) | ((in[p + 1] & 0xff) << 16)
+                    | ((in[p + 2] & 0xff) << 8) | (in[p + 3] & 0xff);
+        }
+        if (bits == 0) {
+            for (int i = o; i < o + BLOCK_SIZE; i++) {
+                out[i] = 0;
+            }
+        } else {
+            int mask = bits == 32 ? -1 : (1 << bits) - 1;
+            for (int i = o, bit = 0; i < o + BLOCK_SIZE; i += LANES, bit += bits) {
+                int w = (bit >>> 5) * LANES;
+                int shift = bit & 31;
+                if (shift + bits <= 32) {
+                    out[i] = (words[w] >>> shift) & mask;
+                    out[i + 1] = (words[w + 1] >>> shift) & mask;
+                    out[i + 2] = (words[w + 2] >>> shift) & mask;
+                    out[i + 3] = (words[w + 3] >>> shift) & mask;
+                } else {
+                    int back = 32 - shift;
+                    out[i] = ((words[w] >>> shift) | (words[w + 4] << back)) & mask;
+                    out[i + 1] = ((words[w + 1] >>> shift) | (words[w + 5] << back)) & mask;
+                    out[i + 2] = ((words[w + 2] >>> shift) | (words[w + 6] << back)) & mask;
+                    out[i + 3] = ((words[w + 3] >>> shift) | (words[w + 7] << back)) & mask;
+                }
+            }
+        }
+        pos[0] = p;
+        for (int i = 0; i < exceptions; i++) {
+            int index = in[pos[0]++] & 0xff;
+            out[o + index] |= ByteDataInput.readVInt(in, pos) << bits;
+        }
+    }
+}
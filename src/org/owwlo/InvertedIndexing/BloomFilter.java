@@ -0,0 +1,135 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter over the tokens of one Posting List file, used to skip
+ * lookups of tokens that file cannot contain without touching the disk.
+ * <p>
+ * Filters use 10 bits and 7 probes per token, about 1% false positives.
+ * Probes are derived from one 64 bit hash of the token
+ * (Kirsch-Mitzenmacher double hashing), so a token is hashed once no matter
+ * how many filters are checked. File layout:
+ * <code>[int magic][int probes][int wordCount][long words] * wordCount</code>
+ *
+ * @author owwlo
+ */
+class BloomFilter {
+    private static final int MAGIC = 0x424c4d46;
+    private static final int BITS_PER_TOKEN = 10;
+    private static final int PROBES = 7;
+
+    private final long[] words;
+    private final int probes;
+    private final long bitCount;
+
+    private BloomFilter(long[] words, int probes) {
+        this.words = words;
+        this.probes = probes;
+        this.bitCount = (long) words.length * Long.SIZE;
+    }
+
+    /**
+     * @return 64 bit hash of a token to pass to {@link #mightContain(long)}.
+     */
+    static long hash(String token) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < token.length(); i++) {
+            h ^= token.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return False if the token with this hash was surely never added.
+     */
+    boolean mightContain(long hash) {
+        long h1 = hash & 0xffffffffL;
+        long h2 = hash >>> 32;
+        for (int i = 0; i < probes; i++) {
+            long bit = (h1 + i * h2) % bitCount;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(probes);
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static BloomFilter read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new Error(file.getAbsolutePath() + " is not a Bloom filter file.");
+            }
+            int probes = in.readInt();
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return new BloomFilter(words, probes);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Collects token hashes while a Posting List file is written, and sizes
+     * the filter once the number of tokens is known.
+     */
+    static class Collector {
+        private long[] hashes = new long[64];
+        private int count = 0;
+
+        void add(String token) {
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+            hashes[count++] = hash(token);
+        }
+
+        BloomFilter build() {
+            long bits = Math.max(Long.SIZE, (long) count * BITS_PER_TOKEN);
+            BloomFilter filter = new BloomFilter(new long[(int) ((bits + Long.SIZE - 1) / Long.SIZE)],
+                    PROBES);
+            for (int i = 0; i < count; i++) {
+                long h1 = hashes[i] & 0xffffffffL;
+                long h2 = hashes[i] >>> 32;
+                for (int j = 0; j < PROBES; j++) {
+                    long bit = (h1 + j * h2) % filter.bitCount;
+                    filter.words[(int) (bit >>> 6)] |= 1L << bit;
+                }
+            }
+            return filter;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+
+package org.owwlo.InvertedIndexing;
+
+import java.util.Arrays;
+
+/**
+ * Unsynchronized, growable byte array for encoding records before they are
+ * written out in one call. Meant to be reused through {@link #reset()}.
+ * 
+ * @author owwlo
+ */
+class ByteArrayDataOutput {
+    private byte[] bytes;
+    private int size;
+
+    ByteArrayDataOutput() {
+        this(64);
+    }
+
+    ByteArrayDataOutput(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    void reset() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+
+    void writeByte(int v) {
+        ensureCapacity(size + 1);
+        bytes[size++] = (byte) v;
+    }
+
+    void writeInt(int v) {
+        ensureCapacity(size + 4);
+        bytes[size] = (byte) (v >>> 24);
+        bytes[size + 1] = (byte) (v >>> 16);
+        bytes[size + 2] = (byte) (v >>> 8);
+        bytes[size + 3] = (byte) v;
+        size += 4;
+    }
+
+    /**
+     * Overwrite an int that has already been written.
+     */
+    void setInt(int at, int v) {
+        bytes[at] = (byte) (v >>> 24);
+        bytes[at + 1] = (byte) (v >>> 16);
+        bytes[at + 2] = (byte) (v >>> 8);
+        bytes[at + 3] = (byte) v;
+    }
+
+    /**
+     * Write an unsigned variable-byte int: 7 bits per byte, low bits first,
+     * high bit set on every byte but the last.
+     */
+    void writeVInt(int v) {
+        ensureCapacity(size + 5);
+        while ((v & ~0x7f) != 0) {
+            bytes[size++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        bytes[size++] = (byte) v;
+    }
+
+    /**
+     * Write an unsigned variable-byte long, like {@link #writeVInt(int)}.
+     */
+    void writeVLong(long v) {
+        ensureCapacity(size + 10);
+        while ((v & ~0x7fL) != 0) {
+            bytes[size++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        bytes[size++] = (byte) v;
+    }
+
+    void writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    void writeBytes(byte[] b, int off, int len) {
+        ensureCapacity(size + len);
+        System.arraycopy(b, off, bytes, size, len);
+        size += len;
+    }
+}
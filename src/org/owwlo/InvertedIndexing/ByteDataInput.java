@@ -0,0 +1,121 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads what {@link ByteArrayDataOutput} writes, either from a byte array
+ * through the static methods or sequentially from a file.
+ *
+ * @author owwlo
+ */
+class ByteDataInput {
+    private final InputStream in;
+
+    /**
+     * Read a file sequentially through a buffer.
+     */
+    ByteDataInput(File file) throws IOException {
+        in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+    }
+
+    /**
+     * @return Whether the whole file has been read.
+     */
+    boolean atEnd() throws IOException {
+        in.mark(1);
+        boolean end = in.read() < 0;
+        in.reset();
+        return end;
+    }
+
+    int readInt() throws IOException {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | readByte();
+        }
+        return v;
+    }
+
+    /**
+     * @see ByteArrayDataOutput#writeVInt(int)
+     */
+    int readVInt() throws IOException {
+        return (int) readVLong();
+    }
+
+    /**
+     * @see ByteArrayDataOutput#writeVLong(long)
+     */
+    long readVLong() throws IOException {
+        long v = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = readByte();
+            v |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+    }
+
+    void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Read a variable-byte int at <code>pos[0]</code> and advance it.
+     *
+     * @see ByteArrayDataOutput#writeVInt(int)
+     */
+    static int readVInt(byte[] in, int[] pos) {
+        int at = pos[0];
+        int b = in[at++];
+        int v = b & 0x7f;
+        for (int shift = 7; b < 0; shift += 7) {
+            b = in[at++];
+            v |= (b & 0x7f) << shift;
+        }
+        pos[0] = at;
+        return v;
+    }
+
+    /**
+     * Read a variable-byte long at <code>pos[0]</code> and advance it.
+     *
+     * @see ByteArrayDataOutput#writeVLong(long)
+     */
+    static long readVLong(byte[] in, int[] pos) {
+        int at = pos[0];
+        long b = in[at++];
+        long v = b & 0x7f;
+        for (int shift = 7; b < 0; shift += 7) {
+            b = in[at++];
+            v |= (b & 0x7f) << shift;
+        }
+        pos[0] = at;
+        return v;
+    }
+}
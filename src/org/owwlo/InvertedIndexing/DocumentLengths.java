@@ -0,0 +1,135 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Number of tokens of each document, used to normalize scores by document
+ * length.
+ * <p>
+ * Lengths are kept as two parallel arrays sorted by document id. File
+ * layout: <code>[int magic][int count][int docId, int length] * count</code>
+ *
+ * @author owwlo
+ */
+class DocumentLengths {
+    private static final int MAGIC = 0x444c454e;
+
+    private int[] docs = new int[64];
+    private int[] lengths = new int[64];
+    private int size = 0;
+    private boolean sorted = true;
+    private long totalLength = 0;
+
+    synchronized void set(int docId, int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Length must not be negative: " + length);
+        }
+        if (size == docs.length) {
+            docs = Arrays.copyOf(docs, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        if (size > 0 && docId <= docs[size - 1]) {
+            sorted = false;
+        }
+        docs[size] = docId;
+        lengths[size++] = length;
+        totalLength += length;
+    }
+
+    /**
+     * @return Length of a document, or -1 if it is unknown.
+     */
+    synchronized int get(int docId) {
+        ensureSorted();
+        int found = Arrays.binarySearch(docs, 0, size, docId);
+        return found >= 0 ? lengths[found] : -1;
+    }
+
+    synchronized int count() {
+        ensureSorted();
+        return size;
+    }
+
+    synchronized double average() {
+        ensureSorted();
+        return size == 0 ? 0 : (double) totalLength / size;
+    }
+
+    /**
+     * Sort by document id. A document set more than once keeps its last
+     * length.
+     */
+    private void ensureSorted() {
+        if (sorted) {
+            return;
+        }
+        long[] entries = new long[size];
+        for (int i = 0; i < size; i++) {
+            // Order by document id, then by insertion.
+            entries[i] = ((long) docs[i] << 32) | i;
+        }
+        Arrays.sort(entries);
+        int[] sortedDocs = new int[Math.max(size, 64)];
+        int[] sortedLengths = new int[sortedDocs.length];
+        int n = 0;
+        totalLength = 0;
+        for (int i = 0; i < size; i++) {
+            int at = (int) entries[i];
+            if (n > 0 && sortedDocs[n - 1] == docs[at]) {
+                totalLength -= sortedLengths[--n];
+            }
+            sortedDocs[n] = docs[at];
+            sortedLengths[n] = lengths[at];
+            totalLength += lengths[at];
+            n++;
+        }
+        docs = sortedDocs;
+        lengths = sortedLengths;
+        size = n;
+        sorted = true;
+    }
+
+    synchronized void write(File file) throws IOException {
+        ensureSorted();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeInt(docs[i]);
+                out.writeInt(lengths[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Add the lengths of a file, replacing those of documents already set.
+     */
+    void read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new Error(file.getAbsolutePath() + " is not a document length file.");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int docId = in.readInt();
+                set(docId, in.readInt());
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link IndexInput} on top of positional {@link FileChannel} reads. Unlike
+ * seeking a shared RandomAccessFile, no lock is needed between readers.
+ * <p>
+ * Interrupting a thread blocked on a channel closes the channel for every
+ * thread. Reads therefore do not react to interrupts, as RandomAccessFile
+ * reads do not: the interrupt status is kept for the caller, and a channel
+ * closed by an interrupt is replaced by a new one and the read retried.
+ * 
+ * @author owwlo
+ */
+class FileIndexInput implements IndexInput {
+    private final File file;
+    private final AtomicReference<FileChannel> channel;
+    private final long length;
+    private volatile boolean closed;
+
+    FileIndexInput(File file) throws IOException {
+        this.file = file;
+        channel = new AtomicReference<FileChannel>(new FileInputStream(file).getChannel());
+        length = channel.get().size();
+    }
+
+    @Override
+    public int readInt(long pos) throws IOException {
+        byte[] b = new byte[4];
+        readFully(pos, b, 0, 4);
+        return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8)
+                | (b[3] & 0xff);
+    }
+
+    @Override
+    public void readFully(long pos, byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        // A pending interrupt would close the channel on the first read.
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (buffer.hasRemaining()) {
+                FileChannel current = channel.get();
+                try {
+                    int read = current.read(buffer, pos + buffer.position() - off);
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                } catch (ClosedChannelException e) {
+                    if (closed) {
+                        throw e;
+                    }
+                    interrupted |= Thread.interrupted();
+                    reopen(current);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Replace a channel closed by an interrupt, unless another reader has
+     * replaced it already.
+     */
+    private void reopen(FileChannel stale) throws IOException {
+        FileChannel fresh = new FileInputStream(file).getChannel();
+        if (!channel.compareAndSet(stale, fresh) || closed) {
+            fresh.close();
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.get().close();
+    }
+}
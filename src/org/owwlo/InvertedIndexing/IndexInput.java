@@ -0,0 +1,36 @@
+
+package org.owwlo.InvertedIndexing;
+
+import java.io.IOException;
+
+/**
+ * Positional, read-only access to an index file.
+ * <p>
+ * Implementations keep no shared file pointer, so any number of threads may
+ * read from the same instance at the same time.
+ * 
+ * @author owwlo
+ */
+interface IndexInput {
+    /**
+     * Read a big-endian int.
+     * 
+     * @param pos Absolute position in the file.
+     */
+    int readInt(long pos) throws IOException;
+
+    /**
+     * Fill <code>b[off, off + len)</code> with the bytes starting at
+     * <code>pos</code>.
+     * 
+     * @param pos Absolute position in the file.
+     */
+    void readFully(long pos, byte[] b, int off, int len) throws IOException;
+
+    /**
+     * @return Length of the underlying file in bytes.
+     */
+    long length();
+
+    void close() throws IOException;
+}
@@ -0,0 +1,154 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Index object file of a batch: the token, offset and length of every
+ * Posting List written to the batch, read back when committing.
+ * <p>
+ * Layout: <code>[int magic]</code>, then per Posting List
+ * <code>[vint termLength][term bytes][vlong offset][vint length]</code>, the
+ * term in UTF-8. Writing and reading reuse their buffers, so no object is
+ * allocated per record.
+ *
+ * @author owwlo
+ */
+class IndexObjectFile {
+    private static final int MAGIC = 0x49444f42;
+
+    private IndexObjectFile() {
+    }
+
+    static class Writer {
+        private final OutputStream out;
+        private final ByteArrayDataOutput record = new ByteArrayDataOutput();
+
+        /**
+         * @param out Buffered stream of the file, closed by {@link #close()}.
+         */
+        Writer(OutputStream out) throws IOException {
+            this.out = out;
+            record.writeInt(MAGIC);
+            out.write(record.bytes(), 0, record.size());
+        }
+
+        void write(String token, long offset, int length) throws IOException {
+            record.reset();
+            writeUtf8(token, record);
+            record.writeVLong(offset);
+            record.writeVInt(length);
+            out.write(record.bytes(), 0, record.size());
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+
+        /**
+         * Write the length and UTF-8 bytes of a string, the same bytes as
+         * <code>s.getBytes(UTF_8)</code>.
+         */
+        private static void writeUtf8(String s, ByteArrayDataOutput out) {
+            int n = s.length();
+            int byteLength = 0;
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    byteLength++;
+                } else if (c < 0x800) {
+                    byteLength += 2;
+                } else if (isSurrogatePair(s, i)) {
+                    byteLength += 4;
+                    i++;
+                } else if (isSurrogate(c)) {
+                    byteLength++;
+                } else {
+                    byteLength += 3;
+                }
+            }
+            out.writeVInt(byteLength);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    out.writeByte(c);
+                } else if (c < 0x800) {
+                    out.writeByte(0xc0 | c >> 6);
+                    out.writeByte(0x80 | c & 0x3f);
+                } else if (isSurrogatePair(s, i)) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out.writeByte(0xf0 | cp >> 18);
+                    out.writeByte(0x80 | cp >> 12 & 0x3f);
+                    out.writeByte(0x80 | cp >> 6 & 0x3f);
+                    out.writeByte(0x80 | cp & 0x3f);
+                } else if (isSurrogate(c)) {
+                    // Unpaired surrogates become '?', as in String.getBytes().
+                    out.writeByte('?');
+                } else {
+                    out.writeByte(0xe0 | c >> 12);
+                    out.writeByte(0x80 | c >> 6 & 0x3f);
+                    out.writeByte(0x80 | c & 0x3f);
+                }
+            }
+        }
+
+        private static boolean isSurrogate(char c) {
+            return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+        }
+
+        private static boolean isSurrogatePair(String s, int i) {
+            return Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1));
+        }
+    }
+
+    /**
+     * Reads the records of a file one at a time into reused fields.
+     */
+    static class Reader {
+        private final ByteDataInput in;
+        byte[] term = new byte[32];
+        int termLength;
+        long offset;
+        int length;
+
+        Reader(File file) throws IOException {
+            in = new ByteDataInput(file);
+            boolean valid = false;
+            try {
+                valid = in.readInt() == MAGIC;
+            } catch (EOFException e) {
+                // Reported below.
+            }
+            if (!valid) {
+                in.close();
+                throw new IOException(file.getAbsolutePath() + " is not an index object file.");
+            }
+        }
+
+        /**
+         * Move to the next record.
+         *
+         * @return False at the end of the file.
+         */
+        boolean next() throws IOException {
+            if (in.atEnd()) {
+                return false;
+            }
+            termLength = in.readVInt();
+            if (term.length < termLength) {
+                term = new byte[Math.max(termLength, term.length * 2)];
+            }
+            in.readFully(term, 0, termLength);
+            offset = in.readVLong();
+            length = in.readVInt();
+            return true;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
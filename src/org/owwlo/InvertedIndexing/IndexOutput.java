@@ -0,0 +1,60 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered output to an index file which keeps track of its position as a
+ * long. {@link DataOutputStream#size()} is an int and stops counting at 2GB,
+ * so it cannot give offsets into larger files.
+ *
+ * @author owwlo
+ */
+class IndexOutput extends DataOutputStream {
+    IndexOutput(File file) throws FileNotFoundException {
+        this(file, false);
+    }
+
+    /**
+     * @param async Whether to write from a background thread through an
+     *            {@link AsyncFileOutputStream}.
+     */
+    IndexOutput(File file, boolean async) throws FileNotFoundException {
+        super(new Counter(async ? new AsyncFileOutputStream(file) : new BufferedOutputStream(
+                new FileOutputStream(file, false))));
+    }
+
+    /**
+     * @return Number of bytes written so far, i.e. the offset of the next
+     *         byte in the file.
+     */
+    long position() {
+        return ((Counter) out).count;
+    }
+
+    private static class Counter extends FilterOutputStream {
+        private long count = 0;
+
+        Counter(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
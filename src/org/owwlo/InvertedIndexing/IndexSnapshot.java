@@ -0,0 +1,163 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The committed state of an index as lookups see it: the live segments, and
+ * the reader, codec and Bloom filter of every batch they cover, by map id.
+ * <p>
+ * A snapshot is filled in full before it is published and never changes
+ * afterwards, so a lookup which takes the current snapshot once reads a
+ * consistent index while commits and merges publish new ones. Snapshots
+ * share the readers of the segments they have in common.
+ * <p>
+ * A snapshot is reference counted: the builder holds one reference while it
+ * is current, every lookup holds one while reading, and every cursor or
+ * token map iterator holds one until it is exhausted or closed. Each segment in turn
+ * counts the snapshots holding it, and its readers are closed once the last
+ * of them is released.
+ *
+ * @author owwlo
+ */
+class IndexSnapshot {
+    /**
+     * Incremented for every published snapshot, so data derived from one
+     * snapshot can be told apart from data of another.
+     */
+    final long generation;
+
+    /**
+     * Open segments in batch order.
+     */
+    final List<Segment> segments;
+
+    /**
+     * Read only view of the dictionaries of all segments, see
+     * {@link Segment#asMap(List)}.
+     */
+    final Map<String, Long> tokenMap;
+
+    /**
+     * Reader, codec and Bloom filter of each batch, null for map ids no
+     * segment covers.
+     */
+    private final IndexInput[] inputs;
+    private final PostingCodec[] codecs;
+    private final BloomFilter[] bloomFilters;
+
+    /**
+     * References held, see {@link #tryIncRef()}.
+     */
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    IndexSnapshot(long generation) {
+        this(generation, Collections.<Segment> emptyList());
+    }
+
+    /**
+     * @param segments Open segments, each of which gets a reference. Their
+     *            batches are set through
+     *            {@link #setBatch(int, IndexInput, PostingCodec, BloomFilter)}
+     *            before the snapshot is published.
+     */
+    IndexSnapshot(long generation, List<Segment> segments) {
+        this.generation = generation;
+        this.segments = Collections.unmodifiableList(segments);
+        this.tokenMap = Segment.asMap(segments);
+        int endMap = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).endMap();
+        inputs = new IndexInput[endMap];
+        codecs = new PostingCodec[endMap];
+        bloomFilters = new BloomFilter[endMap];
+        for (Segment segment : segments) {
+            segment.incRef();
+        }
+    }
+
+    void setBatch(int mapId, IndexInput in, PostingCodec codec, BloomFilter bloomFilter) {
+        inputs[mapId] = in;
+        codecs[mapId] = codec;
+        bloomFilters[mapId] = bloomFilter;
+    }
+
+    /**
+     * @return Reader of the Posting List file of a batch.
+     */
+    IndexInput input(int mapId) {
+        return inputs[mapId];
+    }
+
+    /**
+     * @return Codec of a batch, null for Posting Lists of bytes.
+     */
+    PostingCodec codec(int mapId) {
+        return codecs[mapId];
+    }
+
+    /**
+     * @return Bloom filter of a batch, null if it was written without one.
+     */
+    BloomFilter bloomFilter(int mapId) {
+        return bloomFilters[mapId];
+    }
+
+    /**
+     * @return One past the highest map id covered by a segment.
+     */
+    int endMap() {
+        return inputs.length;
+    }
+
+    /**
+     * @return Number of batches covered by the segments.
+     */
+    int batchCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.mapCount;
+        }
+        return count;
+    }
+
+    /**
+     * Take a reference unless the snapshot is already released.
+     *
+     * @return False if the readers of this snapshot may be closed.
+     */
+    boolean tryIncRef() {
+        while (true) {
+            int count = refCount.get();
+            if (count == 0) {
+                return false;
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release a reference. The last one releases the segments, closing the
+     * readers of those no other snapshot holds.
+     */
+    void decRef() throws IOException {
+        int count = refCount.decrementAndGet();
+        if (count < 0) {
+            throw new IllegalStateException("Snapshot released too many times.");
+        }
+        if (count > 0) {
+            return;
+        }
+        for (Segment segment : segments) {
+            if (segment.decRef()) {
+                segment.close();
+                for (int i = segment.firstMap; i < segment.endMap(); i++) {
+                    inputs[i].close();
+                }
+            }
+        }
+    }
+}
@@ -1,75 +1,198 @@
 
 package org.owwlo.InvertedIndexing;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.io.Serializable;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.io.Input;
-import com.esotericsoftware.kryo.io.Output;
+import org.owwlo.InvertedIndexing.MetricsListener.Phase;
 
 public class InvertedIndexBuilder {
     private static final String IDX_FILE_PREFIX = "idx";
     private static final String SE_IDX_FILE_PREFIX = "seIdx";
     private static final String IDX_OBJ_FILE_PREFIX = "idxObj";
     private static final String POST_LIST_PREFIX = "pstl";
+    private static final String BLOOM_FILE_PREFIX = "bloom";
+    private static final String IMPACT_FILE_PREFIX = "impact";
+    private static final String DOC_LENGTH_FILE_PREFIX = "docLen";
+    private static final String MANIFEST_FILE = "segments";
 
     /**
-     * Keep a one-to-one correspondence between token and offset of Secondary
-     * Index.
+     * Prefixes of the files of a segment, and of the files of a batch.
      */
-    private Map<String, Integer> _tokenMap = new LinkedHashMap<String, Integer>();
+    private static final String[] SEGMENT_FILE_PREFIXES = { IDX_FILE_PREFIX,
+            SE_IDX_FILE_PREFIX, IMPACT_FILE_PREFIX, DOC_LENGTH_FILE_PREFIX };
+    private static final String[] BATCH_FILE_PREFIXES = { POST_LIST_PREFIX,
+            BLOOM_FILE_PREFIX, IDX_OBJ_FILE_PREFIX };
 
     /**
-     * Reader for Secondary Index.
+     * The impact file of a segment holds one {@link TermImpacts} record per token in
+     * dictionary order, then a table of <code>[long recordOffset]</code> per
+     * token, -1 for tokens without integer Posting Lists, and a footer of
+     * <code>[int termCount][long tableOffset][int magic]</code>.
      */
-    private RandomAccessFile _seIdxIn;
+    private static final int IMPACT_MAGIC = 0x494d5041;
+    private static final int IMPACT_FOOTER_SIZE = 16;
 
     /**
-     * Readers for each Posting List file.
+     * Every Posting List file starts with this magic, followed by one byte of
+     * codec id and one byte of entry size.
      */
-    private List<RandomAccessFile> _ivtiMapInList = new ArrayList<RandomAccessFile>();
+    private static final int POST_LIST_MAGIC = 0x5053544c;
+    private static final int POST_LIST_HEADER_SIZE = 6;
 
     /**
-     * Tool for serialization/deserialization.
+     * Codec id in the header of Posting List files written by IvtMapByte.
      */
-    private Kryo kryo = new Kryo();
+    private static final int BYTE_LIST_ID = 0x7f;
+
+    /**
+     * The Secondary Index file starts with this magic.
+     */
+    private static final int SE_IDX_MAGIC = 0x53494458;
+
+    /**
+     * Ints per entry of a Secondary Index record: mapId, the high and low
+     * halves of the long offset, length.
+     */
+    private static final int SE_IDX_ENTRY_INTS = 4;
+
+    /**
+     * Fragments of a batched lookup closer than this many bytes in the same
+     * Posting List file are fetched with one read, up to
+     * {@link #MAX_COALESCED_READ} bytes per read. Memory mapped files only
+     * join adjacent fragments, as a read there costs no system call.
+     */
+    private static final int COALESCE_GAP = 4096;
+    private static final int MAX_COALESCED_READ = 1 << 20;
+
+    /**
+     * Committed segments in batch order, with the readers of their batches.
+     * Each segment has a sorted on-disk dictionary from token to offset of
+     * its record in the Secondary Index of the segment. Replaced as a whole
+     * by every commit and merge, never modified once published. Lookups take
+     * a reference to it through {@link #acquire()} and read that snapshot
+     * only, so readers replaced by a merge are closed once the last lookup
+     * using them is done.
+     */
+    private volatile IndexSnapshot _snapshot = new IndexSnapshot(0);
+
+    /**
+     * Generation of the last snapshot. Guarded by _commitLock.
+     */
+    private long _generation = 0;
+
+    /**
+     * Read only view of the tokens of the current snapshot, see
+     * {@link #getTokenOffsetMap()}.
+     */
+    private final Map<String, Long> _tokenOffsetMap = new TokenOffsetMap();
+
+    /**
+     * Id of the next segment to commit.
+     */
+    private int _nextSegmentId = 0;
+
+    /**
+     * Number of batches covered by committed segments.
+     */
+    private int _committedMapCount = 0;
+
+    /**
+     * Held while segments are built or replaced.
+     */
+    private final Object _commitLock = new Object();
+
+    /**
+     * Number of tokens of each document.
+     */
+    private DocumentLengths _documentLengths = new DocumentLengths();
+
+    /**
+     * Lengths set since the last commit, written with the next segment.
+     */
+    private volatile DocumentLengths _pendingLengths = new DocumentLengths();
+
+    /**
+     * Whether index files are memory mapped for reading.
+     */
+    private boolean _memoryMapped;
+
+    /**
+     * Cache of decoded integer Posting Lists, null when disabled.
+     */
+    private volatile PostingCache _postingCache;
+
+    /**
+     * Receiver of timings and counters, null when disabled.
+     */
+    private volatile MetricsListener _metrics;
 
     /**
      * Count how many distributed Inverted Index Map has been created.
      */
     private int _mapCount = 0;
 
+    /**
+     * Heap budget for sorting Secondary Index records during commit.
+     */
+    private long _commitMemoryBudget = 64L * 1024 * 1024;
+
+    /**
+     * Threads reading and sorting index object files during commit.
+     */
+    private int _commitThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Whether new maps write their files from a background thread.
+     */
+    private volatile boolean _asyncWrites = false;
+
     /**
      * Base dir for the whole index.
      */
     private File _baseDir;
 
     /**
-     * Collections of different instances of IvtMap.
+     * Ids of the new maps which are not closed yet. Guarded by this.
      */
-    private List<IvtMapBase> _ivtCollection = new LinkedList<InvertedIndexBuilder.IvtMapBase>();
+    private final TreeSet<Integer> _openMapIds = new TreeSet<Integer>();
 
     /**
-     * Writers for Secondary Index.
+     * Postings of documents added through {@link #addDocument(int, String[])}
+     * which are not written yet.
      */
-    private Map<Integer, Output> _secondIdxOutputObjectStreamMap = new HashMap<Integer, Output>();
+    private PostingAccumulator _accumulator = new PostingAccumulator(this);
+
+    /**
+     * Collections of different instances of IvtMap. Guarded by itself.
+     */
+    private List<IvtMapBase> _ivtCollection = new LinkedList<InvertedIndexBuilder.IvtMapBase>();
 
     /**
      * Create a new builder instance.
@@ -78,234 +201,1126 @@ public class InvertedIndexBuilder {
      * @return New InvertedIndexBuilder instance.
      */
     public static InvertedIndexBuilder getBuilder(File dir) {
+        return getBuilder(dir, false);
+    }
+
+    /**
+     * Create a new builder instance.
+     * <p>
+     * In memory mapped mode the Secondary Index and Posting List files of an
+     * existing index are mapped into memory, so lookups are served without
+     * system calls. Both modes let any number of threads read concurrently.
+     * 
+     * @param dir Path where you want to create invertMap
+     * @param memoryMapped Whether to memory map existing index files.
+     * @return New InvertedIndexBuilder instance.
+     * @throws Error If <code>dir</code> holds an index written before
+     *             segments, which must be rebuilt.
+     */
+    public static InvertedIndexBuilder getBuilder(File dir, boolean memoryMapped) {
         if (dir.exists() && !dir.isDirectory()) {
             throw new Error(dir.getAbsolutePath() + " is not a directory.");
         }
         boolean loadExisting = false;
-        if (new File(dir, IDX_FILE_PREFIX).exists()) {
+        if (new File(dir, MANIFEST_FILE).exists()) {
             loadExisting = true;
+        } else if (new File(dir, IDX_FILE_PREFIX).exists()) {
+            throw new Error(dir.getAbsolutePath()
+                    + " holds an index of an older format. Rebuild it, see the README.");
         }
-        return new InvertedIndexBuilder(dir, loadExisting);
+        return new InvertedIndexBuilder(dir, loadExisting, memoryMapped);
     }
 
-    private InvertedIndexBuilder(File dir, boolean loadExisting) {
+    private InvertedIndexBuilder(File dir, boolean loadExisting, boolean memoryMapped) {
         this._baseDir = dir;
+        this._memoryMapped = memoryMapped;
         if (loadExisting) {
-            loadIvtMaps(dir);
+            loadSegments(dir);
         }
     }
 
-    private List<File> getAllFiles(final File folder) {
-        List<File> fileList = new LinkedList<File>();
+    /**
+     * Open the segments listed in the manifest, along with the document
+     * lengths of each.
+     */
+    private void loadSegments(File dir) {
+        try {
+            List<Segment> segments = new ArrayList<Segment>();
+            _nextSegmentId = Segment.readManifest(new File(dir, MANIFEST_FILE), segments);
+            for (Segment segment : segments) {
+                File lengthFile = new File(dir, DOC_LENGTH_FILE_PREFIX + segment.id);
+                if (lengthFile.exists()) {
+                    _documentLengths.read(lengthFile);
+                }
+                _committedMapCount = segment.endMap();
+            }
+            _mapCount = _committedMapCount;
+            deleteUnusedFiles(segments);
+            publish(openSnapshot(segments, _snapshot));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        for (final File fileEntry : folder.listFiles()) {
-            if (fileEntry.isDirectory()) {
-                fileList.addAll(getAllFiles(fileEntry));
-            } else {
-                fileList.add(fileEntry);
+    /**
+     * Build a snapshot of a list of segments. The segments of
+     * <code>previous</code> are shared with it along with the readers of
+     * their batches, the others are opened.
+     */
+    private IndexSnapshot openSnapshot(List<Segment> segments, IndexSnapshot previous)
+            throws IOException {
+        for (Segment segment : segments) {
+            if (!previous.segments.contains(segment)) {
+                openSegment(segment);
             }
         }
-        return fileList;
+        IndexSnapshot snapshot = new IndexSnapshot(++_generation, segments);
+        for (Segment segment : segments) {
+            boolean shared = previous.segments.contains(segment);
+            for (int i = segment.firstMap; i < segment.endMap(); i++) {
+                if (shared) {
+                    snapshot.setBatch(i, previous.input(i), previous.codec(i),
+                            previous.bloomFilter(i));
+                    continue;
+                }
+                File file = new File(_baseDir, POST_LIST_PREFIX + i);
+                IndexInput in = openInput(file);
+                File bloomFile = new File(_baseDir, BLOOM_FILE_PREFIX + i);
+                snapshot.setBatch(i, in, readPostListHeader(file, in),
+                        bloomFile.exists() ? BloomFilter.read(bloomFile) : null);
+            }
+        }
+        return snapshot;
     }
 
-    private void loadIvtMaps(File dir) {
-        List<File> fileList = getAllFiles(dir);
-        for (File file : fileList) {
-            String filename = file.getName();
-            if (filename.startsWith(POST_LIST_PREFIX)) {
-                _mapCount++;
+    /**
+     * Make a snapshot visible to lookups and release the one it replaces.
+     * Cached Posting Lists are dropped, as the new snapshot may hold more
+     * postings for them.
+     */
+    private void publish(IndexSnapshot snapshot) {
+        IndexSnapshot previous = _snapshot;
+        _snapshot = snapshot;
+        PostingCache cache = _postingCache;
+        if (cache != null) {
+            cache.clear();
+        }
+        release(previous);
+    }
+
+    /**
+     * Take a reference to the current snapshot. Every call must be paired
+     * with {@link #release(IndexSnapshot)}.
+     */
+    private IndexSnapshot acquire() {
+        while (true) {
+            IndexSnapshot snapshot = _snapshot;
+            if (snapshot.tryIncRef()) {
+                return snapshot;
             }
         }
-        _tokenMap = (Map<String, Integer>) Utils.readObjectFromFile(new File(_baseDir,
-                IDX_FILE_PREFIX), LinkedHashMap.class);
+    }
 
+    private static void release(IndexSnapshot snapshot) {
         try {
-            _seIdxIn = new RandomAccessFile(new File(dir, SE_IDX_FILE_PREFIX), "r");
-            for (int i = 0; i < _mapCount; i++) {
-                _ivtiMapInList.add(new RandomAccessFile(new File(dir, POST_LIST_PREFIX + i), "r"));
-            }
-        } catch (FileNotFoundException e) {
+            snapshot.decRef();
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void openSegment(Segment segment) throws IOException {
+        segment.dictionary = new TermDictionary(openInput(new File(_baseDir, IDX_FILE_PREFIX
+                + segment.id)));
+        File seIdxFile = new File(_baseDir, SE_IDX_FILE_PREFIX + segment.id);
+        segment.seIdxIn = openInput(seIdxFile);
+        if (segment.seIdxIn.length() < 4 || segment.seIdxIn.readInt(0) != SE_IDX_MAGIC) {
+            throw new Error(seIdxFile.getAbsolutePath() + " is not a Secondary Index file.");
+        }
+        openImpacts(segment);
+    }
+
+    private void openImpacts(Segment segment) throws IOException {
+        File impactFile = new File(_baseDir, IMPACT_FILE_PREFIX + segment.id);
+        if (!impactFile.exists()) {
+            return;
+        }
+        IndexInput in = openInput(impactFile);
+        long length = in.length();
+        if (length >= IMPACT_FOOTER_SIZE && in.readInt(length - 4) == IMPACT_MAGIC
+                && in.readInt(length - IMPACT_FOOTER_SIZE) == segment.dictionary.size()) {
+            segment.impactIn = in;
+            segment.impactTableOffset = readLong(in, length - IMPACT_FOOTER_SIZE + 4);
+        } else {
+            // Left over from an interrupted commit.
+            in.close();
+        }
+    }
+
+    private static PostingCodec readPostListHeader(File file, IndexInput in) throws IOException {
+        if (in.length() < POST_LIST_HEADER_SIZE || in.readInt(0) != POST_LIST_MAGIC) {
+            throw new Error(file.getAbsolutePath() + " is not a Posting List file.");
+        }
+        byte[] header = new byte[2];
+        in.readFully(4, header, 0, 2);
+        if (header[0] == BYTE_LIST_ID) {
+            return null;
+        }
+        return PostingCodec.forId(header[0], header[1]);
+    }
+
+    private IndexInput openInput(File file) throws IOException {
+        if (_memoryMapped) {
+            return new MappedIndexInput(file);
+        }
+        return new FileIndexInput(file);
+    }
+
+    /**
+     * Publish an empty snapshot. The readers of the current one are closed
+     * once running lookups are done with them.
+     */
+    private void closeInputs() {
+        synchronized (_commitLock) {
+            publish(new IndexSnapshot(++_generation));
+        }
+    }
+
+    /**
+     * Cache decoded integer Posting Lists read through
+     * {@link #getUnifiedDistributedIvtiIntegerMap()}, so lookups of frequent
+     * tokens are served from memory. The cache is emptied whenever a commit
+     * or merge changes the index, and a list is only served to lookups of
+     * the index it was read from.
+     * 
+     * @param maxBytes Upper bound of the estimated heap held by the cache, or
+     *            0 to disable caching.
+     */
+    public void setPostingCacheSize(long maxBytes) {
+        _postingCache = maxBytes == 0 ? null : new PostingCache(maxBytes);
+    }
+
+    /**
+     * @return The Posting List cache with its hit, miss and eviction counters,
+     *         or null if caching is disabled.
+     */
+    public PostingCache getPostingCache() {
+        return _postingCache;
+    }
+
+    /**
+     * Report timings of writing, committing, merging and lookups, bytes
+     * written per Posting List file and reads per lookup to a listener.
+     *
+     * @param listener Listener, or null to stop reporting.
+     */
+    public void setMetricsListener(MetricsListener listener) {
+        _metrics = listener;
+    }
+
+    public MetricsListener getMetricsListener() {
+        return _metrics;
+    }
+
+    /**
+     * @return Start time of a phase, or 0 without a listener.
+     */
+    private static long startTimer(MetricsListener metrics) {
+        return metrics == null ? 0 : System.nanoTime();
+    }
+
+    private static void stopTimer(MetricsListener metrics, Phase phase, long start) {
+        if (metrics != null) {
+            metrics.timed(phase, System.nanoTime() - start);
+        }
+    }
+
     public IvtMapInteger getUnifiedDistributedIvtiIntegerMap() {
-        return new IvtMapInteger(_baseDir, -1, false, _tokenMap, this);
+        return new IvtMapInteger(_baseDir, -1, false, PostingCodec.RAW, this);
     }
 
     public IvtMapByte getUnifiedDistributedIvtiByteMap() {
-        return new IvtMapByte(_baseDir, -1, false, _tokenMap, this);
+        return new IvtMapByte(_baseDir, -1, false, this);
     }
 
+    /**
+     * Create a new Inverted Index Map for one batch of
+     * <code>docId, position</code> pairs, stored as {@link PostingCodec#RAW}.
+     * 
+     * @see #createDistributedIvtiIntegerMap(PostingCodec)
+     */
     public IvtMapInteger createDistributedIvtiIntegerMap() {
-        IvtMapInteger map = new IvtMapInteger(_baseDir, _mapCount, true, _tokenMap, this);
-        if (map != null) {
-            _ivtCollection.add(map);
-            try {
-                File secondIdxFile = new File(_baseDir, IDX_OBJ_FILE_PREFIX + _mapCount);
-                FileOutputStream fout = new FileOutputStream(secondIdxFile);
-                BufferedOutputStream bout = new BufferedOutputStream(fout);
-                _secondIdxOutputObjectStreamMap.put(_mapCount, new Output(bout));
-                _mapCount++;
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        return createDistributedIvtiIntegerMap(PostingCodec.RAW);
+    }
+
+    /**
+     * Create a new Inverted Index Map for one batch.
+     * <p>
+     * Each map writes its own files with its own buffers, so maps created
+     * from the same builder can be filled and closed on different threads at
+     * the same time. This method is thread safe.
+     * 
+     * @param codec Format the Posting Lists of this batch are written in.
+     */
+    public IvtMapInteger createDistributedIvtiIntegerMap(PostingCodec codec) {
+        IvtMapInteger map = new IvtMapInteger(_baseDir, allocateMapId(), true, codec, this);
+        register(map);
         return map;
     }
 
+    /**
+     * Create a new Inverted Index Map of bytes for one batch. This method is
+     * thread safe.
+     */
     public IvtMapByte createDistributedIvtiByteMap() {
-        IvtMapByte map = new IvtMapByte(_baseDir, _mapCount, true, _tokenMap, this);
-        if (map != null) {
+        IvtMapByte map = new IvtMapByte(_baseDir, allocateMapId(), true, this);
+        register(map);
+        return map;
+    }
+
+    private int allocateMapId() {
+        MetricsListener metrics = _metrics;
+        long start = startTimer(metrics);
+        synchronized (this) {
+            stopTimer(metrics, Phase.LOCK_WAIT, start);
+            _openMapIds.add(_mapCount);
+            return _mapCount++;
+        }
+    }
+
+    /**
+     * Mark the files of a new map as complete, so its batch can be
+     * committed.
+     */
+    private synchronized void releaseMapId(int mapId) {
+        _openMapIds.remove(mapId);
+    }
+
+    private void register(IvtMapBase map) {
+        synchronized (_ivtCollection) {
             _ivtCollection.add(map);
-            try {
-                File secondIdxFile = new File(_baseDir, IDX_OBJ_FILE_PREFIX + _mapCount);
-                FileOutputStream fout = new FileOutputStream(secondIdxFile);
-                BufferedOutputStream bout = new BufferedOutputStream(fout);
-                _secondIdxOutputObjectStreamMap.put(_mapCount, new Output(bout));
-                _mapCount++;
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
         }
-        return map;
+    }
+
+    private void unregister(IvtMapBase map) {
+        synchronized (_ivtCollection) {
+            _ivtCollection.remove(map);
+        }
+    }
+
+    private List<IvtMapBase> openMaps() {
+        synchronized (_ivtCollection) {
+            return new ArrayList<IvtMapBase>(_ivtCollection);
+        }
+    }
+
+    /**
+     * Set how much heap committing may use to sort Secondary Index records.
+     * Records beyond the budget are sorted in runs spilled to the index
+     * directory and merged. Defaults to 64MB.
+     * 
+     * @param bytes Memory budget in bytes.
+     */
+    public void setCommitMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + bytes);
+        }
+        _commitMemoryBudget = bytes;
+    }
+
+    /**
+     * Set how many threads a commit may use to read and sort the index
+     * object files of its batches. Each thread takes a contiguous range of
+     * batches and an equal share of the commit memory budget. Defaults to
+     * the number of processors.
+     */
+    public void setCommitThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threads);
+        }
+        _commitThreads = threads;
+    }
+
+    /**
+     * Let maps created from now on, and merges, write their Posting List and
+     * index object files from a background thread. Writes fill large direct
+     * buffers, and a full buffer is written while the next one is filled, so
+     * encoding does not wait for the disk. Every such file holds two buffers
+     * of 1MB while open. Defaults to false.
+     */
+    public void setAsyncWrites(boolean async) {
+        _asyncWrites = async;
+    }
+
+    /**
+     * Index one document without building batches by hand.
+     * <p>
+     * Every token is recorded as a <code>docId, position</code> pair, the
+     * position being its index in <code>tokens</code>. Postings are collected
+     * in memory and written out as a new batch whenever the indexing memory
+     * budget is reached, and on {@link #commit()}. Documents must be added
+     * in increasing docId order. This method is thread safe.
+     * 
+     * @param docId Id of the document.
+     * @param tokens Tokens of the document in order.
+     */
+    public void addDocument(int docId, String[] tokens) {
+        _accumulator.add(docId, tokens, null, tokens.length);
+    }
+
+    /**
+     * Index part of a document, such as the tokens one shard owns. Token
+     * <code>i</code> is recorded at <code>positions[i]</code>, and the
+     * document length is <code>length</code>, so positions and scores are
+     * those of the whole document.
+     * 
+     * @param positions Position of each token in the document, increasing.
+     * @param length Number of tokens of the whole document.
+     * @see #addDocument(int, String[])
+     */
+    public void addDocument(int docId, String[] tokens, int[] positions, int length) {
+        _accumulator.add(docId, tokens, positions, length);
+    }
+
+    /**
+     * @see #addDocument(int, String[])
+     */
+    public void addDocument(int docId, List<String> tokens) {
+        addDocument(docId, tokens.toArray(new String[tokens.size()]));
+    }
+
+    /**
+     * Record the number of tokens of a document, used to normalize scores.
+     * Documents added through {@link #addDocument(int, String[])} are
+     * recorded automatically. Lengths are written on {@link #commit()}.
+     * This method is thread safe.
+     */
+    public void setDocumentLength(int docId, int length) {
+        _documentLengths.set(docId, length);
+        _pendingLengths.set(docId, length);
+    }
+
+    /**
+     * @return Number of tokens of a document, or -1 if it is unknown.
+     */
+    public int getDocumentLength(int docId) {
+        return _documentLengths.get(docId);
+    }
+
+    /**
+     * @return Number of documents with a known length.
+     */
+    public int getDocumentCount() {
+        return _documentLengths.count();
+    }
+
+    /**
+     * @return Average length of the documents with a known length.
+     */
+    public double getAverageDocumentLength() {
+        return _documentLengths.average();
+    }
+
+    /**
+     * Set how much heap documents added through
+     * {@link #addDocument(int, String[])} may hold before they are written
+     * out as a new batch. Defaults to 64MB.
+     * 
+     * @param bytes Memory budget in bytes.
+     */
+    public void setIndexingMemoryBudget(long bytes) {
+        _accumulator.setMemoryBudget(bytes);
+    }
+
+    /**
+     * Set the codec of batches written by {@link #addDocument(int, String[])}.
+     * Its entry size must be 2. Defaults to
+     * <code>PostingCodec.deltaVByte(2)</code>.
+     */
+    public void setIndexingCodec(PostingCodec codec) {
+        _accumulator.setCodec(codec);
     }
 
     /**
      * Commit all changes within Inverted Index Maps built through this builder
      * to storage.
+     * <p>
+     * The batches created since the last commit become a new segment with
+     * its own Secondary Index, so the cost of a commit depends on the new
+     * batches only, not on the size of the existing index. Segments are
+     * listed in a manifest which is replaced last, so an interrupted commit
+     * leaves the previous state intact. Use {@link #forceMerge(int)} to join
+     * segments once there are many.
+     * <p>
+     * Only batches whose maps are closed are committed. The new segment
+     * ends before the first batch whose map is still open. That batch and
+     * the ones after it are committed by a later commit, once the map is
+     * closed.
      */
     public void commit() {
-        for (IvtMapBase ivt : _ivtCollection) {
+        MetricsListener metrics = _metrics;
+        long commitStart = startTimer(metrics);
+        _accumulator.flush();
+        for (IvtMapBase ivt : openMaps()) {
             ivt.commit();
         }
-        buildSecondIndex();
+        long start = startTimer(metrics);
+        synchronized (_commitLock) {
+            stopTimer(metrics, Phase.LOCK_WAIT, start);
+            Segment segment;
+            DocumentLengths lengths;
+            start = startTimer(metrics);
+            synchronized (this) {
+                stopTimer(metrics, Phase.LOCK_WAIT, start);
+                int end = _openMapIds.isEmpty() ? _mapCount : _openMapIds.first();
+                if (end == _committedMapCount) {
+                    return;
+                }
+                segment = new Segment(_nextSegmentId++, _committedMapCount, end
+                        - _committedMapCount);
+                lengths = _pendingLengths;
+                _pendingLengths = new DocumentLengths();
+            }
+            buildSecondIndex(segment);
+            IndexSnapshot previous = _snapshot;
+            List<Segment> segments = new ArrayList<Segment>(previous.segments);
+            segments.add(segment);
+            try {
+                writeDocumentLengths(lengths, segment);
+                IndexSnapshot snapshot = openSnapshot(segments, previous);
+                buildImpacts(snapshot, segment);
+                _committedMapCount = segment.endMap();
+                writeManifest(segments);
+                publish(snapshot);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        stopTimer(metrics, Phase.COMMIT, commitStart);
     }
 
-    private void buildSecondIndex() {
+    /**
+     * Write the document lengths of a new segment. A file left under its id
+     * by an interrupted commit or merge is removed if there are none.
+     */
+    private void writeDocumentLengths(DocumentLengths lengths, Segment segment)
+            throws IOException {
+        File file = new File(_baseDir, DOC_LENGTH_FILE_PREFIX + segment.id);
+        if (lengths.count() > 0) {
+            lengths.write(file);
+        } else {
+            file.delete();
+        }
+    }
+
+    private void writeManifest(List<Segment> segments) throws IOException {
+        Segment.writeManifest(new File(_baseDir, MANIFEST_FILE), segments, _nextSegmentId);
+    }
+
+    /**
+     * @return Number of committed segments.
+     */
+    public int getSegmentCount() {
+        return _snapshot.segments.size();
+    }
+
+    /**
+     * Write the score bounds of every token of an open segment, see
+     * {@link TermImpacts}. This decodes the integer Posting Lists of the
+     * segment once.
+     * 
+     * @param snapshot Unpublished snapshot holding the segment.
+     */
+    private void buildImpacts(IndexSnapshot snapshot, Segment segment) {
+        MetricsListener metrics = _metrics;
+        long start = startTimer(metrics);
+        File file = new File(_baseDir, IMPACT_FILE_PREFIX + segment.id);
         try {
-            List<Input> objInList = new LinkedList<Input>();
-            List<FileInputStream> streamInList = new LinkedList<FileInputStream>();
-            List<File> objFileList = new LinkedList<File>();
-            for (int i = 0; i < _mapCount; i++) {
-                File secondIdxFile = new File(_baseDir, IDX_OBJ_FILE_PREFIX + i);
-                FileInputStream streamIn = new FileInputStream(secondIdxFile);
-                BufferedInputStream bin = new BufferedInputStream(streamIn);
-                Input oin = new Input(bin);
-                streamInList.add(streamIn);
-                objInList.add(oin);
-                objFileList.add(secondIdxFile);
-            }
-
-            DataOutputStream sIdxOut = new DataOutputStream(new BufferedOutputStream(
-                    new FileOutputStream(new File(_baseDir, SE_IDX_FILE_PREFIX))));
-
-            Map<String, Integer> tokenMap = new LinkedHashMap<String, Integer>();
-            for (int i = 0; i < _mapCount; i++) {
-                Input ois = objInList.get(i);
-                while (ois.available() > 0) {
-                    SecondIndexObject sio = (SecondIndexObject) kryo.readObject(ois,
-                            SecondIndexObject.class);
-                    String token = sio.getToken();
-                    if (!tokenMap.containsKey(token)) {
-                        tokenMap.put(token, tokenMap.size());
-                    }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+            ByteArrayDataOutput record = new ByteArrayDataOutput();
+            ByteArrayDataOutput table = new ByteArrayDataOutput();
+            long written = 0;
+            TermDictionary.Cursor cursor = segment.dictionary.cursor();
+            while (cursor.next()) {
+                PostingsCursor postings = getPostingsCursor(snapshot, readSecondIndexRecord(
+                        segment, cursor.value()), null);
+                if (postings == null) {
+                    table.writeLong(-1);
+                    continue;
                 }
+                table.writeLong(written);
+                record.reset();
+                TermImpacts.write(postings, _documentLengths, record);
+                out.write(record.bytes(), 0, record.size());
+                written += record.size();
             }
+            out.write(table.bytes(), 0, table.size());
+            out.writeInt(segment.dictionary.size());
+            out.writeLong(written);
+            out.writeInt(IMPACT_MAGIC);
+            out.close();
+            openImpacts(segment);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        stopTimer(metrics, Phase.IMPACTS, start);
+    }
 
-            Utils.writeObjectToFile(new File(_baseDir, IDX_FILE_PREFIX), tokenMap);
+    /**
+     * Build the Secondary Index of a new segment out of the index object files
+     * of its batches.
+     * <p>
+     * The Secondary Index is sparse: for every token it holds a single record
+     * of <code>[int count][int mapId, long offset, int length] * count</code>
+     * listing only the batches which actually contain that token. Records are
+     * written in token order after a magic, and the <code>idx</code> term
+     * dictionary of the segment maps each token to the byte offset of its
+     * record.
+     * <p>
+     * Each index object file is read once. Its records go through an external
+     * sort bounded by the commit memory budget, and the sorted stream is
+     * written out in a single pass. The batches are split into contiguous
+     * ranges which are read and sorted on parallel threads, and the sorted
+     * ranges are merged in batch order while writing.
+     */
+    private void buildSecondIndex(Segment segment) {
+        MetricsListener metrics = _metrics;
+        long start = startTimer(metrics);
+        int groupCount = Math.max(1, Math.min(_commitThreads, segment.mapCount));
+        List<SecondIndexSorter> sorters = new ArrayList<SecondIndexSorter>();
+        for (int g = 0; g < groupCount; g++) {
+            sorters.add(new SecondIndexSorter(_baseDir, _commitMemoryBudget / groupCount, g));
+        }
+        try {
+            SecondIndexSorter.Records records = SecondIndexSorter.merge(sortIndexObjects(
+                    segment, sorters));
+            stopTimer(metrics, Phase.SECOND_INDEX_READ, start);
+            start = startTimer(metrics);
+
+            IndexOutput sIdxOut = new IndexOutput(new File(_baseDir, SE_IDX_FILE_PREFIX
+                    + segment.id));
+            sIdxOut.writeInt(SE_IDX_MAGIC);
+            TermDictionaryWriter dictionaryOut = new TermDictionaryWriter(new File(_baseDir,
+                    IDX_FILE_PREFIX + segment.id));
+            byte[] token = new byte[32];
+            int tokenLength = -1;
+            int[] entries = new int[16 * SE_IDX_ENTRY_INTS];
+            int entryInts = 0;
+            while (true) {
+                boolean more = records.next();
+                if (tokenLength >= 0
+                        && (!more || TermDictionary.compare(token, tokenLength, records.term,
+                                records.termLength) != 0)) {
+                    dictionaryOut.add(token, tokenLength, sIdxOut.position());
+                    sIdxOut.writeInt(entryInts / SE_IDX_ENTRY_INTS);
+                    for (int j = 0; j < entryInts; j++) {
+                        sIdxOut.writeInt(entries[j]);
+                    }
+                    entryInts = 0;
+                }
+                if (!more) {
+                    break;
+                }
+                if (entryInts == 0) {
+                    if (token.length < records.termLength) {
+                        token = new byte[Math.max(records.termLength, token.length * 2)];
+                    }
+                    System.arraycopy(records.term, 0, token, 0, records.termLength);
+                    tokenLength = records.termLength;
+                }
+                if (entryInts + SE_IDX_ENTRY_INTS > entries.length) {
+                    entries = Arrays.copyOf(entries, entries.length * 2);
+                }
+                setFragment(entries, entryInts, records.mapId, records.offset, records.length);
+                entryInts += SE_IDX_ENTRY_INTS;
+            }
+            sIdxOut.flush();
+            sIdxOut.close();
+            dictionaryOut.close();
 
-            for (FileInputStream fis : streamInList) {
-                fis.close();
+            for (int i = segment.firstMap; i < segment.endMap(); i++) {
+                new File(_baseDir, IDX_OBJ_FILE_PREFIX + i).delete();
             }
-            objInList.clear();
-            streamInList.clear();
-            for (File file : objFileList) {
-                FileInputStream streamIn = new FileInputStream(file);
-                BufferedInputStream bin = new BufferedInputStream(streamIn);
-                Input oin = new Input(bin);
-                streamInList.add(streamIn);
-                objInList.add(oin);
+            stopTimer(metrics, Phase.SECOND_INDEX_WRITE, start);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SecondIndexSorter sorter : sorters) {
+                sorter.close();
             }
+        }
+    }
 
-            for (int i = 0; i < _mapCount; i++) {
-                Input ois = objInList.get(i);
-                for (String key : tokenMap.keySet()) {
-                    tokenMap.put(key, -1);
+    /**
+     * Read the index object files of a segment, each sorter taking the next
+     * contiguous range of batches. Sorters run on threads of their own when
+     * there are several.
+     * 
+     * @return Sorted records of each sorter, in batch order.
+     */
+    private List<SecondIndexSorter.Records> sortIndexObjects(Segment segment,
+            List<SecondIndexSorter> sorters) throws IOException {
+        int groupCount = sorters.size();
+        if (groupCount == 1) {
+            return Collections.singletonList(readIndexObjects(sorters.get(0), segment.firstMap,
+                    segment.endMap()));
+        }
+        List<Callable<SecondIndexSorter.Records>> tasks =
+                new ArrayList<Callable<SecondIndexSorter.Records>>();
+        for (int g = 0; g < groupCount; g++) {
+            final SecondIndexSorter sorter = sorters.get(g);
+            final int from = segment.firstMap + (int) ((long) segment.mapCount * g / groupCount);
+            final int to = segment.firstMap
+                    + (int) ((long) segment.mapCount * (g + 1) / groupCount);
+            tasks.add(new Callable<SecondIndexSorter.Records>() {
+                @Override
+                public SecondIndexSorter.Records call() throws IOException {
+                    return readIndexObjects(sorter, from, to);
                 }
-                while (ois.available() > 0) {
-                    SecondIndexObject sio = (SecondIndexObject) kryo.readObject(ois,
-                            SecondIndexObject.class);
-                    String token = sio.getToken();
-                    int offset = sio.getOffset();
-                    tokenMap.put(token, offset);
+            });
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(groupCount);
+        try {
+            List<SecondIndexSorter.Records> result = new ArrayList<SecondIndexSorter.Records>();
+            for (Future<SecondIndexSorter.Records> future : pool.invokeAll(tasks)) {
+                result.add(future.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sorting the Secondary Index.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Add the records of the index object files of batches
+     * <code>[from, to)</code> to a sorter.
+     * 
+     * @return The sorted records.
+     */
+    private SecondIndexSorter.Records readIndexObjects(SecondIndexSorter sorter, int from,
+            int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            IndexObjectFile.Reader in = new IndexObjectFile.Reader(new File(_baseDir,
+                    IDX_OBJ_FILE_PREFIX + i));
+            try {
+                while (in.next()) {
+                    sorter.add(in.term, in.termLength, i, in.offset, in.length);
                 }
-                for (String key : tokenMap.keySet()) {
-                    sIdxOut.writeInt(tokenMap.get(key));
+            } finally {
+                in.close();
+            }
+        }
+        return sorter.sort();
+    }
+
+    /**
+     * Close this builder. Maps still open are closed first, so their batches
+     * are committed too.
+     */
+    public void close() {
+        for (IvtMapBase ivt : openMaps()) {
+            ivt.close();
+        }
+        commit();
+        closeInputs();
+    }
+
+    /**
+     * Merge all batches of an existing index into a single one.
+     * 
+     * @see #forceMerge(int, PostingCodec)
+     */
+    public void merge() {
+        forceMerge(1);
+    }
+
+    /**
+     * Merge all segments of an existing index into one of at most
+     * <code>maxBatches</code> batches, keeping the codec of the first batch
+     * of each merged group.
+     * 
+     * @see #forceMerge(int, PostingCodec)
+     */
+    public void forceMerge(int maxBatches) {
+        forceMerge(maxBatches, null);
+    }
+
+    /**
+     * Merge all segments of an existing index into one of at most
+     * <code>maxBatches</code> batches.
+     * <p>
+     * Pending changes are committed first. Consecutive batches are grouped and
+     * the dictionaries of all segments are streamed token by token: the
+     * fragments of a token in each group are read, concatenated in batch
+     * order and written as one Posting List, so a lookup afterwards needs one
+     * read per group. Only one token is held in memory at a time. The result
+     * is a single segment, with its Secondary Index rewritten to match. An
+     * interrupted merge leaves the index as it was before.
+     * <p>
+     * All Inverted Index Maps of this builder must be closed.
+     * 
+     * @param maxBatches Number of batches of the merged segment at most.
+     * @param codec Codec of the merged Posting Lists, or null to keep the
+     *            codec of the first batch of each group.
+     */
+    public void forceMerge(int maxBatches, PostingCodec codec) {
+        if (maxBatches < 1) {
+            throw new IllegalArgumentException("maxBatches must be positive: " + maxBatches);
+        }
+        if (!openMaps().isEmpty()) {
+            throw new IllegalStateException("Close all Inverted Index Maps before merging.");
+        }
+        commit();
+        MetricsListener metrics = _metrics;
+        long start = startTimer(metrics);
+        synchronized (_commitLock) {
+            stopTimer(metrics, Phase.LOCK_WAIT, start);
+            List<Segment> segments = _snapshot.segments;
+            if (segments.isEmpty()) {
+                throw new IllegalStateException("Merging needs a committed index.");
+            }
+            int batchCount = _snapshot.batchCount();
+            if (batchCount <= maxBatches && segments.size() == 1) {
+                return;
+            }
+            start = startTimer(metrics);
+            mergeSegments(Math.min(maxBatches, batchCount), codec);
+            stopTimer(metrics, Phase.MERGE, start);
+        }
+    }
+
+    /**
+     * Merge all segments into a new one of <code>groupCount</code> batches.
+     * <p>
+     * The merged batches and segment get ids of their own, so no file of the
+     * old segments is overwritten. Only once all merged files are written is
+     * the manifest switched to the new segment, and only then are the files
+     * of the old segments deleted. A merge interrupted at any point leaves
+     * either the old or the new index listed in the manifest, with all of
+     * its files.
+     */
+    private void mergeSegments(int groupCount, PostingCodec codec) {
+        IndexSnapshot previous = _snapshot;
+        int batchCount = previous.batchCount();
+        int[] groupOf = new int[previous.endMap()];
+        PostingCodec[] groupCodec = new PostingCodec[groupCount];
+        boolean[] groupIsByte = new boolean[groupCount];
+        int batch = batchCount;
+        for (int s = previous.segments.size() - 1; s >= 0; s--) {
+            Segment old = previous.segments.get(s);
+            for (int i = old.endMap() - 1; i >= old.firstMap; i--) {
+                int group = (int) ((long) --batch * groupCount / batchCount);
+                groupOf[i] = group;
+                groupIsByte[group] = previous.codec(i) == null;
+                groupCodec[group] = groupIsByte[group] || codec == null ? previous.codec(i)
+                        : codec;
+            }
+        }
+        for (Segment old : previous.segments) {
+            for (int i = old.firstMap; i < old.endMap(); i++) {
+                if ((previous.codec(i) == null) != groupIsByte[groupOf[i]]) {
+                    throw new IllegalStateException(
+                            "Cannot merge integer and byte Posting Lists.");
                 }
             }
+        }
+
+        // Batches created by a merge follow all existing ones. They count as
+        // committed even if the merge fails, so later commits skip them.
+        int firstMap;
+        synchronized (this) {
+            if (_mapCount != _committedMapCount) {
+                throw new IllegalStateException(
+                        "Close all Inverted Index Maps before merging.");
+            }
+            firstMap = _mapCount;
+            _mapCount += groupCount;
+            _committedMapCount = _mapCount;
+        }
+        Segment segment = new Segment(_nextSegmentId++, firstMap, groupCount);
+        try {
+            List<IndexOutput> outList = new ArrayList<IndexOutput>();
+            for (int g = 0; g < groupCount; g++) {
+                outList.add(createPostList(new File(_baseDir, POST_LIST_PREFIX + (firstMap + g)),
+                        groupCodec[g], _asyncWrites));
+            }
+            IndexOutput sIdxOut = new IndexOutput(new File(_baseDir, SE_IDX_FILE_PREFIX
+                    + segment.id));
+            sIdxOut.writeInt(SE_IDX_MAGIC);
+
+            TermDictionaryWriter dictionaryOut = new TermDictionaryWriter(new File(_baseDir,
+                    IDX_FILE_PREFIX + segment.id));
 
-            for (File f : objFileList) {
-                f.delete();
+            BloomFilter.Collector[] bloomFilters = new BloomFilter.Collector[groupCount];
+            for (int g = 0; g < groupCount; g++) {
+                bloomFilters[g] = new BloomFilter.Collector();
+            }
+
+            PostingBuffer buffer = new PostingBuffer();
+            ByteArrayDataOutput record = new ByteArrayDataOutput();
+            int[] merged = new int[groupCount * SE_IDX_ENTRY_INTS];
+            Segment.MergedCursor cursor = new Segment.MergedCursor(previous.segments);
+            while (cursor.next()) {
+                String term = cursor.term();
+                int[] entries = readSecondIndexRecord(cursor.segment(0), cursor.value(0));
+                for (int i = 1; i < cursor.segmentCount(); i++) {
+                    entries = concat(entries, readSecondIndexRecord(cursor.segment(i),
+                            cursor.value(i)));
+                }
+                int mergedCount = 0;
+                int from = 0;
+                while (from < entries.length) {
+                    int group = groupOf[entries[from]];
+                    int to = from;
+                    while (to < entries.length && groupOf[entries[to]] == group) {
+                        to += SE_IDX_ENTRY_INTS;
+                    }
+                    record.reset();
+                    mergeFragments(previous, entries, from, to, groupCodec[group], buffer,
+                            record);
+                    IndexOutput out = outList.get(group);
+                    setFragment(merged, mergedCount, firstMap + group, out.position(),
+                            record.size());
+                    mergedCount += SE_IDX_ENTRY_INTS;
+                    out.write(record.bytes(), 0, record.size());
+                    bloomFilters[group].add(term);
+                    from = to;
+                }
+                dictionaryOut.add(cursor.termBytes(), cursor.termLength(), sIdxOut.position());
+                sIdxOut.writeInt(mergedCount / SE_IDX_ENTRY_INTS);
+                for (int i = 0; i < mergedCount; i++) {
+                    sIdxOut.writeInt(merged[i]);
+                }
+            }
+            for (IndexOutput out : outList) {
+                out.close();
             }
-            sIdxOut.flush();
             sIdxOut.close();
+            dictionaryOut.close();
+            for (int g = 0; g < groupCount; g++) {
+                bloomFilters[g].build().write(
+                        new File(_baseDir, BLOOM_FILE_PREFIX + (firstMap + g)));
+            }
+            writeDocumentLengths(_documentLengths, segment);
+
+            List<Segment> segments = Collections.singletonList(segment);
+            IndexSnapshot snapshot = openSnapshot(segments, previous);
+            buildImpacts(snapshot, segment);
+            writeManifest(segments);
+            publish(snapshot);
+            // Lookups still reading the old segments keep their files open.
+            // Files which cannot be deleted yet are deleted on the next load.
+            for (Segment old : previous.segments) {
+                deleteFiles(old);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Close this builder.
+     * Delete the files of a segment which is no longer listed in the
+     * manifest, along with those of its batches.
      */
-    public void close() {
-        commit();
-        for (IvtMapBase ivt : _ivtCollection) {
-            ivt.close();
+    private void deleteFiles(Segment segment) {
+        for (String prefix : SEGMENT_FILE_PREFIXES) {
+            new File(_baseDir, prefix + segment.id).delete();
+        }
+        for (int i = segment.firstMap; i < segment.endMap(); i++) {
+            for (String prefix : BATCH_FILE_PREFIXES) {
+                new File(_baseDir, prefix + i).delete();
+            }
         }
     }
 
+    /**
+     * Delete the files of segments and batches which an earlier merge
+     * replaced but could not delete, because it was interrupted or the files
+     * were still open. Only ids below those the manifest hands out next are
+     * considered, so files of batches still being written are kept.
+     */
+    private void deleteUnusedFiles(List<Segment> segments) {
+        Set<Integer> segmentIds = new HashSet<Integer>();
+        boolean[] liveMaps = new boolean[_committedMapCount];
+        for (Segment segment : segments) {
+            segmentIds.add(segment.id);
+            Arrays.fill(liveMaps, segment.firstMap, segment.endMap(), true);
+        }
+        String[] names = _baseDir.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            for (String prefix : SEGMENT_FILE_PREFIXES) {
+                int id = parseId(name, prefix);
+                if (id >= 0 && id < _nextSegmentId && !segmentIds.contains(id)) {
+                    new File(_baseDir, name).delete();
+                }
+            }
+            for (String prefix : BATCH_FILE_PREFIXES) {
+                int id = parseId(name, prefix);
+                if (id >= 0 && id < _committedMapCount && !liveMaps[id]) {
+                    new File(_baseDir, name).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The id in a file name made of a prefix and a number, or -1 if
+     *         the name is not of that form.
+     */
+    private static int parseId(String name, String prefix) {
+        int length = name.length();
+        if (!name.startsWith(prefix) || length == prefix.length()
+                || length - prefix.length() > 9) {
+            return -1;
+        }
+        for (int i = prefix.length(); i < length; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        return Integer.parseInt(name.substring(prefix.length()));
+    }
+
+    /**
+     * Concatenate the fragments <code>entries[from, to)</code> of one token
+     * into one record.
+     */
+    private static void mergeFragments(IndexSnapshot snapshot, int[] entries, int from,
+            int to, PostingCodec codec, PostingBuffer buffer, ByteArrayDataOutput record)
+            throws IOException {
+        int first = entries[from];
+        if (to - from == SE_IDX_ENTRY_INTS
+                && (codec == null || codec.equals(snapshot.codec(first)))) {
+            // A single fragment in the target format is copied as is.
+            int length = fragmentLength(entries, from);
+            byte[] bytes = buffer.bytes(length);
+            snapshot.input(first).readFully(fragmentOffset(entries, from), bytes, 0, length);
+            record.writeBytes(bytes, 0, length);
+            return;
+        }
+        if (codec == null) {
+            record.writeInt(0);
+            int count = 0;
+            for (int i = from; i < to; i += SE_IDX_ENTRY_INTS) {
+                int length = fragmentLength(entries, i) - Integer.SIZE / 8;
+                byte[] bytes = buffer.bytes(length);
+                snapshot.input(entries[i]).readFully(
+                        fragmentOffset(entries, i) + Integer.SIZE / 8, bytes, 0, length);
+                record.writeBytes(bytes, 0, length);
+                count += length;
+            }
+            record.setInt(0, count);
+            return;
+        }
+        buffer.clear();
+        for (int i = from; i < to; i += SE_IDX_ENTRY_INTS) {
+            int length = fragmentLength(entries, i);
+            byte[] bytes = buffer.bytes(length);
+            snapshot.input(entries[i]).readFully(fragmentOffset(entries, i), bytes, 0, length);
+            snapshot.codec(entries[i]).decode(bytes, 0, length, buffer);
+        }
+        codec.encode(buffer.array(), 0, buffer.size(), record);
+    }
+
     /**
      * Interface for IvtMapBase
+     * <p>
+     * Besides its Posting List file, every new map owns the writer of its
+     * index object file and the serializer for it, so writing never contends
+     * with other maps.
      * 
      * @author owwlo
      */
     private static abstract class IvtMapBase {
+        private IndexObjectFile.Writer secondIdxOut;
+        private BloomFilter.Collector bloomFilter;
+        private File bloomFile;
+
         public abstract void commit();
 
         public abstract void close();
+
+        void openSecondIndexOutput(File dir, int mapId, boolean async) {
+            try {
+                bloomFilter = new BloomFilter.Collector();
+                bloomFile = new File(dir, BLOOM_FILE_PREFIX + mapId);
+                File file = new File(dir, IDX_OBJ_FILE_PREFIX + mapId);
+                secondIdxOut = new IndexObjectFile.Writer(async ? new AsyncFileOutputStream(file)
+                        : new BufferedOutputStream(new FileOutputStream(file)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void ensureOpen() {
+            if (secondIdxOut == null) {
+                throw new IllegalStateException("Inverted Index Map is closed.");
+            }
+        }
+
+        void writeIndex(String token, long offset, int length) {
+            try {
+                secondIdxOut.write(token, offset, length);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            bloomFilter.add(token);
+        }
+
+        void closeSecondIndexOutput() {
+            if (secondIdxOut != null) {
+                try {
+                    secondIdxOut.close();
+                    bloomFilter.build().write(bloomFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                secondIdxOut = null;
+                bloomFilter = null;
+            }
+        }
     }
 
     public static class IvtMapInteger extends IvtMapBase implements Map<String, List<Integer>> {
-        private DataOutputStream postListOut;
+        private IndexOutput postListOut;
         private File pstlFile;
         private boolean isNew;
         private int mapId;
-        private Map<String, Integer> seIdxMap;
         private InvertedIndexBuilder builder;
+        private PostingCodec codec;
+        private int[] intScratch = new int[0];
+        private ByteArrayDataOutput recordScratch = new ByteArrayDataOutput();
 
-        private IvtMapInteger(File dir, int mapId, boolean isNew, Map<String, Integer> idxMap,
+        private IvtMapInteger(File dir, int mapId, boolean isNew, PostingCodec codec,
                 InvertedIndexBuilder builder) {
             this.isNew = isNew;
             this.mapId = mapId;
-            this.seIdxMap = idxMap;
+            this.codec = codec;
             this.builder = builder;
-            pstlFile = new File(dir, POST_LIST_PREFIX + mapId);
-            if (isNew) {
-                createNewMap(pstlFile);
-            }
-        }
-
-        private void createNewMap(File file) {
-            try {
-                postListOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
-                        file, false)));
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+            pstlFile = new File(dir, POST_LIST_PREFIX + mapId);
+            if (isNew) {
+                postListOut = createPostList(pstlFile, codec, builder._asyncWrites);
+                openSecondIndexOutput(dir, mapId, builder._asyncWrites);
             }
         }
 
@@ -315,10 +1330,7 @@ public class InvertedIndexBuilder {
 
         @Override
         public boolean containsKey(Object key) {
-            if (seIdxMap.containsKey(key)) {
-                return true;
-            }
-            return false;
+            return builder.containsToken(key);
         }
 
         @Override
@@ -333,33 +1345,143 @@ public class InvertedIndexBuilder {
 
         @Override
         public List<Integer> get(Object key) {
-            return builder.getPostingListInteger(key.toString(), mapId);
+            PostingBuffer buffer = get(key.toString(), new PostingBuffer());
+            List<Integer> result = new ArrayList<Integer>(buffer.size());
+            int[] values = buffer.array();
+            for (int i = 0; i < buffer.size(); i++) {
+                result.add(values[i]);
+            }
+            return result;
+        }
+
+        /**
+         * Get the Posting List of a token as primitive ints.
+         * 
+         * @param key Token to look up.
+         * @return A new array, empty if the token does not exist.
+         */
+        public int[] getInts(String key) {
+            return get(key, new PostingBuffer()).toArray();
+        }
+
+        /**
+         * Get the Posting List of a token into a reusable buffer.
+         * 
+         * @param key Token to look up.
+         * @param reuse Buffer to fill. It is cleared first.
+         * @return <code>reuse</code>
+         */
+        public PostingBuffer get(String key, PostingBuffer reuse) {
+            reuse.clear();
+            builder.getPostingListInteger(key, reuse);
+            return reuse;
+        }
+
+        /**
+         * Stream the Posting List of a token without materializing it.
+         * <p>
+         * The cursor reads the index as committed when it is opened, even
+         * after later commits, merges or closing the builder. It keeps the
+         * files of that index open until it is exhausted or
+         * {@link PostingsCursor#close() closed}.
+         * 
+         * @param key Token to look up.
+         * @return A cursor positioned before the first document. It is empty
+         *         if the token does not exist.
+         */
+        public PostingsCursor cursor(String key) {
+            return builder.getPostingsCursor(key);
+        }
+
+        /**
+         * @param key Token to look up.
+         * @return Score bounds of the Posting List of a token, written at
+         *         commit time, or null if there are none.
+         */
+        public TermImpacts impacts(String key) {
+            return builder.getTermImpacts(key);
+        }
+
+        /**
+         * Get the Posting Lists of several tokens with fewer, mostly
+         * sequential reads than looking them up one by one.
+         * 
+         * @param keys Tokens to look up.
+         * @return Posting List of every distinct token in <code>keys</code>,
+         *         in the order of <code>keys</code>. Empty for tokens which
+         *         do not exist.
+         */
+        public Map<String, int[]> getAll(Collection<String> keys) {
+            return builder.getPostingListsInteger(keys);
         }
 
         @Override
         public boolean isEmpty() {
-            return seIdxMap.isEmpty();
+            return builder._tokenOffsetMap.isEmpty();
         }
 
         @Override
         public Set<String> keySet() {
-            return seIdxMap.keySet();
+            return builder._tokenOffsetMap.keySet();
         }
 
         @Override
         synchronized public List<Integer> put(String key, List<Integer> value) {
-            int offset = postListOut.size();
             int size = value.size();
-            builder.writeIndex(key, offset, mapId);
-            try {
-                postListOut.writeInt(size);
-                for (int integer : value) {
-                    postListOut.writeInt(integer);
+            if (intScratch.length < size) {
+                intScratch = new int[Math.max(size, intScratch.length * 2)];
+            }
+            int i = 0;
+            for (int integer : value) {
+                intScratch[i++] = integer;
+            }
+            put(key, intScratch, 0, size);
+            return value;
+        }
+
+        public void put(String key, int[] value) {
+            put(key, value, 0, value.length);
+        }
+
+        public void put(String key, IntBuffer value) {
+            if (value.hasArray()) {
+                put(key, value.array(), value.arrayOffset() + value.position(),
+                        value.remaining());
+                return;
+            }
+            synchronized (this) {
+                int size = value.remaining();
+                if (intScratch.length < size) {
+                    intScratch = new int[Math.max(size, intScratch.length * 2)];
                 }
+                value.duplicate().get(intScratch, 0, size);
+                put(key, intScratch, 0, size);
+            }
+        }
+
+        /**
+         * Put the Posting List of a token without boxing.
+         * 
+         * @param key Token.
+         * @param value Array holding the Posting List.
+         * @param offset Index of the first value in <code>value</code>.
+         * @param length Number of values.
+         */
+        synchronized public void put(String key, int[] value, int offset, int length) {
+            ensureOpen();
+            MetricsListener metrics = builder._metrics;
+            long start = startTimer(metrics);
+            recordScratch.reset();
+            codec.encode(value, offset, length, recordScratch);
+            stopTimer(metrics, Phase.ENCODE, start);
+            writeIndex(key, postListOut.position(), recordScratch.size());
+            start = startTimer(metrics);
+            try {
+                postListOut.write(recordScratch.bytes(), 0, recordScratch.size());
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            return value;
+            stopTimer(metrics, Phase.FLUSH, start);
         }
 
         @Override
@@ -369,6 +1491,17 @@ public class InvertedIndexBuilder {
             }
         }
 
+        /**
+         * Put all Posting Lists of a batch without boxing.
+         * 
+         * @param m Map from token to its Posting List.
+         */
+        public void putAllInts(Map<String, int[]> m) {
+            for (Map.Entry<String, int[]> entry : m.entrySet()) {
+                this.put(entry.getKey(), entry.getValue());
+            }
+        }
+
         @Override
         public List<Integer> remove(Object key) {
             throw new UnsupportedOperationException();
@@ -385,17 +1518,20 @@ public class InvertedIndexBuilder {
         }
 
         @Override
-        public void close() {
+        synchronized public void close() {
             try {
-                if (isNew) {
-                    postListOut.flush();
-                    postListOut.close();
+                if (isNew && postListOut != null) {
+                    closePostList(postListOut, mapId, builder._metrics);
+                    postListOut = null;
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            builder._ivtCollection.remove(this);
-            builder.closeForIvtMap(mapId);
+            closeSecondIndexOutput();
+            if (isNew) {
+                builder.releaseMapId(mapId);
+            }
+            builder.unregister(this);
         }
 
         @Override
@@ -404,37 +1540,30 @@ public class InvertedIndexBuilder {
             this.close();
         }
 
+        /**
+         * Does nothing. The batch of a map is committed by
+         * {@link InvertedIndexBuilder#commit()} once the map is closed.
+         */
         @Override
         public void commit() {
         }
     }
 
     public static class IvtMapByte extends IvtMapBase implements Map<String, List<Byte>> {
-        private DataOutputStream postListOut;
+        private IndexOutput postListOut;
         private File pstlFile;
         private boolean isNew;
         private int mapId;
-        private Map<String, Integer> seIdxMap;
         private InvertedIndexBuilder builder;
 
-        private IvtMapByte(File dir, int mapId, boolean isNew, Map<String, Integer> idxMap,
-                InvertedIndexBuilder builder) {
+        private IvtMapByte(File dir, int mapId, boolean isNew, InvertedIndexBuilder builder) {
             this.isNew = isNew;
             this.mapId = mapId;
-            this.seIdxMap = idxMap;
             this.builder = builder;
             pstlFile = new File(dir, POST_LIST_PREFIX + mapId);
             if (isNew) {
-                createNewMap(pstlFile);
-            }
-        }
-
-        private void createNewMap(File file) {
-            try {
-                postListOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
-                        file, false)));
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
+                postListOut = createPostList(pstlFile, null, builder._asyncWrites);
+                openSecondIndexOutput(dir, mapId, builder._asyncWrites);
             }
         }
 
@@ -444,10 +1573,7 @@ public class InvertedIndexBuilder {
 
         @Override
         public boolean containsKey(Object key) {
-            if (seIdxMap.containsKey(key)) {
-                return true;
-            }
-            return false;
+            return builder.containsToken(key);
         }
 
         @Override
@@ -467,19 +1593,22 @@ public class InvertedIndexBuilder {
 
         @Override
         public boolean isEmpty() {
-            return seIdxMap.isEmpty();
+            return builder._tokenOffsetMap.isEmpty();
         }
 
         @Override
         public Set<String> keySet() {
-            return seIdxMap.keySet();
+            return builder._tokenOffsetMap.keySet();
         }
 
         @Override
         synchronized public List<Byte> put(String key, List<Byte> value) {
-            int offset = postListOut.size();
+            ensureOpen();
+            long offset = postListOut.position();
             int size = value.size();
-            builder.writeIndex(key, offset, mapId);
+            writeIndex(key, offset, size + Integer.SIZE / 8);
+            MetricsListener metrics = builder._metrics;
+            long start = startTimer(metrics);
             try {
                 postListOut.writeInt(size);
                 for (Byte bt : value) {
@@ -488,6 +1617,7 @@ public class InvertedIndexBuilder {
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            stopTimer(metrics, Phase.FLUSH, start);
             return value;
         }
 
@@ -514,17 +1644,20 @@ public class InvertedIndexBuilder {
         }
 
         @Override
-        public void close() {
+        synchronized public void close() {
             try {
-                if (isNew) {
-                    postListOut.flush();
-                    postListOut.close();
+                if (isNew && postListOut != null) {
+                    closePostList(postListOut, mapId, builder._metrics);
+                    postListOut = null;
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            builder._ivtCollection.remove(this);
-            builder.closeForIvtMap(mapId);
+            closeSecondIndexOutput();
+            if (isNew) {
+                builder.releaseMapId(mapId);
+            }
+            builder.unregister(this);
         }
 
         @Override
@@ -533,109 +1666,647 @@ public class InvertedIndexBuilder {
             this.close();
         }
 
+        /**
+         * Does nothing. The batch of a map is committed by
+         * {@link InvertedIndexBuilder#commit()} once the map is closed.
+         */
         @Override
         public void commit() {
         }
     }
 
-    synchronized private void writeIndex(String token, int offset, int mapId) {
-        SecondIndexObject sio = new SecondIndexObject(token, offset);
-        kryo.writeObject(_secondIdxOutputObjectStreamMap.get(mapId), sio);
-    }
-
-    synchronized private void closeForIvtMap(int mapId) {
-        Output out = _secondIdxOutputObjectStreamMap.get(mapId);
+    /**
+     * Close the Posting List file of a new map and report its size.
+     */
+    private static void closePostList(IndexOutput out, int mapId, MetricsListener metrics)
+            throws IOException {
+        long start = startTimer(metrics);
+        out.flush();
         out.close();
-        _secondIdxOutputObjectStreamMap.remove(mapId);
+        stopTimer(metrics, Phase.FLUSH, start);
+        if (metrics != null) {
+            metrics.postingListWritten(mapId, out.position());
+        }
     }
 
-    synchronized private List<Integer> getOffsets(String token) {
-        List<Integer> offsets = new ArrayList<Integer>();
-        if (!_tokenMap.containsKey(token)) {
-            return offsets;
-        }
-        int seIdxOffset = _tokenMap.get(token);
+    /**
+     * Create a Posting List file and write its header.
+     * 
+     * @param codec Codec of the file, or null for a file of byte lists.
+     * @param async Whether to write from a background thread.
+     */
+    private static IndexOutput createPostList(File file, PostingCodec codec, boolean async) {
+        IndexOutput out = null;
         try {
-            for (int i = 0; i < _mapCount; i++) {
-                _seIdxIn.seek(_tokenMap.size() * Integer.SIZE / 8 * i + seIdxOffset * Integer.SIZE
-                        / 8);
-                int offset = _seIdxIn.readInt();
-                offsets.add(offset);
-            }
+            out = new IndexOutput(file, async);
+            out.writeInt(POST_LIST_MAGIC);
+            out.writeByte(codec == null ? BYTE_LIST_ID : codec.getId());
+            out.writeByte(codec == null ? 1 : codec.getEntrySize());
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return offsets;
+        return out;
     }
 
-    synchronized private List<Integer> getPostingListInteger(String token, int mapId) {
-        List<Integer> offsets = getOffsets(token);
-        List<Integer> result = new ArrayList<Integer>();
+    /**
+     * Read the Secondary Index record of a token.
+     * 
+     * @param token Token to look up.
+     * @return <code>mapId, offset, length</code> of every Posting List
+     *         fragment holding this token, in batch order, in
+     *         {@link #SE_IDX_ENTRY_INTS} ints each.
+     */
+    private static int[] getOffsets(IndexSnapshot snapshot, String token) {
+        long hash = BloomFilter.hash(token);
+        int[] entries = new int[0];
         try {
-            for (int i = 0; i < offsets.size(); i++) {
-                int offset = offsets.get(i);
-                if (offset == -1) {
+            for (Segment segment : snapshot.segments) {
+                if (!mightContain(snapshot, segment, hash)) {
                     continue;
                 }
-                RandomAccessFile raf = _ivtiMapInList.get(i);
-                raf.seek(offset);
-                int length = raf.readInt();
-                for (int j = 0; j < length; j++) {
-                    result.add(raf.readInt());
+                long seIdxOffset = segment.dictionary.get(token);
+                if (seIdxOffset >= 0) {
+                    entries = concat(entries, readSecondIndexRecord(segment, seIdxOffset));
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        return entries;
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
         return result;
     }
 
-    synchronized private List<Byte> getPostingListByte(String token, int mapId) {
-        List<Integer> offsets = getOffsets(token);
-        List<Byte> result = new ArrayList<Byte>();
+    /**
+     * Check the Bloom filters of all Posting List files.
+     * 
+     * @return False if no Posting List file can hold this token, so the
+     *         dictionary does not need to be searched.
+     */
+    private static boolean mightContain(IndexSnapshot snapshot, String token) {
+        long hash = BloomFilter.hash(token);
+        for (Segment segment : snapshot.segments) {
+            if (mightContain(snapshot, segment, hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check the Bloom filters of the Posting List files of a segment.
+     * 
+     * @param hash Hash of the token, see {@link BloomFilter#hash(String)}.
+     */
+    private static boolean mightContain(IndexSnapshot snapshot, Segment segment, long hash) {
+        for (int i = segment.firstMap; i < segment.endMap(); i++) {
+            BloomFilter filter = snapshot.bloomFilter(i);
+            if (filter == null || filter.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsToken(Object key) {
+        IndexSnapshot snapshot = acquire();
         try {
-            for (int i = 0; i < offsets.size(); i++) {
-                int offset = offsets.get(i);
-                if (offset == -1) {
-                    continue;
-                }
-                RandomAccessFile raf = _ivtiMapInList.get(i);
-                raf.seek(offset);
-                int length = raf.readInt();
-                for (int j = 0; j < length; j++) {
-                    result.add(raf.readByte());
-                }
+            if (key instanceof String && !mightContain(snapshot, (String) key)) {
+                return false;
             }
+            return snapshot.tokenMap.containsKey(key);
+        } finally {
+            release(snapshot);
+        }
+    }
+
+    private static int[] readSecondIndexRecord(Segment segment, long seIdxOffset) {
+        try {
+            int count = segment.seIdxIn.readInt(seIdxOffset);
+            byte[] bytes = new byte[count * SE_IDX_ENTRY_INTS * Integer.SIZE / 8];
+            segment.seIdxIn.readFully(seIdxOffset + Integer.SIZE / 8, bytes, 0, bytes.length);
+            int[] entries = new int[count * SE_IDX_ENTRY_INTS];
+            ByteBuffer.wrap(bytes).asIntBuffer().get(entries);
+            return entries;
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return result;
+        return new int[0];
+    }
+
+    /**
+     * Store one fragment of a Secondary Index record, see
+     * {@link #SE_IDX_ENTRY_INTS}.
+     */
+    private static void setFragment(int[] entries, int at, int mapId, long offset, int length) {
+        entries[at] = mapId;
+        entries[at + 1] = (int) (offset >>> 32);
+        entries[at + 2] = (int) offset;
+        entries[at + 3] = length;
+    }
+
+    private static long fragmentOffset(int[] entries, int at) {
+        return ((long) entries[at + 1] << 32) | (entries[at + 2] & 0xffffffffL);
+    }
+
+    private static int fragmentLength(int[] entries, int at) {
+        return entries[at + 3];
+    }
+
+    /**
+     * Append the Posting List of a token from all batches to a buffer.
+     */
+    private void getPostingListInteger(String token, PostingBuffer buffer) {
+        PostingCache cache = _postingCache;
+        IndexSnapshot snapshot = acquire();
+        try {
+            if (cache != null && cache.get(token, snapshot.generation, buffer)) {
+                return;
+            }
+            MetricsListener metrics = _metrics;
+            long time = startTimer(metrics);
+            int start = buffer.size();
+            int[] entries = getOffsets(snapshot, token);
+            stopTimer(metrics, Phase.OFFSET_LOOKUP, time);
+            time = startTimer(metrics);
+            try {
+                for (int i = 0; i < entries.length; i += SE_IDX_ENTRY_INTS) {
+                    int mapId = entries[i];
+                    int length = fragmentLength(entries, i);
+                    byte[] bytes = buffer.bytes(length);
+                    snapshot.input(mapId).readFully(fragmentOffset(entries, i), bytes, 0, length);
+                    snapshot.codec(mapId).decode(bytes, 0, length, buffer);
+                }
+                if (cache != null && entries.length > 0) {
+                    cache.put(token, snapshot.generation, buffer.array(), start, buffer.size()
+                            - start);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (metrics != null) {
+                stopTimer(metrics, Phase.POSTING_DECODE, time);
+                metrics.lookedUp(1, countRecords(snapshot, entries) + entries.length
+                        / SE_IDX_ENTRY_INTS);
+            }
+        } finally {
+            release(snapshot);
+        }
+    }
+
+    /**
+     * @return Number of Secondary Index records holding the fragments of
+     *         {@link #getOffsets(String)}, one per segment.
+     */
+    private static int countRecords(IndexSnapshot snapshot, int[] entries) {
+        int count = 0;
+        int end = -1;
+        for (int i = 0; i < entries.length; i += SE_IDX_ENTRY_INTS) {
+            if (entries[i] >= end) {
+                for (Segment segment : snapshot.segments) {
+                    if (entries[i] < segment.endMap()) {
+                        end = segment.endMap();
+                        break;
+                    }
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Open a cursor over the fragments of a token in all batches. The cursor
+     * holds a reference to the snapshot current when it is opened until it
+     * is exhausted or closed, so it stays readable across commits and
+     * merges.
+     */
+    private PostingsCursor getPostingsCursor(String token) {
+        IndexSnapshot snapshot = acquire();
+        PostingsCursor cursor = null;
+        try {
+            cursor = getPostingsCursor(snapshot, getOffsets(snapshot, token), snapshot);
+            if (cursor == null) {
+                throw new IllegalStateException("Token is stored in Posting Lists of bytes: "
+                        + token);
+            }
+            return cursor;
+        } finally {
+            if (cursor == null) {
+                release(snapshot);
+            }
+        }
+    }
+
+    /**
+     * @param owner Snapshot reference passed to the cursor, or null if the
+     *            caller keeps the snapshot open.
+     * @return A cursor over the fragments of a Secondary Index record, or
+     *         null if any of them is a list of bytes.
+     */
+    private static PostingsCursor getPostingsCursor(IndexSnapshot snapshot, int[] entries,
+            IndexSnapshot owner) {
+        int count = entries.length / SE_IDX_ENTRY_INTS;
+        IndexInput[] inputs = new IndexInput[count];
+        PostingCodec[] codecs = new PostingCodec[count];
+        long[] starts = new long[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            int mapId = entries[i * SE_IDX_ENTRY_INTS];
+            inputs[i] = snapshot.input(mapId);
+            codecs[i] = snapshot.codec(mapId);
+            if (codecs[i] == null) {
+                return null;
+            }
+            starts[i] = fragmentOffset(entries, i * SE_IDX_ENTRY_INTS);
+            lengths[i] = fragmentLength(entries, i * SE_IDX_ENTRY_INTS);
+        }
+        return new PostingsCursor(inputs, codecs, starts, lengths, owner);
+    }
+
+    /**
+     * @return Score bounds of a token, or null if the token does not exist
+     *         or the index has none for it.
+     */
+    private TermImpacts getTermImpacts(String token) {
+        IndexSnapshot snapshot = acquire();
+        try {
+            long hash = BloomFilter.hash(token);
+            List<TermImpacts> parts = new ArrayList<TermImpacts>();
+            try {
+                for (Segment segment : snapshot.segments) {
+                    if (!mightContain(snapshot, segment, hash)) {
+                        continue;
+                    }
+                    int ordinal = segment.dictionary.getOrdinal(token);
+                    if (ordinal < 0) {
+                        continue;
+                    }
+                    // Bounds are only valid if every fragment has them.
+                    if (segment.impactIn == null) {
+                        return null;
+                    }
+                    long offset = readLong(segment.impactIn, segment.impactTableOffset + 8L
+                            * ordinal);
+                    if (offset < 0) {
+                        return null;
+                    }
+                    parts.add(TermImpacts.read(segment.impactIn, offset));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            return parts.isEmpty() ? null : TermImpacts.concat(parts);
+        } finally {
+            release(snapshot);
+        }
+    }
+
+    private static long readLong(IndexInput in, long pos) throws IOException {
+        return ((long) in.readInt(pos) << 32) | (in.readInt(pos + 4) & 0xffffffffL);
     }
 
-    private static class SecondIndexObject implements Serializable {
-        private String token;
-        private int offset;
+    /**
+     * Look up the Posting Lists of several tokens at once.
+     * <p>
+     * The Secondary Index records of all tokens are read first, segment by
+     * segment in file order. Their fragments are then sorted by batch and offset, and
+     * fragments lying close together in a Posting List file are fetched with
+     * a single read, so each file is read once front to back.
+     */
+    private Map<String, int[]> getPostingListsInteger(Collection<String> tokens) {
+        PostingCache cache = _postingCache;
+        IndexSnapshot snapshot = acquire();
+        try {
+            Map<String, int[]> result = new LinkedHashMap<String, int[]>();
+            List<String> pending = new ArrayList<String>();
+            PostingBuffer buffer = new PostingBuffer();
+            for (String token : tokens) {
+                if (result.containsKey(token)) {
+                    continue;
+                }
+                buffer.clear();
+                if (cache != null && cache.get(token, snapshot.generation, buffer)) {
+                    result.put(token, buffer.toArray());
+                    continue;
+                }
+                result.put(token, new int[0]);
+                if (mightContain(snapshot, token)) {
+                    pending.add(token);
+                }
+            }
+            if (pending.isEmpty()) {
+                return result;
+            }
+
+            // Read the Secondary Index records of each segment in file order.
+            MetricsListener metrics = _metrics;
+            long time = startTimer(metrics);
+            List<Segment> segments = snapshot.segments;
+            long[] hashes = new long[pending.size()];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = BloomFilter.hash(pending.get(i));
+            }
+            int[][] records = new int[pending.size() * segments.size()][];
+            int[] recordTokens = new int[records.length];
+            boolean[] found = new boolean[pending.size()];
+            int recordCount = 0;
+            int fragmentCount = 0;
+            int mapCount = 0;
+            try {
+                for (Segment segment : segments) {
+                    long[] recordOffsets = new long[pending.size()];
+                    int[] tokenIndexes = new int[pending.size()];
+                    int n = 0;
+                    for (int i = 0; i < pending.size(); i++) {
+                        if (!mightContain(snapshot, segment, hashes[i])) {
+                            continue;
+                        }
+                        long seIdxOffset = segment.dictionary.get(pending.get(i));
+                        if (seIdxOffset >= 0) {
+                            recordOffsets[n] = seIdxOffset;
+                            tokenIndexes[n++] = i;
+                        }
+                    }
+                    recordOffsets = Arrays.copyOf(recordOffsets, n);
+                    for (int i : sortedOrder(recordOffsets)) {
+                        records[recordCount] = readSecondIndexRecord(segment, recordOffsets[i]);
+                        recordTokens[recordCount++] = tokenIndexes[i];
+                        found[tokenIndexes[i]] = true;
+                        fragmentCount += records[recordCount - 1].length / SE_IDX_ENTRY_INTS;
+                    }
+                    mapCount = segment.endMap();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            stopTimer(metrics, Phase.OFFSET_LOOKUP, time);
+            time = startTimer(metrics);
+
+            // Order all fragments by batch, then by offset.
+            int[] fragments = new int[fragmentCount * 3];
+            long[] fragmentOffsets = new long[fragmentCount];
+            int[] batchStarts = new int[mapCount + 1];
+            int f = 0;
+            for (int i = 0; i < recordCount; i++) {
+                for (int j = 0; j < records[i].length; j += SE_IDX_ENTRY_INTS) {
+                    fragments[f * 3] = records[i][j];
+                    fragments[f * 3 + 1] = fragmentLength(records[i], j);
+                    fragments[f * 3 + 2] = recordTokens[i];
+                    fragmentOffsets[f] = fragmentOffset(records[i], j);
+                    batchStarts[records[i][j] + 1]++;
+                    f++;
+                }
+            }
+            for (int i = 0; i < mapCount; i++) {
+                batchStarts[i + 1] += batchStarts[i];
+            }
+            int[] fragmentOrder = new int[fragmentCount];
+            int[] batchEnds = Arrays.copyOf(batchStarts, mapCount);
+            for (int i = 0; i < fragmentCount; i++) {
+                fragmentOrder[batchEnds[fragments[i * 3]]++] = i;
+            }
+            for (int i = 0; i < mapCount; i++) {
+                int from = batchStarts[i];
+                int to = batchStarts[i + 1];
+                long[] keys = new long[to - from];
+                for (int j = from; j < to; j++) {
+                    keys[j - from] = fragmentOffsets[fragmentOrder[j]];
+                }
+                int[] order = sortedOrder(keys);
+                int[] batch = Arrays.copyOfRange(fragmentOrder, from, to);
+                for (int j = 0; j < order.length; j++) {
+                    fragmentOrder[from + j] = batch[order[j]];
+                }
+            }
 
-        public SecondIndexObject(String token, int offset) {
-            super();
-            this.token = token;
-            this.offset = offset;
+            // Fetch close fragments together and decode each into its token.
+            // Batches are visited in order, so every token gets its fragments
+            // appended in batch order.
+            PostingBuffer[] lists = new PostingBuffer[pending.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = new PostingBuffer();
+            }
+            int gap = _memoryMapped ? 0 : COALESCE_GAP;
+            int reads = 0;
+            try {
+                int from = 0;
+                while (from < fragmentCount) {
+                    int first = fragmentOrder[from];
+                    int mapId = fragments[first * 3];
+                    long start = fragmentOffsets[first];
+                    long end = start + fragments[first * 3 + 1];
+                    int to = from + 1;
+                    while (to < fragmentCount) {
+                        int next = fragmentOrder[to];
+                        long nextEnd = fragmentOffsets[next] + fragments[next * 3 + 1];
+                        if (fragments[next * 3] != mapId || fragmentOffsets[next] - end > gap
+                                || nextEnd - start > MAX_COALESCED_READ) {
+                            break;
+                        }
+                        end = Math.max(end, nextEnd);
+                        to++;
+                    }
+                    int length = (int) (end - start);
+                    byte[] bytes = buffer.bytes(length);
+                    snapshot.input(mapId).readFully(start, bytes, 0, length);
+                    reads++;
+                    PostingCodec codec = snapshot.codec(mapId);
+                    for (int i = from; i < to; i++) {
+                        int fragment = fragmentOrder[i];
+                        codec.decode(bytes, (int) (fragmentOffsets[fragment] - start),
+                                fragments[fragment * 3 + 1], lists[fragments[fragment * 3 + 2]]);
+                    }
+                    from = to;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (metrics != null) {
+                stopTimer(metrics, Phase.POSTING_DECODE, time);
+                metrics.lookedUp(pending.size(), recordCount + reads);
+            }
+            for (int i = 0; i < lists.length; i++) {
+                if (!found[i]) {
+                    continue;
+                }
+                String token = pending.get(i);
+                if (cache != null) {
+                    cache.put(token, snapshot.generation, lists[i].array(), 0,
+                            lists[i].size());
+                }
+                result.put(token, lists[i].toArray());
+            }
+            return result;
+        } finally {
+            release(snapshot);
         }
+    }
 
-        public String getToken() {
-            return token;
+    /**
+     * @param keys Distinct keys.
+     * @return Indexes of <code>keys</code> in ascending order of key.
+     */
+    private static int[] sortedOrder(long[] keys) {
+        long[] sorted = Arrays.copyOf(keys, keys.length);
+        Arrays.sort(sorted);
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[Arrays.binarySearch(sorted, keys[i])] = i;
         }
+        return order;
+    }
 
-        public int getOffset() {
-            return offset;
+    private List<Byte> getPostingListByte(String token, int mapId) {
+        IndexSnapshot snapshot = acquire();
+        try {
+            int[] entries = getOffsets(snapshot, token);
+            List<Byte> result = new ArrayList<Byte>();
+            try {
+                for (int i = 0; i < entries.length; i += SE_IDX_ENTRY_INTS) {
+                    int length = fragmentLength(entries, i);
+                    byte[] bytes = new byte[length];
+                    snapshot.input(entries[i]).readFully(fragmentOffset(entries, i), bytes, 0,
+                            length);
+                    for (int j = Integer.SIZE / 8; j < length; j++) {
+                        result.add(bytes[j]);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return result;
+        } finally {
+            release(snapshot);
         }
     }
 
+    /**
+     * @return Number of batches, committed or not. Merged batches count once.
+     */
     public int getTotalIvtiMapCount() {
-        return _mapCount;
+        IndexSnapshot snapshot = _snapshot;
+        synchronized (this) {
+            return snapshot.batchCount() + _mapCount - _committedMapCount;
+        }
+    }
+
+    /**
+     * @return Read only map from token to the offset of its record in
+     *         Secondary Index, over the segments committed at the time of
+     *         each call. An iterator of the map or its views reads the
+     *         segments committed when it is created, and keeps their files
+     *         open until it is exhausted.
+     */
+    public Map<String, Long> getTokenOffsetMap() {
+        return _tokenOffsetMap;
+    }
+
+    /**
+     * Reads the token map of the current snapshot, taking a reference for
+     * each call, and for each iterator until it is exhausted.
+     */
+    private class TokenOffsetMap extends AbstractMap<String, Long> {
+        @Override
+        public Long get(Object key) {
+            IndexSnapshot snapshot = acquire();
+            try {
+                return snapshot.tokenMap.get(key);
+            } finally {
+                release(snapshot);
+            }
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            IndexSnapshot snapshot = acquire();
+            try {
+                return snapshot.tokenMap.containsKey(key);
+            } finally {
+                release(snapshot);
+            }
+        }
+
+        @Override
+        public int size() {
+            IndexSnapshot snapshot = acquire();
+            try {
+                return snapshot.tokenMap.size();
+            } finally {
+                release(snapshot);
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            IndexSnapshot snapshot = acquire();
+            try {
+                return snapshot.tokenMap.isEmpty();
+            } finally {
+                release(snapshot);
+            }
+        }
+
+        @Override
+        public Set<Map.Entry<String, Long>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Long>>() {
+                @Override
+                public Iterator<Map.Entry<String, Long>> iterator() {
+                    return new SnapshotIterator(acquire());
+                }
+
+                @Override
+                public int size() {
+                    return TokenOffsetMap.this.size();
+                }
+            };
+        }
     }
 
-    public Map<String, Integer> getTokenOffsetMap() {
-        return _tokenMap;
+    /**
+     * Iterates the token map of a snapshot and releases it at the end.
+     */
+    private static class SnapshotIterator implements Iterator<Map.Entry<String, Long>> {
+        private IndexSnapshot snapshot;
+        private final Iterator<Map.Entry<String, Long>> entries;
+
+        SnapshotIterator(IndexSnapshot snapshot) {
+            this.snapshot = snapshot;
+            this.entries = snapshot.tokenMap.entrySet().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (snapshot == null) {
+                return false;
+            }
+            if (entries.hasNext()) {
+                return true;
+            }
+            release(snapshot);
+            snapshot = null;
+            return false;
+        }
+
+        @Override
+        public Map.Entry<String, Long> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return entries.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 }
@@ -0,0 +1,114 @@
+
+package org.owwlo.InvertedIndexing;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * {@link IndexInput} serving reads from a memory mapped file.
+ * <p>
+ * A single mapping is limited to 2GB, so the file is mapped as a list of
+ * fixed size chunks and reads crossing a chunk boundary are stitched
+ * together. All reads are absolute, so readers never lock.
+ * <p>
+ * Java offers no safe way to unmap a buffer while other threads may still
+ * read it, so {@link #close()} drops the mappings and leaves freeing them
+ * to the garbage collector. Until then the file stays mapped, and on
+ * Windows it cannot be deleted or replaced. Reads after closing fail with
+ * a {@link ClosedChannelException}.
+ * 
+ * @author owwlo
+ */
+class MappedIndexInput implements IndexInput {
+    private static final int CHUNK_BITS = 30;
+
+    private final int chunkBits;
+    private final long chunkMask;
+    private volatile MappedByteBuffer[] chunks;
+    private final long length;
+
+    MappedIndexInput(File file) throws IOException {
+        this(file, CHUNK_BITS);
+    }
+
+    MappedIndexInput(File file, int chunkBits) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            length = channel.size();
+            long chunkSize = 1L << chunkBits;
+            this.chunkBits = chunkBits;
+            this.chunkMask = chunkSize - 1;
+            int chunkCount = (int) ((length + chunkSize - 1) >>> chunkBits);
+            MappedByteBuffer[] mapped = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < mapped.length; i++) {
+                long start = (long) i << chunkBits;
+                mapped[i] = channel.map(MapMode.READ_ONLY, start,
+                        Math.min(chunkSize, length - start));
+            }
+            chunks = mapped;
+        } finally {
+            // Mappings stay valid after the channel is closed.
+            raf.close();
+        }
+    }
+
+    @Override
+    public int readInt(long pos) throws IOException {
+        MappedByteBuffer[] mapped = chunks(pos, 4);
+        int chunk = (int) (pos >>> chunkBits);
+        int at = (int) (pos & chunkMask);
+        if (at + 4 <= mapped[chunk].limit()) {
+            return mapped[chunk].getInt(at);
+        }
+        byte[] b = new byte[4];
+        readFully(pos, b, 0, 4);
+        return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8)
+                | (b[3] & 0xff);
+    }
+
+    @Override
+    public void readFully(long pos, byte[] b, int off, int len) throws IOException {
+        MappedByteBuffer[] mapped = chunks(pos, len);
+        while (len > 0) {
+            ByteBuffer chunk = mapped[(int) (pos >>> chunkBits)].duplicate();
+            chunk.position((int) (pos & chunkMask));
+            int n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * @return The mapped chunks, after checking that a read is in bounds.
+     */
+    private MappedByteBuffer[] chunks(long pos, int len) throws IOException {
+        MappedByteBuffer[] mapped = chunks;
+        if (mapped == null) {
+            throw new ClosedChannelException();
+        }
+        if (pos < 0 || pos + len > length) {
+            throw new EOFException("Read of " + len + " bytes at " + pos + " past " + length);
+        }
+        return mapped;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void close() {
+        chunks = null;
+    }
+}
@@ -0,0 +1,87 @@
+package org.owwlo.InvertedIndexing;
+
+/**
+ * Receives timings and counters from the write and read paths of an
+ * {@link InvertedIndexBuilder}, see
+ * {@link InvertedIndexBuilder#setMetricsListener(MetricsListener)}.
+ * <p>
+ * Methods are called on the threads doing the work, possibly several at
+ * once, so implementations must be thread safe and cheap. Without a listener
+ * the builder only tests a field for null.
+ *
+ * @author owwlo
+ */
+public interface MetricsListener {
+    enum Phase {
+        /**
+         * Encoding one integer Posting List during <code>put()</code>.
+         */
+        ENCODE,
+
+        /**
+         * Writing one Posting List to its file during <code>put()</code>, or
+         * flushing and closing the file.
+         */
+        FLUSH,
+
+        /**
+         * First pass of building a Secondary Index: reading and sorting the
+         * records of the index object files of a commit.
+         */
+        SECOND_INDEX_READ,
+
+        /**
+         * Second pass of building a Secondary Index: writing the sorted
+         * records and the term dictionary.
+         */
+        SECOND_INDEX_WRITE,
+
+        /**
+         * Writing the score bounds of a new segment.
+         */
+        IMPACTS,
+
+        /**
+         * A whole commit.
+         */
+        COMMIT,
+
+        /**
+         * A whole merge.
+         */
+        MERGE,
+
+        /**
+         * Finding the Secondary Index records of the tokens of one lookup.
+         */
+        OFFSET_LOOKUP,
+
+        /**
+         * Reading and decoding the Posting List fragments of one lookup.
+         */
+        POSTING_DECODE,
+
+        /**
+         * Waiting for the builder monitor or the commit lock.
+         */
+        LOCK_WAIT
+    }
+
+    /**
+     * One run of a phase took <code>nanos</code> nanoseconds.
+     */
+    void timed(Phase phase, long nanos);
+
+    /**
+     * The Posting List file of a batch was closed after writing
+     * <code>bytes</code> bytes.
+     */
+    void postingListWritten(int mapId, long bytes);
+
+    /**
+     * A lookup of <code>tokens</code> tokens not served from the cache took
+     * <code>reads</code> reads of Secondary Index records and Posting List
+     * files.
+     */
+    void lookedUp(int tokens, int reads);
+}
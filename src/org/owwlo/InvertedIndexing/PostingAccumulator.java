@@ -0,0 +1,140 @@
+package org.owwlo.InvertedIndexing;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+/**
+ * Collects the postings of documents added through
+ * {@link InvertedIndexBuilder#addDocument(int, String[])} in memory and
+ * writes them out as a new batch whenever a heap budget is reached
+ * (single-pass in-memory indexing).
+ * <p>
+ * Postings are <code>docId, position</code> pairs kept in one
+ * {@link PostingBuffer} per token, so no object is allocated per posting.
+ * The heap used is estimated from the token count and the capacity of the
+ * buffers.
+ *
+ * @author owwlo
+ */
+class PostingAccumulator {
+    /**
+     * Estimated heap of a token besides its characters and postings: the
+     * String, the hash map entry, the PostingBuffer and its array header.
+     */
+    private static final int TOKEN_OVERHEAD = 160;
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final InvertedIndexBuilder builder;
+    private Map<String, PostingBuffer> postings = new HashMap<String, PostingBuffer>();
+    private PostingCodec codec = PostingCodec.deltaVByte(2);
+    private long memoryBudget = 64L * 1024 * 1024;
+    private long bytesUsed = 0;
+    private long lastDocId = -1;
+
+    PostingAccumulator(InvertedIndexBuilder builder) {
+        this.builder = builder;
+    }
+
+    synchronized void setCodec(PostingCodec codec) {
+        if (codec.getEntrySize() != 2) {
+            throw new IllegalArgumentException(
+                    "Documents are indexed as docId, position pairs: " + codec);
+        }
+        flush();
+        this.codec = codec;
+    }
+
+    synchronized void setMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + bytes);
+        }
+        memoryBudget = bytes;
+        if (bytesUsed >= memoryBudget) {
+            flush();
+        }
+    }
+
+    /**
+     * @param positions Position of each token, or null if every token is at
+     *            its index in <code>tokens</code>.
+     * @param length Number of tokens of the whole document.
+     */
+    synchronized void add(int docId, String[] tokens, int[] positions, int length) {
+        if (docId <= lastDocId) {
+            throw new IllegalArgumentException("Documents must be added in increasing docId order: "
+                    + docId + " after " + lastDocId);
+        }
+        check(tokens, positions, length);
+        lastDocId = docId;
+        builder.setDocumentLength(docId, length);
+        for (int i = 0; i < tokens.length; i++) {
+            String token = tokens[i];
+            PostingBuffer buffer = postings.get(token);
+            if (buffer == null) {
+                buffer = new PostingBuffer(INITIAL_CAPACITY);
+                postings.put(token, buffer);
+                bytesUsed += TOKEN_OVERHEAD + 2L * token.length() + 4L * INITIAL_CAPACITY;
+            }
+            int capacity = buffer.array().length;
+            buffer.add(docId);
+            buffer.add(positions == null ? i : positions[i]);
+            bytesUsed += 4L * (buffer.array().length - capacity);
+        }
+        if (bytesUsed >= memoryBudget) {
+            flush();
+        }
+    }
+
+    /**
+     * Reject a document before any of its postings are collected, so a bad
+     * document leaves no partial postings behind.
+     */
+    private static void check(String[] tokens, int[] positions, int length) {
+        if (positions != null && positions.length != tokens.length) {
+            throw new IllegalArgumentException(tokens.length + " tokens but "
+                    + positions.length + " positions.");
+        }
+        if (tokens.length > length) {
+            throw new IllegalArgumentException("Document of length " + length + " holds "
+                    + tokens.length + " tokens.");
+        }
+        int last = -1;
+        for (int i = 0; i < tokens.length; i++) {
+            if (tokens[i] == null) {
+                throw new IllegalArgumentException("Null token at index " + i + ".");
+            }
+            int position = positions == null ? i : positions[i];
+            if (position <= last || position >= length) {
+                throw new IllegalArgumentException("Positions must increase within [0, "
+                        + length + "): " + position + " after " + last);
+            }
+            last = position;
+        }
+    }
+
+    /**
+     * Write all collected postings as a new batch, in token order.
+     */
+    synchronized void flush() {
+        if (postings.isEmpty()) {
+            return;
+        }
+        String[] tokens = postings.keySet().toArray(new String[postings.size()]);
+        Arrays.sort(tokens);
+        IvtMapInteger map = builder.createDistributedIvtiIntegerMap(codec);
+        try {
+            for (String token : tokens) {
+                PostingBuffer buffer = postings.get(token);
+                map.put(token, buffer.array(), 0, buffer.size());
+            }
+        } finally {
+            map.close();
+        }
+        postings = new HashMap<String, PostingBuffer>();
+        bytesUsed = 0;
+    }
+}
@@ -0,0 +1,113 @@
+
+package org.owwlo.InvertedIndexing;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints used to hand Posting Lists in and out of
+ * {@link InvertedIndexBuilder.IvtMapInteger} without boxing.
+ * <p>
+ * Instances are meant to be reused: {@link #clear()} keeps the backing array,
+ * so filling the same buffer again does not allocate once it is large
+ * enough. A buffer must not be shared between threads.
+ * 
+ * @author owwlo
+ */
+public class PostingBuffer {
+    private int[] values;
+    private int size;
+
+    /**
+     * Scratch space for reading raw bytes from index files.
+     */
+    byte[] bytes = new byte[0];
+
+    public PostingBuffer() {
+        this(16);
+    }
+
+    public PostingBuffer(int capacity) {
+        values = new int[capacity];
+    }
+
+    public void add(int value) {
+        if (size == values.length) {
+            grow(size + 1);
+        }
+        values[size++] = value;
+    }
+
+    public void add(int[] src, int offset, int length) {
+        ensureCapacity(size + length);
+        System.arraycopy(src, offset, values, size, length);
+        size += length;
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index + " >= " + size);
+        }
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Drop all values but keep the allocated capacity.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return The backing array. Only the first {@link #size()} values are
+     *         valid and the array may be replaced when the buffer grows.
+     */
+    public int[] array() {
+        return values;
+    }
+
+    /**
+     * @return A copy of the valid values.
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            grow(capacity);
+        }
+    }
+
+    /**
+     * Make room for <code>length</code> more values and return the backing
+     * array, so callers can write into <code>array()[size()...]</code>
+     * before calling {@link #setSize(int)}.
+     */
+    int[] reserve(int length) {
+        ensureCapacity(size + length);
+        return values;
+    }
+
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    byte[] bytes(int length) {
+        if (bytes.length < length) {
+            bytes = new byte[Math.max(length, bytes.length * 2)];
+        }
+        return bytes;
+    }
+
+    private void grow(int capacity) {
+        values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+    }
+}
@@ -0,0 +1,212 @@
+package org.owwlo.InvertedIndexing;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least recently used cache of decoded Posting Lists, bounded by their
+ * size in bytes rather than by their number.
+ * <p>
+ * The cache is split into stripes chosen by the hash of the token, each with
+ * its own lock and an equal share of the budget, so concurrent readers
+ * rarely wait on each other. Hit, miss and eviction counters are kept for
+ * tuning the budget.
+ * <p>
+ * Every entry records the generation of the index it was read from, see
+ * {@link IndexSnapshot#generation}. An entry is only served to lookups of
+ * the same generation, so a list read before a commit and cached after it
+ * is never returned for the new index, even though the cache is also
+ * cleared on every commit.
+ *
+ * @author owwlo
+ */
+public class PostingCache {
+    private static final int STRIPE_COUNT = 16;
+
+    /**
+     * Estimated heap of an entry besides the characters of its token and its
+     * values: the String, the array header, the linked map entry and the
+     * entry holding the generation.
+     */
+    private static final int ENTRY_OVERHEAD = 120;
+
+    private final long maxBytes;
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maxBytes Upper bound of the estimated heap held by the cache.
+     */
+    public PostingCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe(Math.max(1, maxBytes / STRIPE_COUNT));
+        }
+    }
+
+    /**
+     * Append the cached Posting List of a token to a buffer.
+     *
+     * @param generation Generation of the index the lookup reads.
+     * @return Whether the token was cached for that generation.
+     */
+    boolean get(String token, long generation, PostingBuffer buffer) {
+        int[] values = stripeFor(token).get(token, generation);
+        if (values == null) {
+            missCount.incrementAndGet();
+            return false;
+        }
+        hitCount.incrementAndGet();
+        buffer.add(values, 0, values.length);
+        return true;
+    }
+
+    /**
+     * Cache a copy of <code>values[offset, offset + length)</code> as the
+     * Posting List of a token.
+     *
+     * @param generation Generation of the index the values were read from.
+     */
+    void put(String token, long generation, int[] values, int offset, int length) {
+        long weight = weigh(token, length);
+        Stripe stripe = stripeFor(token);
+        if (weight > stripe.maxBytes) {
+            return;
+        }
+        int[] copy = new int[length];
+        System.arraycopy(values, offset, copy, 0, length);
+        evictionCount.addAndGet(stripe.put(token, new Entry(generation, copy), weight));
+    }
+
+    /**
+     * Drop all entries. Counters are kept.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return Estimated heap currently held by cached entries.
+     */
+    public long getSizeInBytes() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.getBytes();
+        }
+        return size;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "PostingCache[hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + ", bytes=" + getSizeInBytes() + "/"
+                + maxBytes + "]";
+    }
+
+    private Stripe stripeFor(String token) {
+        int h = token.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPE_COUNT - 1)];
+    }
+
+    private static long weigh(String token, int length) {
+        return ENTRY_OVERHEAD + 2L * token.length() + 4L * length;
+    }
+
+    private static class Entry {
+        final long generation;
+        final int[] values;
+
+        Entry(long generation, int[] values) {
+            this.generation = generation;
+            this.values = values;
+        }
+    }
+
+    private static class Stripe {
+        private final long maxBytes;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16,
+                0.75f, true);
+        private long bytes = 0;
+
+        Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return Values of a token cached for a generation, or null. An
+         *         entry of an older generation is dropped.
+         */
+        synchronized int[] get(String token, long generation) {
+            Entry entry = entries.get(token);
+            if (entry == null || entry.generation != generation) {
+                if (entry != null && entry.generation < generation) {
+                    entries.remove(token);
+                    bytes -= weigh(token, entry.values.length);
+                }
+                return null;
+            }
+            return entry.values;
+        }
+
+        /**
+         * Add an entry unless one of a newer generation is cached.
+         * 
+         * @return Number of entries evicted to make room.
+         */
+        synchronized int put(String token, Entry entry, long weight) {
+            Entry old = entries.get(token);
+            if (old != null && old.generation > entry.generation) {
+                return 0;
+            }
+            entries.put(token, entry);
+            if (old != null) {
+                bytes -= weigh(token, old.values.length);
+            }
+            bytes += weight;
+            int evicted = 0;
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                bytes -= weigh(eldest.getKey(), eldest.getValue().values.length);
+                it.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+
+        synchronized long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+
+package org.owwlo.InvertedIndexing;
+
+/**
+ * On-disk format of the Posting Lists in one <code>pstl</code> file.
+ * <p>
+ * A Posting List is a list of entries of {@link #getEntrySize()} ints each.
+ * The first int of an entry is a document id and the second, if any, a
+ * position within that document. This matches how the examples interleave
+ * <code>docId, position</code> pairs. Compressed codecs rely on entries
+ * being sorted by document id and then by position.
+ * <p>
+ * The codec is recorded in the header of each <code>pstl</code> file, so a
+ * reader decodes every batch with the codec it was written with.
+ * 
+ * @author owwlo
+ */
+public abstract class PostingCodec {
+    static final int ID_RAW = 0;
+    static final int ID_DELTA_VBYTE = 1;
+    static final int ID_BLOCK_PACKED = 2;
+
+    /**
+     * Fixed 4-byte <code>docId, position</code> pairs without compression,
+     * the default of new maps. Accepts any values.
+     */
+    public static final PostingCodec RAW = raw(2);
+
+    private final int entrySize;
+
+    PostingCodec(int entrySize) {
+        if (entrySize != 1 && entrySize != 2) {
+            throw new IllegalArgumentException("Entry size must be 1 or 2: " + entrySize);
+        }
+        this.entrySize = entrySize;
+    }
+
+    /**
+     * Fixed 4-byte ints without compression.
+     * 
+     * @param entrySize 1 for document ids, 2 for
+     *            <code>docId, position</code> pairs.
+     */
+    public static PostingCodec raw(int entrySize) {
+        return new RawPostingCodec(entrySize);
+    }
+
+    /**
+     * Delta-gap encoded document ids and positions stored as variable-byte
+     * ints. Posting Lists must be sorted.
+     * 
+     * @param entrySize 1 for document ids, 2 for
+     *            <code>docId, position</code> pairs.
+     */
+    public static PostingCodec deltaVByte(int entrySize) {
+        return new VBytePostingCodec(entrySize);
+    }
+
+    /**
+     * Delta-gap encoded document ids and positions, bit-packed in blocks of
+     * 128 documents with a skip table over the blocks. Suits long Posting
+     * Lists best. Posting Lists must be sorted.
+     * 
+     * @param entrySize 1 for document ids, 2 for
+     *            <code>docId, position</code> pairs.
+     */
+    public static PostingCodec blockPacked(int entrySize) {
+        return new BlockPackedPostingCodec(entrySize);
+    }
+
+    static PostingCodec forId(int id, int entrySize) {
+        switch (id) {
+            case ID_RAW:
+                return raw(entrySize);
+            case ID_DELTA_VBYTE:
+                return deltaVByte(entrySize);
+            case ID_BLOCK_PACKED:
+                return blockPacked(entrySize);
+            default:
+                throw new IllegalArgumentException("Unknown Posting List codec: " + id);
+        }
+    }
+
+    public int getEntrySize() {
+        return entrySize;
+    }
+
+    abstract int getId();
+
+    /**
+     * Append the record of one Posting List to <code>out</code>.
+     */
+    abstract void encode(int[] values, int offset, int length, ByteArrayDataOutput out);
+
+    /**
+     * Append the values of a record to <code>out</code>.
+     * 
+     * @param in Buffer holding the whole record.
+     * @param offset Start of the record in <code>in</code>.
+     * @param length Length of the record in bytes.
+     */
+    abstract void decode(byte[] in, int offset, int length, PostingBuffer out);
+
+    void checkEntries(int length) {
+        if (length % entrySize != 0) {
+            throw new IllegalArgumentException("Posting List length " + length
+                    + " is not a multiple of entry size " + entrySize);
+        }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof PostingCodec)) {
+            return false;
+        }
+        PostingCodec other = (PostingCodec) obj;
+        return getId() == other.getId() && entrySize == other.entrySize;
+    }
+
+    @Override
+    public int hashCode() {
+        return getId() * 31 + entrySize;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + entrySize + ")";
+    }
+}
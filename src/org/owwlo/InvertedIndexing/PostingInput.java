@@ -0,0 +1,130 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.IOException;
+
+/**
+ * Sequential reader over a range of an {@link IndexInput} through a small
+ * window, so arbitrarily long records can be decoded with a bounded buffer.
+ * <p>
+ * Decoders that work on byte arrays call {@link #require(int)} to get the
+ * next bytes into the window and then read them from {@link #buffer()}
+ * starting at {@link #offset()}.
+ *
+ * @author owwlo
+ */
+class PostingInput {
+    private static final int WINDOW_SIZE = 8192;
+
+    private IndexInput in;
+    private long end;
+    private byte[] buffer = new byte[WINDOW_SIZE];
+    /**
+     * File position of <code>buffer[0]</code>.
+     */
+    private long bufferStart;
+    private int pos;
+    private int limit;
+    private final int[] at = new int[1];
+
+    /**
+     * Start reading <code>[start, end)</code> of a file.
+     */
+    void reset(IndexInput in, long start, long end) {
+        this.in = in;
+        this.end = end;
+        bufferStart = start;
+        pos = 0;
+        limit = 0;
+    }
+
+    /**
+     * Move to an absolute file position, keeping the window if it covers the
+     * position.
+     */
+    void seek(long position) {
+        if (position >= bufferStart && position <= bufferStart + limit) {
+            pos = (int) (position - bufferStart);
+        } else {
+            bufferStart = position;
+            pos = 0;
+            limit = 0;
+        }
+    }
+
+    long position() {
+        return bufferStart + pos;
+    }
+
+    /**
+     * @return Bytes left until the end of the range.
+     */
+    long remaining() {
+        return end - position();
+    }
+
+    /**
+     * Make sure the next <code>length</code> bytes, or the rest of the range
+     * if it is shorter, are in the window.
+     *
+     * @return The window, valid from {@link #offset()}.
+     */
+    byte[] require(int length) throws IOException {
+        length = (int) Math.min(length, remaining());
+        if (pos + length <= limit) {
+            return buffer;
+        }
+        int kept = limit - pos;
+        if (length > buffer.length) {
+            byte[] grown = new byte[Math.max(length, buffer.length * 2)];
+            System.arraycopy(buffer, pos, grown, 0, kept);
+            buffer = grown;
+        } else {
+            System.arraycopy(buffer, pos, buffer, 0, kept);
+        }
+        bufferStart += pos;
+        pos = 0;
+        int fill = (int) Math.min(buffer.length, end - bufferStart);
+        in.readFully(bufferStart + kept, buffer, kept, fill - kept);
+        limit = fill;
+        return buffer;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    int offset() {
+        return pos;
+    }
+
+    /**
+     * Advance past bytes consumed from the window.
+     *
+     * @param offset New offset in the window.
+     */
+    void setOffset(int offset) {
+        pos = offset;
+    }
+
+    int readInt() throws IOException {
+        require(4);
+        int v = RawPostingCodec.readInt(buffer, pos);
+        pos += 4;
+        return v;
+    }
+
+    int peekInt() throws IOException {
+        require(4);
+        return RawPostingCodec.readInt(buffer, pos);
+    }
+
+    int readVInt() throws IOException {
+        if (pos + 5 > limit) {
+            require(5);
+        }
+        at[0] = pos;
+        int v = ByteDataInput.readVInt(buffer, at);
+        pos = at[0];
+        return v;
+    }
+}
@@ -0,0 +1,471 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Streams the Posting List of one token document by document, decoding its
+ * fragments in every batch on demand.
+ * <p>
+ * Documents are decoded in chunks of up to
+ * {@link BlockPackedPostingCodec#BLOCK_SIZE}, and the underlying files are
+ * read through a small window, so memory use does not depend on the length
+ * of the list. {@link #advance(int)} passes over whole blocks of
+ * block-packed lists using their skip table, without reading them, and
+ * positions of such blocks are only decoded when
+ * {@link #nextPosition()} is first called within the block.
+ * <p>
+ * Lists must be sorted by document id, as required by the compressed
+ * codecs. Entries of lists written with an entry size of 2 are grouped into
+ * documents: {@link #freq()} is the number of positions in the current
+ * document. Lists of document ids have no positions, and every entry counts
+ * as one document with a frequency of 1.
+ * <p>
+ * A cursor opened on a builder keeps the files it reads open, even across
+ * merges, until it is exhausted or {@link #close() closed}. A cursor must
+ * not be shared between threads.
+ *
+ * @author owwlo
+ */
+public class PostingsCursor {
+    /**
+     * Returned by {@link #nextDoc()} and {@link #advance(int)} once the list
+     * is exhausted.
+     */
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    private static final int CHUNK_SIZE = BlockPackedPostingCodec.BLOCK_SIZE;
+
+    private final IndexInput[] inputs;
+    private final PostingCodec[] codecs;
+    private final long[] starts;
+    private final int[] lengths;
+    private final boolean hasPositions;
+    private final int listEntrySize;
+    private final long cost;
+
+    /**
+     * Snapshot whose readers the cursor holds a reference to, null once it
+     * is released or if the cursor holds none.
+     */
+    private IndexSnapshot snapshot;
+    private boolean closed;
+
+    private final PostingInput input = new PostingInput();
+    private final PostingInput skipInput = new PostingInput();
+    private int fragment = -1;
+    private int codecId;
+    private int entrySize;
+
+    /**
+     * Values left in a raw or variable-byte fragment, documents left in the
+     * tail of a block-packed one.
+     */
+    private int left;
+
+    private int blockCount;
+    private int nextBlock;
+    private long skipStart;
+    private long dataStart;
+    private int blockEnd;
+
+    /**
+     * Last document id before the next one to decode in this fragment.
+     */
+    private int base;
+
+    private final int[] docs = new int[CHUNK_SIZE];
+    private final int[] freqs = new int[CHUNK_SIZE];
+    private final int[] positionStarts = new int[CHUNK_SIZE + 1];
+    private int[] positions = new int[CHUNK_SIZE];
+    private int chunkSize = 0;
+    private int index = -1;
+    private int doc = -1;
+
+    /**
+     * Whether positions of the current chunk are still packed in the window
+     * of {@link #input}, at {@link #positionsAt}.
+     */
+    private boolean positionsPending;
+    private int positionsAt;
+    private final int[] blockFreqs = new int[CHUNK_SIZE];
+    private final int[] words = new int[CHUNK_SIZE];
+    private int position;
+
+    PostingsCursor(IndexInput[] inputs, PostingCodec[] codecs, long[] starts, int[] lengths) {
+        this(inputs, codecs, starts, lengths, null);
+    }
+
+    /**
+     * @param snapshot Snapshot holding the inputs, whose reference is passed
+     *            to the cursor and released by {@link #close()}. Null if the
+     *            caller keeps the inputs open.
+     */
+    PostingsCursor(IndexInput[] inputs, PostingCodec[] codecs, long[] starts, int[] lengths,
+            IndexSnapshot snapshot) {
+        this.snapshot = snapshot;
+        this.inputs = inputs;
+        this.codecs = codecs;
+        this.starts = starts;
+        this.lengths = lengths;
+        int common = codecs.length > 0 ? codecs[0].getEntrySize() : 0;
+        long bytes = 0;
+        for (int i = 0; i < codecs.length; i++) {
+            if (codecs[i].getEntrySize() != common) {
+                common = 0;
+            }
+            bytes += lengths[i];
+        }
+        listEntrySize = common;
+        hasPositions = common == 2;
+        cost = bytes;
+    }
+
+    /**
+     * @return Current document id, -1 before the first call to
+     *         {@link #nextDoc()} or {@link #advance(int)}, or
+     *         {@link #NO_MORE_DOCS}.
+     */
+    public int docId() {
+        return doc;
+    }
+
+    /**
+     * Move to the next document.
+     *
+     * @return Its id, or {@link #NO_MORE_DOCS}.
+     */
+    public int nextDoc() {
+        if (++index >= chunkSize && !nextChunk(-1)) {
+            return doc = NO_MORE_DOCS;
+        }
+        position = 0;
+        return doc = docs[index];
+    }
+
+    /**
+     * Move to the first document at or after <code>target</code>. The
+     * cursor never moves backwards: if the current document is already at or
+     * after <code>target</code>, this behaves like {@link #nextDoc()}.
+     *
+     * @return Its id, or {@link #NO_MORE_DOCS}.
+     */
+    public int advance(int target) {
+        if (target <= doc) {
+            return nextDoc();
+        }
+        index++;
+        if (index >= chunkSize || docs[chunkSize - 1] < target) {
+            if (!nextChunk(target)) {
+                return doc = NO_MORE_DOCS;
+            }
+        }
+        // The last document of the chunk is at or after the target: gallop,
+        // then search the bracket.
+        int step = 1;
+        int low = index;
+        int high = index;
+        while (high < chunkSize - 1 && docs[high] < target) {
+            low = high + 1;
+            high = Math.min(chunkSize - 1, high + step);
+            step <<= 1;
+        }
+        int found = Arrays.binarySearch(docs, low, high + 1, target);
+        index = found >= 0 ? found : -found - 1;
+        // Entries of document id lists may repeat a document.
+        while (index > low && docs[index - 1] == target) {
+            index--;
+        }
+        position = 0;
+        return doc = docs[index];
+    }
+
+    /**
+     * @return Number of positions of the current document, 1 for lists of
+     *         document ids.
+     */
+    public int freq() {
+        return freqs[index];
+    }
+
+    /**
+     * @return The next position within the current document. Must be called
+     *         at most {@link #freq()} times per document.
+     */
+    public int nextPosition() {
+        if (!hasPositions) {
+            throw new IllegalStateException("Posting List has no positions.");
+        }
+        if (position >= freqs[index]) {
+            throw new IllegalStateException("No more positions in document " + doc);
+        }
+        if (positionsPending) {
+            decodeBlockPositions();
+        }
+        return positions[positionStarts[index] + position++];
+    }
+
+    /**
+     * @return Whether the list holds <code>docId, position</code> pairs.
+     */
+    public boolean hasPositions() {
+        return hasPositions;
+    }
+
+    /**
+     * @return Ints per entry of the list, 1 for document ids and 2 for
+     *         <code>docId, position</code> pairs, or 0 if the list is empty
+     *         or its batches were written with different entry sizes.
+     */
+    public int getEntrySize() {
+        return listEntrySize;
+    }
+
+    /**
+     * @return Encoded size of the list in bytes, a cheap estimate of how
+     *         long it is.
+     */
+    public long cost() {
+        return cost;
+    }
+
+    /**
+     * Release the files read by this cursor. Called once the cursor is
+     * exhausted; cursors left before the end must be closed by the caller.
+     * Afterwards the cursor behaves as if exhausted.
+     */
+    public void close() {
+        closed = true;
+        chunkSize = 0;
+        index = 0;
+        IndexSnapshot held = snapshot;
+        snapshot = null;
+        if (held != null) {
+            try {
+                held.decRef();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Decode the next chunk whose last document is at or after
+     * <code>target</code>, moving to following fragments as needed.
+     *
+     * @param target Smallest document id of interest, -1 for any.
+     * @return False if the list is exhausted.
+     * @throws IllegalStateException If the list cannot be read.
+     */
+    private boolean nextChunk(int target) {
+        if (closed) {
+            return false;
+        }
+        try {
+            while (true) {
+                if (fragmentExhausted()) {
+                    if (++fragment >= codecs.length) {
+                        close();
+                        return false;
+                    }
+                    openFragment();
+                    continue;
+                }
+                if (codecId == PostingCodec.ID_BLOCK_PACKED) {
+                    skipBlocks(target);
+                    if (fragmentExhausted()) {
+                        continue;
+                    }
+                }
+                loadChunk();
+                index = 0;
+                if (docs[chunkSize - 1] >= target) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            // Ending the list here would pass for a shorter list.
+            close();
+            throw new IllegalStateException("Cannot read Posting List.", e);
+        }
+    }
+
+    private boolean fragmentExhausted() {
+        if (fragment < 0) {
+            return true;
+        }
+        if (codecId == PostingCodec.ID_BLOCK_PACKED) {
+            return nextBlock == blockCount && left == 0;
+        }
+        return left == 0;
+    }
+
+    private void openFragment() throws IOException {
+        PostingCodec codec = codecs[fragment];
+        codecId = codec.getId();
+        entrySize = codec.getEntrySize();
+        input.reset(inputs[fragment], starts[fragment], starts[fragment] + lengths[fragment]);
+        base = 0;
+        if (codecId == PostingCodec.ID_RAW) {
+            left = input.readInt();
+            // Raw records accept any length, so a list of pairs may be cut.
+            if (left % entrySize != 0) {
+                throw new IllegalStateException("Posting List of " + left
+                        + " ints does not hold entries of " + entrySize + " ints.");
+            }
+        } else if (codecId == PostingCodec.ID_DELTA_VBYTE) {
+            left = input.readVInt();
+        } else {
+            input.readVInt();
+            int docCount = input.readVInt();
+            blockCount = docCount / CHUNK_SIZE;
+            left = docCount - blockCount * CHUNK_SIZE;
+            nextBlock = 0;
+            blockEnd = 0;
+            skipStart = input.position();
+            dataStart = skipStart + (long) blockCount * BlockPackedPostingCodec.SKIP_ENTRY_SIZE;
+            skipInput.reset(inputs[fragment], skipStart, dataStart);
+            input.seek(dataStart);
+        }
+    }
+
+    /**
+     * Pass over the blocks that end before <code>target</code> using the
+     * skip table.
+     */
+    private void skipBlocks(int target) throws IOException {
+        boolean skipped = false;
+        while (nextBlock < blockCount) {
+            skipInput.seek(skipStart + (long) nextBlock * BlockPackedPostingCodec.SKIP_ENTRY_SIZE);
+            int lastDoc = skipInput.readInt();
+            if (lastDoc >= target) {
+                break;
+            }
+            base = lastDoc;
+            blockEnd = skipInput.readInt();
+            nextBlock++;
+            skipped = true;
+        }
+        if (skipped) {
+            input.seek(dataStart + blockEnd);
+        }
+    }
+
+    private void loadChunk() throws IOException {
+        positionsPending = false;
+        chunkSize = 0;
+        if (codecId == PostingCodec.ID_BLOCK_PACKED && nextBlock < blockCount) {
+            loadBlock();
+        } else if (codecId == PostingCodec.ID_RAW) {
+            loadRaw();
+        } else {
+            loadVByte();
+        }
+    }
+
+    private void loadBlock() throws IOException {
+        skipInput.seek(skipStart + (long) nextBlock * BlockPackedPostingCodec.SKIP_ENTRY_SIZE);
+        int lastDoc = skipInput.readInt();
+        int end = skipInput.readInt();
+        byte[] in = input.require(end - blockEnd);
+        int[] pos = { input.offset() };
+        BlockPackedPostingCodec.unpackRun(in, pos, docs, 0, words);
+        BlockPackedPostingCodec.prefixSum(docs, base);
+        if (entrySize == 2) {
+            BlockPackedPostingCodec.unpackRun(in, pos, blockFreqs, 0, words);
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                freqs[i] = blockFreqs[i] + 1;
+            }
+            positionsPending = true;
+            positionsAt = pos[0];
+        } else {
+            Arrays.fill(freqs, 1);
+        }
+        // The window keeps the bytes of the block until the next chunk is
+        // loaded, so positions can still be decoded from it.
+        input.setOffset(input.offset() + end - blockEnd);
+        chunkSize = CHUNK_SIZE;
+        base = lastDoc;
+        blockEnd = end;
+        nextBlock++;
+    }
+
+    private void decodeBlockPositions() {
+        int[] pos = { positionsAt };
+        positions = BlockPackedPostingCodec.unpackPositions(input.buffer(), pos, blockFreqs,
+                positions, words);
+        // Turn gaps into positions within each document.
+        for (int i = 0, p = 0; i < CHUNK_SIZE; i++) {
+            positionStarts[i] = p;
+            int value = 0;
+            for (int end = p + freqs[i]; p < end; p++) {
+                value += positions[p];
+                positions[p] = value;
+            }
+        }
+        positionsPending = false;
+    }
+
+    /**
+     * Decode up to a chunk of documents stored as variable-byte ints: a
+     * variable-byte fragment or the tail of a block-packed one.
+     */
+    private void loadVByte() throws IOException {
+        boolean countsDocs = codecId == PostingCodec.ID_BLOCK_PACKED;
+        int p = 0;
+        while (chunkSize < CHUNK_SIZE && left > 0) {
+            base += input.readVInt();
+            docs[chunkSize] = base;
+            positionStarts[chunkSize] = p;
+            int freq = 1;
+            if (entrySize == 2) {
+                freq = input.readVInt();
+                p = readPositions(freq, p);
+            }
+            freqs[chunkSize++] = freq;
+            left -= countsDocs ? 1 : freq * entrySize;
+        }
+    }
+
+    private int readPositions(int freq, int p) throws IOException {
+        if (positions.length < p + freq) {
+            positions = Arrays.copyOf(positions, Math.max(p + freq, positions.length * 2));
+        }
+        int value = 0;
+        for (int j = 0; j < freq; j++) {
+            value += input.readVInt();
+            positions[p++] = value;
+        }
+        return p;
+    }
+
+    private void loadRaw() throws IOException {
+        if (entrySize == 1) {
+            while (chunkSize < CHUNK_SIZE && left > 0) {
+                docs[chunkSize] = input.readInt();
+                freqs[chunkSize++] = 1;
+                left--;
+            }
+            return;
+        }
+        int p = 0;
+        while (left > 0) {
+            int value = input.peekInt();
+            if (chunkSize == 0 || value != docs[chunkSize - 1]) {
+                if (chunkSize == CHUNK_SIZE) {
+                    break;
+                }
+                docs[chunkSize] = value;
+                freqs[chunkSize] = 0;
+                positionStarts[chunkSize++] = p;
+            }
+            input.readInt();
+            if (positions.length == p) {
+                positions = Arrays.copyOf(positions, p * 2);
+            }
+            positions[p++] = input.readInt();
+            freqs[chunkSize - 1]++;
+            left -= 2;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+
+package org.owwlo.InvertedIndexing;
+
+/**
+ * Record layout: <code>[int count][int value] * count</code>.
+ * 
+ * @author owwlo
+ */
+class RawPostingCodec extends PostingCodec {
+    RawPostingCodec(int entrySize) {
+        super(entrySize);
+    }
+
+    @Override
+    int getId() {
+        return ID_RAW;
+    }
+
+    @Override
+    void encode(int[] values, int offset, int length, ByteArrayDataOutput out) {
+        out.ensureCapacity(out.size() + (length + 1) * 4);
+        out.writeInt(length);
+        for (int i = offset; i < offset + length; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    @Override
+    void decode(byte[] in, int offset, int length, PostingBuffer out) {
+        int count = readInt(in, offset);
+        int size = out.size();
+        int[] values = out.reserve(count);
+        for (int i = 0, at = offset + 4; i < count; i++, at += 4) {
+            values[size + i] = readInt(in, at);
+        }
+        out.setSize(size + count);
+    }
+
+    static int readInt(byte[] b, int at) {
+        return ((b[at] & 0xff) << 24) | ((b[at + 1] & 0xff) << 16) | ((b[at + 2] & 0xff) << 8)
+                | (b[at + 3] & 0xff);
+    }
+}
@@ -0,0 +1,398 @@
+
+package org.owwlo.InvertedIndexing;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External sort of Secondary Index records by token.
+ * <p>
+ * Records are buffered in flat primitive arrays until the memory budget is
+ * used up, then sorted and spilled to a run file. {@link #sort()} merges the
+ * runs, so memory stays bounded by the budget no matter how many records
+ * are added. Records with the same token come out in the order they were
+ * added. Sorters filled on different threads are joined by
+ * {@link #merge(List)}.
+ * 
+ * @author owwlo
+ */
+class SecondIndexSorter {
+    private static final String RUN_FILE_PREFIX = "seIdxRun";
+
+    /**
+     * Ints per buffered record: termStart, termLength, mapId, length. Offsets
+     * are kept in a parallel array of longs.
+     */
+    private static final int RECORD_INTS = 4;
+
+    /**
+     * Heap used per buffered record besides its term bytes.
+     */
+    private static final int RECORD_OVERHEAD = (RECORD_INTS + 1) * 4 + 8;
+
+    private final File dir;
+    private final long memoryBudget;
+    private final String runPrefix;
+
+    private byte[] termPool = new byte[4096];
+    private int poolSize;
+    private int[] records = new int[1024 * RECORD_INTS];
+    private long[] offsets = new long[1024];
+    private int count;
+    private List<File> runs = new ArrayList<File>();
+
+    /**
+     * @param dir Directory for spill files.
+     * @param memoryBudget Bytes of buffered records to hold before spilling.
+     */
+    SecondIndexSorter(File dir, long memoryBudget) {
+        this(dir, memoryBudget, 0);
+    }
+
+    /**
+     * @param id Distinguishes the spill files of sorters sharing a directory.
+     */
+    SecondIndexSorter(File dir, long memoryBudget, int id) {
+        this.dir = dir;
+        this.memoryBudget = memoryBudget;
+        this.runPrefix = RUN_FILE_PREFIX + id + "_";
+    }
+
+    void add(byte[] term, int termLength, int mapId, long offset, int length) throws IOException {
+        if (count > 0 && poolSize + termLength + (long) (count + 1) * RECORD_OVERHEAD > memoryBudget) {
+            spill();
+        }
+        if (poolSize + termLength > termPool.length) {
+            termPool = Arrays.copyOf(termPool, Math.max(poolSize + termLength,
+                    termPool.length * 2));
+        }
+        if ((count + 1) * RECORD_INTS > records.length) {
+            records = Arrays.copyOf(records, records.length * 2);
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        System.arraycopy(term, 0, termPool, poolSize, termLength);
+        int at = count * RECORD_INTS;
+        records[at] = poolSize;
+        records[at + 1] = termLength;
+        records[at + 2] = mapId;
+        records[at + 3] = length;
+        offsets[count] = offset;
+        poolSize += termLength;
+        count++;
+    }
+
+    /**
+     * Finish adding records.
+     * 
+     * @return All records ordered by token.
+     */
+    Records sort() throws IOException {
+        if (runs.isEmpty()) {
+            return new MemoryRecords(sortBuffer());
+        }
+        if (count > 0) {
+            spill();
+        }
+        termPool = new byte[0];
+        records = new int[0];
+        offsets = new long[0];
+        return new MergedRecords();
+    }
+
+    /**
+     * Delete all spill files.
+     */
+    void close() {
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+    }
+
+    private int[] sortBuffer() {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        quickSort(order, 0, count - 1);
+        return order;
+    }
+
+    private void spill() throws IOException {
+        int[] order = sortBuffer();
+        File run = new File(dir, runPrefix + runs.size());
+        runs.add(run);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(run));
+        ByteArrayDataOutput record = new ByteArrayDataOutput();
+        for (int i : order) {
+            int at = i * RECORD_INTS;
+            record.reset();
+            record.writeVInt(records[at + 1]);
+            record.writeBytes(termPool, records[at], records[at + 1]);
+            record.writeVInt(records[at + 2]);
+            record.writeVLong(offsets[i]);
+            record.writeVInt(records[at + 3]);
+            out.write(record.bytes(), 0, record.size());
+        }
+        out.close();
+        poolSize = 0;
+        count = 0;
+    }
+
+    /**
+     * Order by token, then by insertion order.
+     */
+    private int compare(int a, int b) {
+        int cmp = TermDictionary.compareRange(termPool, records[a * RECORD_INTS],
+                records[a * RECORD_INTS + 1], termPool, records[b * RECORD_INTS],
+                records[b * RECORD_INTS + 1]);
+        return cmp != 0 ? cmp : a - b;
+    }
+
+    private void quickSort(int[] order, int low, int high) {
+        while (high - low > 16) {
+            int mid = (low + high) >>> 1;
+            // Median of three as pivot.
+            if (compare(order[mid], order[low]) < 0) {
+                swap(order, mid, low);
+            }
+            if (compare(order[high], order[low]) < 0) {
+                swap(order, high, low);
+            }
+            if (compare(order[high], order[mid]) < 0) {
+                swap(order, high, mid);
+            }
+            int pivot = order[mid];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compare(order[i], pivot) < 0) {
+                    i++;
+                }
+                while (compare(order[j], pivot) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(order, i++, j--);
+                }
+            }
+            // Recurse into the smaller half to bound the stack depth.
+            if (j - low < high - i) {
+                quickSort(order, low, j);
+                low = i;
+            } else {
+                quickSort(order, i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            int v = order[i];
+            int j = i - 1;
+            while (j >= low && compare(order[j], v) > 0) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = v;
+        }
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    /**
+     * Sorted records, read one at a time.
+     */
+    static abstract class Records {
+        byte[] term;
+        int termLength;
+        int mapId;
+        long offset;
+        int length;
+
+        /**
+         * Move to the next record.
+         * 
+         * @return False at the end.
+         */
+        abstract boolean next() throws IOException;
+    }
+
+    /**
+     * Join the sorted records of several sorters.
+     * 
+     * @param parts Records of each sorter, positioned before their first
+     *            record.
+     * @return All records ordered by token, then by part.
+     */
+    static Records merge(List<Records> parts) throws IOException {
+        return parts.size() == 1 ? parts.get(0) : new JoinedRecords(parts);
+    }
+
+    private class MemoryRecords extends Records {
+        private final int[] order;
+        private int next;
+
+        MemoryRecords(int[] order) {
+            this.order = order;
+            this.term = new byte[32];
+        }
+
+        @Override
+        boolean next() {
+            if (next == order.length) {
+                return false;
+            }
+            int record = order[next++];
+            int at = record * RECORD_INTS;
+            // Copy the term out so callers see it at the start of term[].
+            termLength = records[at + 1];
+            if (term.length < termLength) {
+                term = new byte[Math.max(termLength, term.length * 2)];
+            }
+            System.arraycopy(termPool, records[at], term, 0, termLength);
+            mapId = records[at + 2];
+            offset = offsets[record];
+            length = records[at + 3];
+            return true;
+        }
+    }
+
+    private class MergedRecords extends Records {
+        private final PriorityQueue<RunReader> queue;
+
+        MergedRecords() throws IOException {
+            queue = new PriorityQueue<RunReader>(runs.size(), new Comparator<RunReader>() {
+                @Override
+                public int compare(RunReader a, RunReader b) {
+                    int cmp = TermDictionary.compare(a.term, a.termLength, b.term, b.termLength);
+                    return cmp != 0 ? cmp : a.index - b.index;
+                }
+            });
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader reader = new RunReader(runs.get(i), i);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            term = new byte[32];
+        }
+
+        @Override
+        boolean next() throws IOException {
+            RunReader top = queue.poll();
+            if (top == null) {
+                return false;
+            }
+            termLength = top.termLength;
+            if (term.length < termLength) {
+                term = new byte[Math.max(termLength, term.length * 2)];
+            }
+            System.arraycopy(top.term, 0, term, 0, termLength);
+            mapId = top.mapId;
+            offset = top.offset;
+            length = top.length;
+            if (top.next()) {
+                queue.add(top);
+            } else {
+                top.close();
+            }
+            return true;
+        }
+    }
+
+    private static class JoinedRecords extends Records {
+        private final List<Records> parts;
+
+        /**
+         * Indexes of the parts which have a current record.
+         */
+        private final PriorityQueue<Integer> queue;
+
+        JoinedRecords(List<Records> parts) throws IOException {
+            this.parts = parts;
+            queue = new PriorityQueue<Integer>(parts.size(), new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    Records x = JoinedRecords.this.parts.get(a);
+                    Records y = JoinedRecords.this.parts.get(b);
+                    int cmp = TermDictionary.compare(x.term, x.termLength, y.term, y.termLength);
+                    return cmp != 0 ? cmp : a - b;
+                }
+            });
+            for (int i = 0; i < parts.size(); i++) {
+                if (parts.get(i).next()) {
+                    queue.add(i);
+                }
+            }
+            term = new byte[32];
+        }
+
+        @Override
+        boolean next() throws IOException {
+            Integer part = queue.poll();
+            if (part == null) {
+                return false;
+            }
+            Records top = parts.get(part);
+            termLength = top.termLength;
+            if (term.length < termLength) {
+                term = new byte[Math.max(termLength, term.length * 2)];
+            }
+            System.arraycopy(top.term, 0, term, 0, termLength);
+            mapId = top.mapId;
+            offset = top.offset;
+            length = top.length;
+            if (top.next()) {
+                queue.add(part);
+            }
+            return true;
+        }
+    }
+
+    private static class RunReader {
+        private final ByteDataInput in;
+        private final int index;
+        private byte[] term = new byte[32];
+        private int termLength;
+        private int mapId;
+        private long offset;
+        private int length;
+
+        RunReader(File file, int index) throws IOException {
+            this.in = new ByteDataInput(file);
+            this.index = index;
+        }
+
+        boolean next() throws IOException {
+            if (in.atEnd()) {
+                return false;
+            }
+            termLength = in.readVInt();
+            if (term.length < termLength) {
+                term = new byte[Math.max(termLength, term.length * 2)];
+            }
+            in.readFully(term, 0, termLength);
+            mapId = in.readVInt();
+            offset = in.readVLong();
+            length = in.readVInt();
+            return true;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The batches written by one commit, with their own term dictionary,
+ * Secondary Index and score bounds, so committing only indexes new batches.
+ * <p>
+ * A segment covers the consecutive batches
+ * <code>[firstMap, firstMap + mapCount)</code>; the Secondary Index entries
+ * of a segment point into those Posting List files only. The live segments
+ * are listed in a manifest, replaced atomically on every commit:
+ * <code>[int magic][int nextSegmentId][int count][int id, int firstMap, int mapCount] * count</code>
+ *
+ * @author owwlo
+ */
+class Segment {
+    private static final int MANIFEST_MAGIC = 0x53454753;
+
+    final int id;
+    final int firstMap;
+    final int mapCount;
+
+    /**
+     * Readers, set while the segment is open.
+     */
+    TermDictionary dictionary;
+    IndexInput seIdxIn;
+
+    /**
+     * Reader for the score bounds of each token, null if the segment has
+     * none.
+     */
+    IndexInput impactIn;
+    long impactTableOffset;
+
+    /**
+     * Number of snapshots holding this segment, see {@link IndexSnapshot}.
+     */
+    private final AtomicInteger refCount = new AtomicInteger();
+
+    Segment(int id, int firstMap, int mapCount) {
+        this.id = id;
+        this.firstMap = firstMap;
+        this.mapCount = mapCount;
+    }
+
+    int endMap() {
+        return firstMap + mapCount;
+    }
+
+    void incRef() {
+        refCount.incrementAndGet();
+    }
+
+    /**
+     * @return True if no snapshot holds this segment any more, so it can be
+     *         closed.
+     */
+    boolean decRef() {
+        return refCount.decrementAndGet() == 0;
+    }
+
+    void close() throws IOException {
+        if (dictionary != null) {
+            dictionary.close();
+            dictionary = null;
+        }
+        if (seIdxIn != null) {
+            seIdxIn.close();
+            seIdxIn = null;
+        }
+        if (impactIn != null) {
+            impactIn.close();
+            impactIn = null;
+        }
+    }
+
+    /**
+     * @return Id of the next segment to create.
+     */
+    static int readManifest(File file, List<Segment> segments) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+                file)));
+        try {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                throw new Error(file.getAbsolutePath() + " is not a segment manifest.");
+            }
+            int nextId = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                segments.add(new Segment(in.readInt(), in.readInt(), in.readInt()));
+            }
+            return nextId;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replace the manifest. It is written to a temporary file first and
+     * renamed over the old one, so readers see either manifest in full.
+     */
+    static void writeManifest(File file, List<Segment> segments, int nextId) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp)));
+        try {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(nextId);
+            out.writeInt(segments.size());
+            for (Segment segment : segments) {
+                out.writeInt(segment.id);
+                out.writeInt(segment.firstMap);
+                out.writeInt(segment.mapCount);
+            }
+        } finally {
+            out.close();
+        }
+        // Renaming over an existing file fails on some platforms.
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Cannot replace " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Read only view of the dictionaries of open segments as one map. The
+     * value of a token is the offset of its record in the Secondary Index of
+     * the first segment holding it.
+     */
+    static Map<String, Long> asMap(List<Segment> segments) {
+        if (segments.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        if (segments.size() == 1) {
+            return segments.get(0).dictionary.asMap();
+        }
+        return new UnionMap(segments);
+    }
+
+    private static class UnionMap extends AbstractMap<String, Long> {
+        private final List<Segment> segments;
+        private int size = -1;
+
+        UnionMap(List<Segment> segments) {
+            this.segments = segments;
+        }
+
+        @Override
+        public Long get(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            try {
+                for (Segment segment : segments) {
+                    long value = segment.dictionary.get((String) key);
+                    if (value >= 0) {
+                        return value;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            if (size < 0) {
+                // Tokens of several segments are only counted once.
+                int count = 0;
+                for (Iterator<Map.Entry<String, Long>> it = new Entries().iterator(); it
+                        .hasNext(); it.next()) {
+                    count++;
+                }
+                size = count;
+            }
+            return size;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Long>> entrySet() {
+            return new Entries();
+        }
+
+        private class Entries extends AbstractSet<Map.Entry<String, Long>> {
+            @Override
+            public Iterator<Map.Entry<String, Long>> iterator() {
+                final MergedCursor cursor = new MergedCursor(segments);
+                return new Iterator<Map.Entry<String, Long>>() {
+                    private boolean ready;
+                    private boolean more;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (!ready) {
+                            try {
+                                more = cursor.next();
+                            } catch (IOException e) {
+                                throw new IllegalStateException(e);
+                            }
+                            ready = true;
+                        }
+                        return more;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Long> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        ready = false;
+                        return new SimpleImmutableEntry<String, Long>(cursor.term(),
+                                cursor.value(0));
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return UnionMap.this.size();
+            }
+        }
+    }
+
+    /**
+     * Walks the union of the dictionaries of several open segments in term
+     * order. Each step visits one token, along with the segments holding it
+     * in segment order. Not thread safe.
+     */
+    static class MergedCursor {
+        private final List<Segment> segments;
+        private final TermDictionary.Cursor[] cursors;
+        private final boolean[] live;
+        private final int[] matches;
+        private int matchCount = 0;
+        private boolean started = false;
+
+        MergedCursor(List<Segment> segments) {
+            this.segments = new ArrayList<Segment>(segments);
+            cursors = new TermDictionary.Cursor[segments.size()];
+            live = new boolean[segments.size()];
+            matches = new int[segments.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = segments.get(i).dictionary.cursor();
+            }
+        }
+
+        /**
+         * Move to the next token.
+         *
+         * @return False if there is none.
+         */
+        boolean next() throws IOException {
+            if (!started) {
+                for (int i = 0; i < cursors.length; i++) {
+                    live[i] = cursors[i].next();
+                }
+                started = true;
+            } else {
+                for (int i = 0; i < matchCount; i++) {
+                    live[matches[i]] = cursors[matches[i]].next();
+                }
+            }
+            // Segments are few, so a linear scan finds the smallest token.
+            matchCount = 0;
+            for (int i = 0; i < cursors.length; i++) {
+                if (!live[i]) {
+                    continue;
+                }
+                if (matchCount > 0) {
+                    TermDictionary.Cursor min = cursors[matches[0]];
+                    int cmp = TermDictionary.compare(cursors[i].termBytes(),
+                            cursors[i].termLength(), min.termBytes(), min.termLength());
+                    if (cmp > 0) {
+                        continue;
+                    } else if (cmp < 0) {
+                        matchCount = 0;
+                    }
+                }
+                matches[matchCount++] = i;
+            }
+            return matchCount > 0;
+        }
+
+        String term() {
+            return cursors[matches[0]].term();
+        }
+
+        byte[] termBytes() {
+            return cursors[matches[0]].termBytes();
+        }
+
+        int termLength() {
+            return cursors[matches[0]].termLength();
+        }
+
+        /**
+         * @return Number of segments holding the current token.
+         */
+        int segmentCount() {
+            return matchCount;
+        }
+
+        Segment segment(int i) {
+            return segments.get(matches[i]);
+        }
+
+        /**
+         * @return Offset of the record of the current token in the Secondary
+         *         Index of {@link #segment(int)}.
+         */
+        long value(int i) {
+            return cursors[matches[i]].value();
+        }
+    }
+}
@@ -0,0 +1,354 @@
+
+package org.owwlo.InvertedIndexing;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Sorted term dictionary read in place from an index file.
+ * <p>
+ * Terms are sorted by their UTF-8 bytes and stored in blocks of
+ * {@link #BLOCK_SIZE}. The first term of a block is stored in full, the
+ * others only as the suffix that differs from the previous term. Each term
+ * carries a non-negative long value, delta coded within its block:
+ * 
+ * <pre>
+ * block * blockCount      [vint prefix][vint suffixLength][suffix][vlong valueDelta]
+ * [long blockOffset] * blockCount
+ * [int termCount][long blockIndexOffset][int magic]
+ * </pre>
+ * 
+ * The offsets and first terms of all blocks, one term in
+ * {@link #BLOCK_SIZE}, are loaded when the dictionary is opened. A lookup
+ * binary searches them in memory and then reads and scans a single block.
+ * The ordinal of a term is its position in sorted order.
+ * 
+ * @author owwlo
+ */
+class TermDictionary {
+    static final int MAGIC = 0x54444943;
+    static final int BLOCK_SIZE = 16;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int FOOTER_SIZE = 16;
+
+    private final IndexInput in;
+    private final int termCount;
+    private final int blockCount;
+
+    /**
+     * File offset of each block, followed by the end of the last block.
+     */
+    private final long[] blockStarts;
+
+    /**
+     * First term of block i at
+     * <code>firstTerms[firstTermStarts[i], firstTermStarts[i + 1])</code>.
+     */
+    private final byte[] firstTerms;
+    private final int[] firstTermStarts;
+
+    TermDictionary(IndexInput in) throws IOException {
+        this.in = in;
+        long length = in.length();
+        if (length < FOOTER_SIZE || in.readInt(length - 4) != MAGIC) {
+            throw new IOException("Not a term dictionary.");
+        }
+        byte[] footer = new byte[12];
+        in.readFully(length - FOOTER_SIZE, footer, 0, 12);
+        termCount = RawPostingCodec.readInt(footer, 0);
+        long blockIndexOffset = readLong(footer, 4);
+        blockCount = (termCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        byte[] index = new byte[blockCount * 8];
+        in.readFully(blockIndexOffset, index, 0, index.length);
+        blockStarts = new long[blockCount + 1];
+        for (int i = 0; i < blockCount; i++) {
+            blockStarts[i] = readLong(index, i * 8);
+        }
+        blockStarts[blockCount] = blockIndexOffset;
+
+        // Blocks are small, so reading their first terms through a window
+        // reads the blocks in large sequential chunks.
+        PostingInput blocks = new PostingInput();
+        blocks.reset(in, 0, blockIndexOffset);
+        ByteArrayDataOutput terms = new ByteArrayDataOutput();
+        firstTermStarts = new int[blockCount + 1];
+        for (int i = 0; i < blockCount; i++) {
+            blocks.seek(blockStarts[i]);
+            blocks.readVInt();
+            int termLength = blocks.readVInt();
+            byte[] window = blocks.require(termLength);
+            firstTermStarts[i] = terms.size();
+            terms.writeBytes(window, blocks.offset(), termLength);
+            blocks.setOffset(blocks.offset() + termLength);
+        }
+        firstTermStarts[blockCount] = terms.size();
+        firstTerms = Arrays.copyOf(terms.bytes(), terms.size());
+    }
+
+    int size() {
+        return termCount;
+    }
+
+    /**
+     * @return Value of a term, or -1 if it does not exist.
+     */
+    long get(String term) throws IOException {
+        Cursor cursor = new Cursor();
+        return cursor.seek(term.getBytes(UTF_8)) ? cursor.value : -1;
+    }
+
+    /**
+     * @return Ordinal of a term, or -1 if it does not exist.
+     */
+    int getOrdinal(String term) throws IOException {
+        Cursor cursor = new Cursor();
+        return cursor.seek(term.getBytes(UTF_8)) ? cursor.ordinal : -1;
+    }
+
+    /**
+     * @return A cursor positioned before the first term.
+     */
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * @return Index of the last block whose first term is not after the
+     *         target, or -1 if there is none.
+     */
+    private int findBlock(byte[] target) {
+        int low = 0;
+        int high = blockCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareRange(firstTerms, firstTermStarts[mid], firstTermStarts[mid + 1]
+                    - firstTermStarts[mid], target, 0, target.length);
+            if (cmp <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Read only view of this dictionary as a map from term to value.
+     */
+    Map<String, Long> asMap() {
+        return new AbstractMap<String, Long>() {
+            @Override
+            public Long get(Object key) {
+                if (!(key instanceof String)) {
+                    return null;
+                }
+                try {
+                    long value = TermDictionary.this.get((String) key);
+                    return value < 0 ? null : value;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public int size() {
+                return termCount;
+            }
+
+            @Override
+            public Set<Map.Entry<String, Long>> entrySet() {
+                return new AbstractSet<Map.Entry<String, Long>>() {
+                    @Override
+                    public Iterator<Map.Entry<String, Long>> iterator() {
+                        final Cursor cursor = cursor();
+                        return new Iterator<Map.Entry<String, Long>>() {
+                            @Override
+                            public boolean hasNext() {
+                                return cursor.ordinal + 1 < termCount;
+                            }
+
+                            @Override
+                            public Map.Entry<String, Long> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                try {
+                                    cursor.next();
+                                } catch (IOException e) {
+                                    throw new IllegalStateException(e);
+                                }
+                                return new SimpleImmutableEntry<String, Long>(cursor.term(),
+                                        cursor.value);
+                            }
+
+                            @Override
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return termCount;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Walks or seeks the terms of the dictionary. Not thread safe; each
+     * thread uses its own cursor.
+     */
+    class Cursor {
+        private byte[] block = new byte[0];
+        private int blockLength;
+        private int loadedBlock = -1;
+        private final int[] pos = new int[1];
+
+        private byte[] term = new byte[32];
+        private int termLength;
+        private long value;
+        private int ordinal = -1;
+
+        /**
+         * Move to the next term.
+         * 
+         * @return False if there is none.
+         */
+        boolean next() throws IOException {
+            if (ordinal + 1 >= termCount) {
+                return false;
+            }
+            ordinal++;
+            if (ordinal % BLOCK_SIZE == 0) {
+                loadBlock(ordinal / BLOCK_SIZE);
+                value = 0;
+            }
+            readTerm();
+            return true;
+        }
+
+        /**
+         * Position this cursor on a term.
+         * 
+         * @param target UTF-8 bytes of the term.
+         * @return Whether the term exists.
+         */
+        boolean seek(byte[] target) throws IOException {
+            int found = findBlock(target);
+            if (found < 0) {
+                return false;
+            }
+            loadBlock(found);
+            pos[0] = 0;
+            value = 0;
+            int end = Math.min(termCount, (found + 1) * BLOCK_SIZE);
+            for (ordinal = found * BLOCK_SIZE; ordinal < end; ordinal++) {
+                readTerm();
+                int cmp = compare(term, termLength, target, target.length);
+                if (cmp == 0) {
+                    return true;
+                } else if (cmp > 0) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        String term() {
+            return new String(term, 0, termLength, UTF_8);
+        }
+
+        /**
+         * @return UTF-8 bytes of the current term, valid up to
+         *         {@link #termLength()} until the cursor moves.
+         */
+        byte[] termBytes() {
+            return term;
+        }
+
+        int termLength() {
+            return termLength;
+        }
+
+        long value() {
+            return value;
+        }
+
+        int ordinal() {
+            return ordinal;
+        }
+
+        private void loadBlock(int index) throws IOException {
+            if (loadedBlock != index) {
+                blockLength = (int) (blockStarts[index + 1] - blockStarts[index]);
+                if (block.length < blockLength) {
+                    block = new byte[blockLength];
+                }
+                in.readFully(blockStarts[index], block, 0, blockLength);
+                loadedBlock = index;
+            }
+            pos[0] = 0;
+        }
+
+        private void readTerm() {
+            int prefix = ByteDataInput.readVInt(block, pos);
+            int suffix = ByteDataInput.readVInt(block, pos);
+            termLength = prefix + suffix;
+            if (term.length < termLength) {
+                byte[] grown = new byte[Math.max(termLength, term.length * 2)];
+                System.arraycopy(term, 0, grown, 0, prefix);
+                term = grown;
+            }
+            System.arraycopy(block, pos[0], term, prefix, suffix);
+            pos[0] += suffix;
+            value += ByteDataInput.readVLong(block, pos);
+        }
+    }
+
+    /**
+     * Compare two byte strings as unsigned bytes, which for UTF-8 is the
+     * code point order of the strings.
+     */
+    static int compare(byte[] a, int aLength, byte[] b, int bLength) {
+        return compareRange(a, 0, aLength, b, 0, bLength);
+    }
+
+    static int compareRange(byte[] a, int aStart, int aLength, byte[] b, int bStart, int bLength) {
+        int n = Math.min(aLength, bLength);
+        for (int i = 0; i < n; i++) {
+            int diff = (a[aStart + i] & 0xff) - (b[bStart + i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    static long readLong(byte[] b, int at) {
+        return ((long) RawPostingCodec.readInt(b, at) << 32)
+                | (RawPostingCodec.readInt(b, at + 4) & 0xffffffffL);
+    }
+}
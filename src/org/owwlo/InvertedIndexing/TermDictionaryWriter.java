@@ -0,0 +1,90 @@
+
+package org.owwlo.InvertedIndexing;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a {@link TermDictionary}. Terms must be added in strictly ascending
+ * order of their UTF-8 bytes.
+ * 
+ * @author owwlo
+ */
+class TermDictionaryWriter {
+    private final OutputStream out;
+    private final ByteArrayDataOutput block = new ByteArrayDataOutput(1024);
+    private final ByteArrayDataOutput blockIndex = new ByteArrayDataOutput();
+
+    private byte[] lastTerm = new byte[0];
+    private int lastTermLength = -1;
+    private long lastValue;
+    private int termCount;
+    private long written;
+
+    TermDictionaryWriter(File file) throws IOException {
+        out = new BufferedOutputStream(new FileOutputStream(file, false));
+    }
+
+    void add(String term, long value) throws IOException {
+        byte[] bytes = term.getBytes(TermDictionary.UTF_8);
+        add(bytes, bytes.length, value);
+    }
+
+    /**
+     * Append a term.
+     * 
+     * @param term UTF-8 bytes of the term.
+     * @param length Number of valid bytes in <code>term</code>.
+     * @param value Value of the term, not negative.
+     */
+    void add(byte[] term, int length, long value) throws IOException {
+        if (lastTermLength >= 0
+                && TermDictionary.compare(lastTerm, lastTermLength, term, length) >= 0) {
+            throw new IllegalArgumentException("Terms must be added in ascending order.");
+        }
+        if (termCount % TermDictionary.BLOCK_SIZE == 0) {
+            flushBlock();
+            blockIndex.writeLong(written);
+            block.writeVInt(0);
+            block.writeVInt(length);
+            block.writeBytes(term, 0, length);
+            block.writeVLong(value);
+        } else {
+            int prefix = 0;
+            int max = Math.min(length, lastTermLength);
+            while (prefix < max && term[prefix] == lastTerm[prefix]) {
+                prefix++;
+            }
+            block.writeVInt(prefix);
+            block.writeVInt(length - prefix);
+            block.writeBytes(term, prefix, length - prefix);
+            block.writeVLong(value - lastValue);
+        }
+        if (lastTerm.length < length) {
+            lastTerm = new byte[Math.max(length, lastTerm.length * 2)];
+        }
+        System.arraycopy(term, 0, lastTerm, 0, length);
+        lastTermLength = length;
+        lastValue = value;
+        termCount++;
+    }
+
+    private void flushBlock() throws IOException {
+        out.write(block.bytes(), 0, block.size());
+        written += block.size();
+        block.reset();
+    }
+
+    void close() throws IOException {
+        flushBlock();
+        long indexStart = written;
+        blockIndex.writeInt(termCount);
+        blockIndex.writeLong(indexStart);
+        blockIndex.writeInt(TermDictionary.MAGIC);
+        out.write(blockIndex.bytes(), 0, blockIndex.size());
+        out.close();
+    }
+}
@@ -0,0 +1,153 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Score bounds of the Posting List of one token, written at commit time.
+ * <p>
+ * The documents of the list are cut into blocks of {@link #BLOCK_SIZE}. For
+ * each block the largest frequency and the smallest document length are
+ * kept, which bound the score of any document in the block for ranking
+ * functions that grow with the frequency and shrink with the length, such
+ * as BM25. Bounds do not depend on ranking parameters, so they stay valid
+ * when those change.
+ * <p>
+ * Record layout:
+ * <code>[int docCount][int blockCount][int lastDoc, int maxFreq, int minLength] * blockCount</code>
+ * . Lengths of documents without a known length count as 0.
+ *
+ * @author owwlo
+ */
+public class TermImpacts {
+    public static final int BLOCK_SIZE = 128;
+
+    static final int ENTRY_SIZE = 12;
+
+    private final int docCount;
+    private final int[] lastDocs;
+    private final int[] maxFreqs;
+    private final int[] minLengths;
+
+    private TermImpacts(int docCount, int[] lastDocs, int[] maxFreqs, int[] minLengths) {
+        this.docCount = docCount;
+        this.lastDocs = lastDocs;
+        this.maxFreqs = maxFreqs;
+        this.minLengths = minLengths;
+    }
+
+    /**
+     * @return Number of documents holding the token.
+     */
+    public int getDocCount() {
+        return docCount;
+    }
+
+    public int getBlockCount() {
+        return lastDocs.length;
+    }
+
+    /**
+     * @return Largest document id of a block.
+     */
+    public int getLastDoc(int block) {
+        return lastDocs[block];
+    }
+
+    public int getMaxFreq(int block) {
+        return maxFreqs[block];
+    }
+
+    public int getMinLength(int block) {
+        return minLengths[block];
+    }
+
+    /**
+     * @return Index of the first block at or after <code>from</code> whose
+     *         last document is at or after <code>doc</code>, or
+     *         {@link #getBlockCount()} if there is none.
+     */
+    public int findBlock(int doc, int from) {
+        int block = from;
+        while (block < lastDocs.length && lastDocs[block] < doc) {
+            block++;
+        }
+        return block;
+    }
+
+    /**
+     * Join the bounds of the fragments of a token in consecutive segments,
+     * whose documents follow each other.
+     */
+    static TermImpacts concat(List<TermImpacts> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        int docCount = 0;
+        int blockCount = 0;
+        for (TermImpacts part : parts) {
+            docCount += part.docCount;
+            blockCount += part.getBlockCount();
+        }
+        int[] lastDocs = new int[blockCount];
+        int[] maxFreqs = new int[blockCount];
+        int[] minLengths = new int[blockCount];
+        int at = 0;
+        for (TermImpacts part : parts) {
+            int n = part.getBlockCount();
+            System.arraycopy(part.lastDocs, 0, lastDocs, at, n);
+            System.arraycopy(part.maxFreqs, 0, maxFreqs, at, n);
+            System.arraycopy(part.minLengths, 0, minLengths, at, n);
+            at += n;
+        }
+        return new TermImpacts(docCount, lastDocs, maxFreqs, minLengths);
+    }
+
+    static TermImpacts read(IndexInput in, long offset) throws IOException {
+        int docCount = in.readInt(offset);
+        int blockCount = in.readInt(offset + 4);
+        byte[] bytes = new byte[blockCount * ENTRY_SIZE];
+        in.readFully(offset + 8, bytes, 0, bytes.length);
+        int[] lastDocs = new int[blockCount];
+        int[] maxFreqs = new int[blockCount];
+        int[] minLengths = new int[blockCount];
+        for (int i = 0, at = 0; i < blockCount; i++, at += ENTRY_SIZE) {
+            lastDocs[i] = RawPostingCodec.readInt(bytes, at);
+            maxFreqs[i] = RawPostingCodec.readInt(bytes, at + 4);
+            minLengths[i] = RawPostingCodec.readInt(bytes, at + 8);
+        }
+        return new TermImpacts(docCount, lastDocs, maxFreqs, minLengths);
+    }
+
+    /**
+     * Compute the record of a Posting List.
+     *
+     * @param cursor Positioned before the first document.
+     */
+    static void write(PostingsCursor cursor, DocumentLengths lengths, ByteArrayDataOutput out) {
+        int countAt = out.size();
+        out.writeInt(0);
+        out.writeInt(0);
+        int docCount = 0;
+        int blockCount = 0;
+        int maxFreq = 0;
+        int minLength = Integer.MAX_VALUE;
+        for (int doc = cursor.nextDoc(); doc != PostingsCursor.NO_MORE_DOCS;) {
+            maxFreq = Math.max(maxFreq, cursor.freq());
+            minLength = Math.min(minLength, Math.max(0, lengths.get(doc)));
+            docCount++;
+            int next = cursor.nextDoc();
+            if (docCount % BLOCK_SIZE == 0 || next == PostingsCursor.NO_MORE_DOCS) {
+                out.writeInt(doc);
+                out.writeInt(maxFreq);
+                out.writeInt(minLength);
+                blockCount++;
+                maxFreq = 0;
+                minLength = Integer.MAX_VALUE;
+            }
+            doc = next;
+        }
+        out.setInt(countAt, docCount);
+        out.setInt(countAt + 4, blockCount);
+    }
+}
@@ -0,0 +1,93 @@
+
+package org.owwlo.InvertedIndexing;
+
+/**
+ * Delta-gap plus variable-byte codec.
+ * <p>
+ * Record layout: <code>[vint count]</code> followed by, for document id
+ * lists, one <code>[vint docGap]</code> per value, or, for
+ * <code>docId, position</code> pairs, one group per document:
+ * <code>[vint docGap][vint freq][vint positionGap] * freq</code>. Gaps are
+ * taken from the previous document id or the previous position within the
+ * same document.
+ * 
+ * @author owwlo
+ */
+class VBytePostingCodec extends PostingCodec {
+    VBytePostingCodec(int entrySize) {
+        super(entrySize);
+    }
+
+    @Override
+    int getId() {
+        return ID_DELTA_VBYTE;
+    }
+
+    @Override
+    void encode(int[] values, int offset, int length, ByteArrayDataOutput out) {
+        checkEntries(length);
+        out.writeVInt(length);
+        int end = offset + length;
+        int lastDoc = 0;
+        if (getEntrySize() == 1) {
+            for (int i = offset; i < end; i++) {
+                out.writeVInt(gap(values[i], lastDoc));
+                lastDoc = values[i];
+            }
+            return;
+        }
+        int i = offset;
+        while (i < end) {
+            int doc = values[i];
+            int groupEnd = i + 2;
+            while (groupEnd < end && values[groupEnd] == doc) {
+                groupEnd += 2;
+            }
+            out.writeVInt(gap(doc, lastDoc));
+            out.writeVInt((groupEnd - i) / 2);
+            int lastPos = 0;
+            for (; i < groupEnd; i += 2) {
+                out.writeVInt(gap(values[i + 1], lastPos));
+                lastPos = values[i + 1];
+            }
+            lastDoc = doc;
+        }
+    }
+
+    private static int gap(int value, int last) {
+        if (value < last) {
+            throw new IllegalArgumentException("Posting List is not sorted: " + value
+                    + " after " + last);
+        }
+        return value - last;
+    }
+
+    @Override
+    void decode(byte[] in, int offset, int length, PostingBuffer out) {
+        int[] pos = { offset };
+        int count = ByteDataInput.readVInt(in, pos);
+        int size = out.size();
+        int[] values = out.reserve(count);
+        int end = size + count;
+        int doc = 0;
+        if (getEntrySize() == 1) {
+            for (int i = size; i < end; i++) {
+                doc += ByteDataInput.readVInt(in, pos);
+                values[i] = doc;
+            }
+        } else {
+            int i = size;
+            while (i < end) {
+                doc += ByteDataInput.readVInt(in, pos);
+                int freq = ByteDataInput.readVInt(in, pos);
+                int position = 0;
+                for (int j = 0; j < freq; j++, i += 2) {
+                    position += ByteDataInput.readVInt(in, pos);
+                    values[i] = doc;
+                    values[i + 1] = position;
+                }
+            }
+        }
+        out.setSize(end);
+    }
+}
@@ -0,0 +1,376 @@
+package org.owwlo.InvertedIndexing.benchmark;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+import org.owwlo.InvertedIndexing.PostingCodec;
+
+/**
+ * Benchmarks of the ingest, commit and lookup paths over a
+ * {@link SyntheticCorpus}, for every combination of batch count and
+ * vocabulary size.
+ * <p>
+ * Each combination is run a few times as warm up, then measured a few
+ * times; every run rebuilds the index from the same seed. Besides time,
+ * every benchmark reports the bytes allocated by the threads doing the work
+ * and the garbage collections during the measurement.
+ * <p>
+ * Settings are read from system properties:
+ * <ul>
+ * <li><code>bench.dir</code>: index directory, emptied on every run.
+ * Defaults to <code>bench</code>.</li>
+ * <li><code>bench.batches</code>: comma separated batch counts. Defaults to
+ * <code>1,8,32</code>.</li>
+ * <li><code>bench.vocabularies</code>: comma separated sizes of Zipfian
+ * vocabularies, 0 for the random strings of <code>IvtiBuild</code>. Defaults
+ * to <code>0,10000,1000000</code>.</li>
+ * <li><code>bench.zipf</code>: exponent of the Zipfian vocabularies. Defaults
+ * to 1.</li>
+ * <li><code>bench.docs</code>: documents per batch. Defaults to 200.</li>
+ * <li><code>bench.docLength</code>: tokens per document. Defaults to 500.</li>
+ * <li><code>bench.lookups</code>: lookups per lookup benchmark, of tokens
+ * drawn from the corpus model. Defaults to 20000.</li>
+ * <li><code>bench.threads</code>: threads of the multi-threaded lookup
+ * benchmark. Defaults to the number of processors.</li>
+ * <li><code>bench.warmup</code>, <code>bench.iterations</code>: runs before
+ * and while measuring. Default to 1 and 3.</li>
+ * <li><code>bench.seed</code>: corpus seed. Defaults to 42.</li>
+ * </ul>
+ *
+ * @author owwlo
+ */
+public class IndexBenchmark {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final File dir;
+    private final double zipfExponent;
+    private final int docsPerBatch;
+    private final int docLength;
+    private final int lookups;
+    private final int threads;
+    private final int warmup;
+    private final int iterations;
+    private final long seed;
+
+    public IndexBenchmark(File dir, double zipfExponent, int docsPerBatch, int docLength,
+            int lookups, int threads, int warmup, int iterations, long seed) {
+        this.dir = dir;
+        this.zipfExponent = zipfExponent;
+        this.docsPerBatch = docsPerBatch;
+        this.docLength = docLength;
+        this.lookups = lookups;
+        this.threads = threads;
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        IndexBenchmark benchmark = new IndexBenchmark(new File(System.getProperty("bench.dir",
+                "bench")), Double.parseDouble(System.getProperty("bench.zipf", "1")),
+                Integer.getInteger("bench.docs", 200), Integer.getInteger("bench.docLength",
+                        500), Integer.getInteger("bench.lookups", 20000), Integer.getInteger(
+                        "bench.threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("bench.warmup", 1), Integer.getInteger("bench.iterations", 3),
+                Long.getLong("bench.seed", 42));
+        int[] batchCounts = parseInts(System.getProperty("bench.batches", "1,8,32"));
+        int[] vocabularies = parseInts(System.getProperty("bench.vocabularies",
+                "0,10000,1000000"));
+
+        if (allocatedBytes() < 0) {
+            System.out.println("Allocation is not measurable on this JVM.");
+        }
+        System.out.println(String.format("%-12s %8s %8s %22s %-10s %12s %10s %6s %8s",
+                "Benchmark", "vocab", "batches", "Score", "Units", "alloc B/op", "alloc MB/s",
+                "gc", "gc ms"));
+        for (int vocabulary : vocabularies) {
+            for (int batchCount : batchCounts) {
+                for (Result result : benchmark.run(vocabulary, batchCount)) {
+                    System.out.println(result.format(vocabulary, batchCount));
+                }
+            }
+        }
+    }
+
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private SyntheticCorpus corpus(int vocabulary) {
+        return vocabulary == 0 ? SyntheticCorpus.randomStrings(seed, 5) : SyntheticCorpus
+                .zipfian(seed, vocabulary, zipfExponent);
+    }
+
+    /**
+     * Run all benchmarks of one combination.
+     *
+     * @param vocabulary Size of the Zipfian vocabulary, or 0 for random
+     *            strings.
+     */
+    public List<Result> run(int vocabulary, int batchCount) throws InterruptedException {
+        Result put = new Result("putAll", "postings/s");
+        Result commit = new Result("commit", "ms");
+        Result get = new Result("get", "us/op");
+        Result getP50 = new Result("get:p50", "us");
+        Result getP99 = new Result("get:p99", "us");
+        Result getParallel = new Result("get x" + threads, "ops/s");
+
+        for (int run = 0; run < warmup + iterations; run++) {
+            boolean measured = run >= warmup;
+            SyntheticCorpus corpus = corpus(vocabulary);
+            dir.mkdirs();
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+
+            // Ingest, generating each batch outside of the measurement.
+            InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+            Measurement putTotal = new Measurement();
+            long postings = 0;
+            for (int batch = 0; batch < batchCount; batch++) {
+                Map<String, int[]> postingLists = corpus.nextBatch(batch * docsPerBatch,
+                        docsPerBatch, docLength);
+                for (int[] postingList : postingLists.values()) {
+                    postings += postingList.length / 2;
+                }
+                Measurement m = Measurement.start();
+                IvtMapInteger map = builder.createDistributedIvtiIntegerMap(PostingCodec
+                        .deltaVByte(2));
+                map.putAllInts(postingLists);
+                map.close();
+                putTotal.add(m.stop());
+            }
+            Measurement m = Measurement.start();
+            builder.commit();
+            m.stop();
+            builder.close();
+            if (measured) {
+                put.add(postings / (putTotal.nanos / 1e9), putTotal, postings);
+                commit.add(m.nanos / 1e6, m, 1);
+            }
+
+            // Look up tokens with the frequencies of the corpus.
+            String[] tokens = new String[lookups];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = corpus.nextToken();
+            }
+            builder = InvertedIndexBuilder.getBuilder(dir);
+            IvtMapInteger map = builder.getUnifiedDistributedIvtiIntegerMap();
+            long[] latencies = new long[tokens.length];
+            m = Measurement.start();
+            for (int i = 0; i < tokens.length; i++) {
+                long start = System.nanoTime();
+                map.getInts(tokens[i]);
+                latencies[i] = System.nanoTime() - start;
+            }
+            m.stop();
+            Arrays.sort(latencies);
+            Measurement parallel = lookUpInParallel(map, tokens);
+            builder.close();
+            if (measured) {
+                get.add(m.nanos / 1e3 / tokens.length, m, tokens.length);
+                getP50.add(latencies[latencies.length / 2] / 1e3, null, 0);
+                getP99.add(latencies[(int) (latencies.length * 0.99)] / 1e3, null, 0);
+                long ops = (long) tokens.length * threads;
+                getParallel.add(ops / (parallel.nanos / 1e9), parallel, ops);
+            }
+        }
+        return Arrays.asList(put, commit, get, getP50, getP99, getParallel);
+    }
+
+    /**
+     * Let every thread look up all tokens, starting from different places.
+     */
+    private Measurement lookUpInParallel(final IvtMapInteger map, final String[] tokens)
+            throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicLong allocated = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = (int) ((long) tokens.length * t / threads);
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long before = allocatedBytes();
+                    for (int i = 0; i < tokens.length; i++) {
+                        map.getInts(tokens[(first + i) % tokens.length]);
+                    }
+                    allocated.addAndGet(allocatedBytes() - before);
+                }
+            });
+            workers[t].start();
+        }
+        ready.await();
+        Measurement m = Measurement.start();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        m.stop();
+        m.allocated = allocatedBytes() < 0 ? -1 : allocated.get();
+        return m;
+    }
+
+    /**
+     * @return Bytes allocated so far by the current thread, or -1 if the JVM
+     *         cannot tell.
+     */
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported()
+                    && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Time, allocation and collections between {@link #start()} and
+     * {@link #stop()}, or sums of several measurements.
+     */
+    private static class Measurement {
+        long nanos;
+        long allocated;
+        long gcCount;
+        long gcMillis;
+
+        static Measurement start() {
+            Measurement m = new Measurement();
+            m.gcCount = -gcCount();
+            m.gcMillis = -gcMillis();
+            m.allocated = -allocatedBytes();
+            m.nanos = -System.nanoTime();
+            return m;
+        }
+
+        Measurement stop() {
+            nanos += System.nanoTime();
+            allocated += allocatedBytes();
+            gcCount += gcCount();
+            gcMillis += gcMillis();
+            return this;
+        }
+
+        void add(Measurement other) {
+            nanos += other.nanos;
+            allocated += other.allocated;
+            gcCount += other.gcCount;
+            gcMillis += other.gcMillis;
+        }
+
+        private static long gcCount() {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count;
+        }
+
+        private static long gcMillis() {
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return millis;
+        }
+    }
+
+    /**
+     * Scores of the measured runs of one benchmark.
+     */
+    public static class Result {
+        private final String name;
+        private final String unit;
+        private final List<Double> scores = new ArrayList<Double>();
+        private final Measurement total = new Measurement();
+        private long ops = 0;
+
+        Result(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        /**
+         * @param m Measurement of the run, or null for a score derived from
+         *            another one.
+         * @param ops Operations done during <code>m</code>.
+         */
+        void add(double score, Measurement m, long ops) {
+            scores.add(score);
+            if (m != null) {
+                total.add(m);
+                this.ops += ops;
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Mean score of the measured runs.
+         */
+        public double getScore() {
+            double sum = 0;
+            for (double score : scores) {
+                sum += score;
+            }
+            return scores.isEmpty() ? Double.NaN : sum / scores.size();
+        }
+
+        /**
+         * @return Half the spread of the scores of the measured runs.
+         */
+        public double getError() {
+            if (scores.isEmpty()) {
+                return Double.NaN;
+            }
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for (double score : scores) {
+                min = Math.min(min, score);
+                max = Math.max(max, score);
+            }
+            return (max - min) / 2;
+        }
+
+        String format(int vocabulary, int batchCount) {
+            String score = String.format("%.3f +- %.3f", getScore(), getError());
+            if (ops == 0) {
+                return String.format("%-12s %8d %8d %22s %-10s", name, vocabulary, batchCount,
+                        score, unit);
+            }
+            String allocPerOp = total.allocated < 0 ? "n/a" : String.format("%.1f",
+                    (double) total.allocated / ops);
+            String allocRate = total.allocated < 0 ? "n/a" : String.format("%.1f",
+                    total.allocated / (total.nanos / 1e9) / (1 << 20));
+            return String.format("%-12s %8d %8d %22s %-10s %12s %10s %6d %8d", name, vocabulary,
+                    batchCount, score, unit, allocPerOp, allocRate, total.gcCount,
+                    total.gcMillis);
+        }
+    }
+}
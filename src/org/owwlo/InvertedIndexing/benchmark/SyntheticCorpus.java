@@ -0,0 +1,144 @@
+package org.owwlo.InvertedIndexing.benchmark;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.owwlo.InvertedIndexing.PostingBuffer;
+
+/**
+ * Reproducible generator of fake documents for benchmarks. The same seed
+ * always yields the same tokens.
+ * <p>
+ * Two token models are available: the one of the <code>IvtiBuild</code>
+ * example, random strings of up to a few letters which are all about as
+ * frequent, and a vocabulary of fixed size whose token frequencies follow
+ * Zipf's law, as words of natural text do.
+ *
+ * @author owwlo
+ */
+public class SyntheticCorpus {
+    private static final String ALPHABET = "abcdefghijklmnopqr";
+
+    private final Random rand;
+    private final int termMaxLength;
+
+    /**
+     * Tokens of the Zipfian model by rank, with the cumulative probability of
+     * each rank. Null for the random string model.
+     */
+    private final String[] vocabulary;
+    private final double[] cumulative;
+
+    private SyntheticCorpus(long seed, int termMaxLength, String[] vocabulary,
+            double[] cumulative) {
+        this.rand = new Random(seed);
+        this.termMaxLength = termMaxLength;
+        this.vocabulary = vocabulary;
+        this.cumulative = cumulative;
+    }
+
+    /**
+     * Random strings of 1 to <code>termMaxLength</code> letters, as generated
+     * by the <code>IvtiBuild</code> example.
+     */
+    public static SyntheticCorpus randomStrings(long seed, int termMaxLength) {
+        if (termMaxLength <= 0) {
+            throw new IllegalArgumentException("Invalid token length: " + termMaxLength);
+        }
+        return new SyntheticCorpus(seed, termMaxLength, null, null);
+    }
+
+    /**
+     * Tokens drawn from a vocabulary of <code>size</code> tokens, where the
+     * token of rank r has a probability proportional to
+     * <code>1 / r ^ exponent</code>.
+     */
+    public static SyntheticCorpus zipfian(long seed, int size, double exponent) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid vocabulary size: " + size);
+        }
+        String[] vocabulary = new String[size];
+        double[] cumulative = new double[size];
+        double sum = 0;
+        for (int rank = 0; rank < size; rank++) {
+            vocabulary[rank] = tokenOfRank(rank);
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < size; rank++) {
+            cumulative[rank] /= sum;
+        }
+        return new SyntheticCorpus(seed, 0, vocabulary, cumulative);
+    }
+
+    /**
+     * Distinct tokens for distinct ranks, the rank written in letters.
+     */
+    private static String tokenOfRank(int rank) {
+        StringBuilder sb = new StringBuilder();
+        do {
+            sb.append(ALPHABET.charAt(rank % ALPHABET.length()));
+            rank /= ALPHABET.length();
+        } while (rank > 0);
+        return sb.toString();
+    }
+
+    public String nextToken() {
+        if (vocabulary == null) {
+            int length = rand.nextInt(termMaxLength) + 1;
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                sb.append(ALPHABET.charAt(rand.nextInt(ALPHABET.length())));
+            }
+            return sb.toString();
+        }
+        int rank = Arrays.binarySearch(cumulative, rand.nextDouble());
+        if (rank < 0) {
+            rank = -rank - 1;
+        }
+        return vocabulary[Math.min(rank, vocabulary.length - 1)];
+    }
+
+    /**
+     * Generate the postings of consecutive documents, ready to be put into a
+     * map created with <code>PostingCodec.deltaVByte(2)</code>.
+     *
+     * @return Sorted "docId, position" pairs of every token.
+     */
+    public Map<String, int[]> nextBatch(int firstDoc, int docCount, int docLength) {
+        Map<String, PostingBuffer> batch = new LinkedHashMap<String, PostingBuffer>();
+        Map<String, PostingBuffer> doc = new HashMap<String, PostingBuffer>();
+        for (int docId = firstDoc; docId < firstDoc + docCount; docId++) {
+            doc.clear();
+            for (int position = 0; position < docLength; position++) {
+                String token = nextToken();
+                PostingBuffer positions = doc.get(token);
+                if (positions == null) {
+                    positions = new PostingBuffer(4);
+                    doc.put(token, positions);
+                }
+                positions.add(position);
+            }
+            for (Map.Entry<String, PostingBuffer> entry : doc.entrySet()) {
+                PostingBuffer postings = batch.get(entry.getKey());
+                if (postings == null) {
+                    postings = new PostingBuffer();
+                    batch.put(entry.getKey(), postings);
+                }
+                PostingBuffer positions = entry.getValue();
+                for (int i = 0; i < positions.size(); i++) {
+                    postings.add(docId);
+                    postings.add(positions.get(i));
+                }
+            }
+        }
+        Map<String, int[]> result = new LinkedHashMap<String, int[]>();
+        for (Map.Entry<String, PostingBuffer> entry : batch.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return result;
+    }
+}
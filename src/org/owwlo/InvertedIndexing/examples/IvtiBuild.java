@@ -5,13 +5,13 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Random;
 
 import org.owwlo.InvertedIndexing.InvertedIndexBuilder;
 import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+import org.owwlo.InvertedIndexing.PostingBuffer;
+import org.owwlo.InvertedIndexing.PostingCodec;
 
 public class IvtiBuild {
     public static Random rand = new Random();
@@ -32,9 +32,9 @@ public class IvtiBuild {
         }
     }
 
-    public static void printList(List<Integer> l) {
-        for (int i : l) {
-            System.out.print(i + " ");
+    public static void printList(int[] l, int size) {
+        for (int i = 0; i < size; i++) {
+            System.out.print(l[i] + " ");
         }
         System.out.println();
     }
@@ -70,16 +70,19 @@ public class IvtiBuild {
             System.out.println("Processing files from " + fileIdStart + " to " + fileIdEnd);
 
             // Create a Inverted Index Map.
-            IvtMapInteger ivtMapBatch = builder.createDistributedIvtiIntegerMap();
+            // Postings are sorted "docId, position" pairs, so they can be compressed.
+            IvtMapInteger ivtMapBatch = builder.createDistributedIvtiIntegerMap(PostingCodec
+                    .deltaVByte(2));
 
             // This is used to collect result for each batch.
-            Map<String, List<Integer>> ivtMap = new LinkedHashMap<String, List<Integer>>();
+            // PostingBuffer keeps primitive ints, so no Integer is allocated per posting.
+            Map<String, PostingBuffer> ivtMap = new LinkedHashMap<String, PostingBuffer>();
 
             // Simulation of processing each file.
             for (int docId = fileIdStart; docId < fileIdEnd; docId++) {
 
                 // Record Inverted Index for each article.
-                Map<String, List<Integer>> ivtMapItem = new HashMap<String, List<Integer>>();
+                Map<String, PostingBuffer> ivtMapItem = new HashMap<String, PostingBuffer>();
 
                 for (int tokenIdx = 0; tokenIdx < fakePassageLength; tokenIdx++) {
                     String token = getRandomString(rand.nextInt(termMaxLength) + 1);
@@ -92,7 +95,7 @@ public class IvtiBuild {
                     }
 
                     if (!ivtMapItem.containsKey(token)) {
-                        ivtMapItem.put(token, new LinkedList<Integer>());
+                        ivtMapItem.put(token, new PostingBuffer(4));
                     }
                     ivtMapItem.get(token).add(tokenIdx);
                 }
@@ -100,12 +103,13 @@ public class IvtiBuild {
                 // Put collected data into ivtMap.
                 for (String token : ivtMapItem.keySet()) {
                     if (!ivtMap.containsKey(token)) {
-                        ivtMap.put(token, new LinkedList<Integer>());
+                        ivtMap.put(token, new PostingBuffer());
                     }
-                    List<Integer> recordList = ivtMap.get(token);
-                    for (int idx : ivtMapItem.get(token)) {
+                    PostingBuffer recordList = ivtMap.get(token);
+                    PostingBuffer positions = ivtMapItem.get(token);
+                    for (int i = 0; i < positions.size(); i++) {
                         recordList.add(docId);
-                        recordList.add(idx);
+                        recordList.add(positions.get(i));
                     }
                 }
 
@@ -117,18 +121,21 @@ public class IvtiBuild {
             }
 
             if (ivtMap.containsKey(randPickToken)) {
-                List<Integer> testList = ivtMap.get(randPickToken);
+                PostingBuffer testList = ivtMap.get(randPickToken);
                 System.out.println("Posting List in batch " + batchNum + " for token '"
                         + randPickToken
                         + "':");
-                printList(testList);
+                printList(testList.array(), testList.size());
             }
 
             System.out.println("Batch building done. Elapsed: "
                     + (System.currentTimeMillis() - start_t) / 1000.0 + "s");
 
             // Build Inverted Index for one batch.
-            ivtMapBatch.putAll(ivtMap);
+            for (Map.Entry<String, PostingBuffer> entry : ivtMap.entrySet()) {
+                PostingBuffer postingList = entry.getValue();
+                ivtMapBatch.put(entry.getKey(), postingList.array(), 0, postingList.size());
+            }
             ivtMapBatch.close();
 
             System.out.println("Batch commit done. Elapsed: "
@@ -152,10 +159,10 @@ public class IvtiBuild {
         builder = InvertedIndexBuilder.getBuilder(dir);
         IvtMapInteger reopenedMap = builder.getUnifiedDistributedIvtiIntegerMap();
 
-        List<Integer> lst = reopenedMap.get(randPickToken);
+        int[] lst = reopenedMap.getInts(randPickToken);
         System.out.println("Reopen and retrive Posting List for token '" + randPickToken
                 + "':");
-        printList(lst);
+        printList(lst, lst.length);
 
         System.out.println("All done. Elapsed: " + (System.currentTimeMillis() - start_t)
                 / 1000.0 + "s");
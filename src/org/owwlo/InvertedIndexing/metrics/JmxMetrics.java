@@ -0,0 +1,145 @@
+package org.owwlo.InvertedIndexing.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.owwlo.InvertedIndexing.MetricsListener;
+
+/**
+ * Metrics listener which keeps a {@link LatencyHistogram} per phase and a few
+ * counters, and publishes them as an MXBean.
+ * <p>
+ * Example:
+ * 
+ * <pre>
+ * JmxMetrics metrics = new JmxMetrics();
+ * metrics.register(&quot;wiki&quot;);
+ * builder.setMetricsListener(metrics);
+ * </pre>
+ *
+ * @author owwlo
+ */
+public class JmxMetrics implements MetricsListener, JmxMetricsMXBean {
+    public static final String DOMAIN = "org.owwlo.InvertedIndexing";
+
+    private final Map<Phase, LatencyHistogram> phases = new EnumMap<Phase, LatencyHistogram>(
+            Phase.class);
+    private final AtomicLong postingListsWritten = new AtomicLong();
+    private final AtomicLong postingListBytesWritten = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lookedUpTokens = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private ObjectName name;
+
+    public JmxMetrics() {
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Publish this object on the platform MBean server as
+     * <code>org.owwlo.InvertedIndexing:type=Metrics,name=&lt;name&gt;</code>.
+     */
+    public synchronized void register(String name) throws JMException {
+        if (this.name != null) {
+            throw new IllegalStateException("Already registered as " + this.name);
+        }
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=Metrics,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.name = objectName;
+    }
+
+    public synchronized void unregister() throws JMException {
+        if (name != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(name);
+            name = null;
+        }
+    }
+
+    /**
+     * @return Histogram of one phase, for reading the timings without JMX.
+     */
+    public LatencyHistogram getHistogram(Phase phase) {
+        return phases.get(phase);
+    }
+
+    @Override
+    public void timed(Phase phase, long nanos) {
+        phases.get(phase).record(nanos);
+    }
+
+    @Override
+    public void postingListWritten(int mapId, long bytes) {
+        postingListsWritten.incrementAndGet();
+        postingListBytesWritten.addAndGet(bytes);
+    }
+
+    @Override
+    public void lookedUp(int tokens, int reads) {
+        lookups.incrementAndGet();
+        lookedUpTokens.addAndGet(tokens);
+        this.reads.addAndGet(reads);
+    }
+
+    @Override
+    public Map<String, PhaseStats> getPhases() {
+        Map<String, PhaseStats> result = new LinkedHashMap<String, PhaseStats>();
+        for (Map.Entry<Phase, LatencyHistogram> entry : phases.entrySet()) {
+            result.put(entry.getKey().name(), PhaseStats.of(entry.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public long getPostingListsWritten() {
+        return postingListsWritten.get();
+    }
+
+    @Override
+    public long getPostingListBytesWritten() {
+        return postingListBytesWritten.get();
+    }
+
+    @Override
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    @Override
+    public long getLookedUpTokens() {
+        return lookedUpTokens.get();
+    }
+
+    @Override
+    public long getReads() {
+        return reads.get();
+    }
+
+    @Override
+    public double getReadsPerToken() {
+        long tokens = lookedUpTokens.get();
+        return tokens == 0 ? 0 : (double) reads.get() / tokens;
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : phases.values()) {
+            histogram.reset();
+        }
+        postingListsWritten.set(0);
+        postingListBytesWritten.set(0);
+        lookups.set(0);
+        lookedUpTokens.set(0);
+        reads.set(0);
+    }
+}
@@ -0,0 +1,33 @@
+package org.owwlo.InvertedIndexing.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link JmxMetrics}.
+ *
+ * @author owwlo
+ */
+public interface JmxMetricsMXBean {
+    /**
+     * @return Timings of every phase by name, see
+     *         {@link org.owwlo.InvertedIndexing.MetricsListener.Phase}.
+     */
+    Map<String, PhaseStats> getPhases();
+
+    long getPostingListsWritten();
+
+    long getPostingListBytesWritten();
+
+    /**
+     * @return Lookups not served from the Posting List cache.
+     */
+    long getLookups();
+
+    long getLookedUpTokens();
+
+    long getReads();
+
+    double getReadsPerToken();
+
+    void reset();
+}
@@ -0,0 +1,65 @@
+package org.owwlo.InvertedIndexing.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of the timings of one phase, in a form JMX clients can show.
+ *
+ * @author owwlo
+ */
+public class PhaseStats {
+    private final long count;
+    private final double totalMillis;
+    private final double meanMicros;
+    private final double p50Micros;
+    private final double p99Micros;
+    private final double maxMicros;
+
+    @ConstructorProperties({ "count", "totalMillis", "meanMicros", "p50Micros", "p99Micros",
+            "maxMicros" })
+    public PhaseStats(long count, double totalMillis, double meanMicros, double p50Micros,
+            double p99Micros, double maxMicros) {
+        this.count = count;
+        this.totalMillis = totalMillis;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    static PhaseStats of(LatencyHistogram histogram) {
+        return new PhaseStats(histogram.getCount(), histogram.getTotalNanos() / 1e6,
+                histogram.getMeanNanos() / 1e3, histogram.getPercentileNanos(0.5) / 1e3,
+                histogram.getPercentileNanos(0.99) / 1e3, histogram.getMaxNanos() / 1e3);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getTotalMillis() {
+        return totalMillis;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public double getP50Micros() {
+        return p50Micros;
+    }
+
+    public double getP99Micros() {
+        return p99Micros;
+    }
+
+    public double getMaxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d total=%.3fms mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus",
+                count, totalMillis, meanMicros, p50Micros, p99Micros, maxMicros);
+    }
+}
@@ -0,0 +1,61 @@
+package org.owwlo.InvertedIndexing.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+/**
+ * Documents matching all clauses. {@link NotQuery} clauses exclude the
+ * documents they match instead.
+ * 
+ * @author owwlo
+ */
+public class AndQuery extends Query {
+    private final Query[] clauses;
+
+    /**
+     * @param clauses At least one clause must not be a {@link NotQuery}.
+     */
+    public AndQuery(Query... clauses) {
+        boolean positive = false;
+        for (Query clause : clauses) {
+            positive |= !(clause instanceof NotQuery);
+        }
+        if (!positive) {
+            throw new IllegalArgumentException("AND needs at least one clause which is not NOT.");
+        }
+        this.clauses = clauses.clone();
+    }
+
+    @Override
+    public DocIterator iterator(IvtMapInteger index) {
+        List<DocIterator> include = new ArrayList<DocIterator>();
+        List<DocIterator> exclude = new ArrayList<DocIterator>();
+        try {
+            for (Query clause : clauses) {
+                if (clause instanceof NotQuery) {
+                    exclude.add(((NotQuery) clause).getClause().iterator(index));
+                } else {
+                    include.add(clause.iterator(index));
+                }
+            }
+        } catch (RuntimeException e) {
+            close(include);
+            close(exclude);
+            throw e;
+        }
+        DocIterator it = include.size() == 1 ? include.get(0) : new ConjunctionIterator(
+                include.toArray(new DocIterator[include.size()]));
+        if (exclude.isEmpty()) {
+            return it;
+        }
+        return new ExclusionIterator(it, exclude.size() == 1 ? exclude.get(0)
+                : new DisjunctionIterator(exclude.toArray(new DocIterator[exclude.size()])));
+    }
+
+    @Override
+    public String toString() {
+        return QueryStrings.join("AND", clauses);
+    }
+}
@@ -0,0 +1,276 @@
+package org.owwlo.InvertedIndexing.query;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+import org.owwlo.InvertedIndexing.PostingsCursor;
+import org.owwlo.InvertedIndexing.TermImpacts;
+
+/**
+ * Ranks documents matching any of a set of tokens by BM25 and returns the
+ * best ones.
+ * <p>
+ * Retrieval is document at a time with block-max WAND: every token has an
+ * upper bound of its score over the whole list and over each block of
+ * {@link TermImpacts#BLOCK_SIZE} documents, derived from the
+ * {@link TermImpacts} written at commit time. Documents whose bounds cannot
+ * beat the current k-th best score are skipped without being scored, and
+ * whole blocks are passed over through the skip data of the lists.
+ * <p>
+ * Frequencies are the number of positions of a token in a document, so the
+ * index should hold <code>docId, position</code> pairs. Document lengths
+ * are those recorded by the builder; documents without one count as being
+ * of average length. A searcher must not be shared between threads.
+ * 
+ * @author owwlo
+ */
+public class Bm25Searcher {
+    public static final float DEFAULT_K1 = 1.2f;
+    public static final float DEFAULT_B = 0.75f;
+
+    /**
+     * Bounds are widened by this factor so rounding never makes a score
+     * exceed its bound.
+     */
+    private static final double BOUND_SLACK = 1 + 1e-6;
+
+    private final InvertedIndexBuilder builder;
+    private final IvtMapInteger index;
+    private final double k1;
+    private final double b;
+
+    public Bm25Searcher(InvertedIndexBuilder builder) {
+        this(builder, DEFAULT_K1, DEFAULT_B);
+    }
+
+    public Bm25Searcher(InvertedIndexBuilder builder, float k1, float b) {
+        if (k1 < 0 || b < 0 || b > 1) {
+            throw new IllegalArgumentException("Invalid BM25 parameters: k1=" + k1 + ", b=" + b);
+        }
+        this.builder = builder;
+        this.index = builder.getUnifiedDistributedIvtiIntegerMap();
+        this.k1 = k1;
+        this.b = b;
+    }
+
+    /**
+     * @param k Number of documents to return.
+     * @param tokens Tokens of the query. Repeated tokens weigh more.
+     * @return Up to <code>k</code> documents by descending score.
+     */
+    public ScoreDoc[] search(int k, String... tokens) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        double averageLength = builder.getAverageDocumentLength();
+        if (averageLength <= 0) {
+            averageLength = 1;
+        }
+        Term[] all = new Term[tokens.length];
+        try {
+            for (int i = 0; i < tokens.length; i++) {
+                all[i] = new Term(tokens[i], averageLength);
+            }
+            return search(k, all, averageLength);
+        } finally {
+            // Cursors left before the end of their lists hold the index.
+            for (Term term : all) {
+                if (term != null) {
+                    term.cursor.close();
+                }
+            }
+        }
+    }
+
+    private ScoreDoc[] search(int k, Term[] all, double averageLength) {
+        Term[] terms = new Term[all.length];
+        int termCount = 0;
+        for (Term term : all) {
+            if (term.cursor.cost() > 0) {
+                terms[termCount++] = term;
+            }
+        }
+        terms = Arrays.copyOf(terms, termCount);
+        int docCount = builder.getDocumentCount();
+        for (Term term : terms) {
+            docCount = Math.max(docCount, term.docFreq);
+        }
+        for (Term term : terms) {
+            term.setIdf(Math.log(1 + (docCount - term.docFreq + 0.5) / (term.docFreq + 0.5)));
+            term.cursor.nextDoc();
+        }
+
+        PriorityQueue<ScoreDoc> top = new PriorityQueue<ScoreDoc>(k, new Comparator<ScoreDoc>() {
+            @Override
+            public int compare(ScoreDoc x, ScoreDoc y) {
+                if (x.getScore() != y.getScore()) {
+                    return x.getScore() < y.getScore() ? -1 : 1;
+                }
+                // Among equal scores the larger document id goes first.
+                return x.getDocId() > y.getDocId() ? -1 : (x.getDocId() == y.getDocId() ? 0 : 1);
+            }
+        });
+        double threshold = 0;
+        while (true) {
+            sortByDoc(terms);
+
+            // Find the first document whose bounds could beat the threshold.
+            double bound = 0;
+            int pivot = -1;
+            for (int i = 0; i < terms.length && terms[i].doc() != PostingsCursor.NO_MORE_DOCS; i++) {
+                bound += terms[i].maxScore;
+                if (bound > threshold) {
+                    pivot = i;
+                    break;
+                }
+            }
+            if (pivot < 0) {
+                break;
+            }
+            int doc = terms[pivot].doc();
+            while (pivot + 1 < terms.length && terms[pivot + 1].doc() == doc) {
+                pivot++;
+            }
+
+            // Check the tighter bounds of the blocks holding the document.
+            double blockBound = 0;
+            long next = PostingsCursor.NO_MORE_DOCS;
+            for (int i = 0; i <= pivot; i++) {
+                blockBound += terms[i].blockMaxScore(doc);
+                next = Math.min(next, (long) terms[i].blockLastDoc + 1);
+            }
+            if (blockBound <= threshold) {
+                // No document before the end of these blocks can make it.
+                if (pivot + 1 < terms.length) {
+                    next = Math.min(next, terms[pivot + 1].doc());
+                }
+                int target = (int) Math.max(next, doc + 1L);
+                for (int i = 0; i <= pivot; i++) {
+                    if (terms[i].doc() < target) {
+                        terms[i].cursor.advance(target);
+                    }
+                }
+                continue;
+            }
+
+            if (terms[0].doc() == doc) {
+                int length = builder.getDocumentLength(doc);
+                double norm = k1 * (1 - b + b * (length < 0 ? averageLength : length)
+                        / averageLength);
+                double score = 0;
+                for (int i = 0; i <= pivot; i++) {
+                    int freq = terms[i].cursor.freq();
+                    score += terms[i].idf * freq * (k1 + 1) / (freq + norm);
+                }
+                if (top.size() < k) {
+                    top.add(new ScoreDoc(doc, (float) score));
+                } else if ((float) score > top.peek().getScore()) {
+                    top.poll();
+                    top.add(new ScoreDoc(doc, (float) score));
+                }
+                if (top.size() == k) {
+                    threshold = top.peek().getScore();
+                }
+                for (int i = 0; i <= pivot; i++) {
+                    terms[i].cursor.nextDoc();
+                }
+            } else {
+                // Documents before the pivot cannot make it.
+                for (int i = 0; i < pivot; i++) {
+                    if (terms[i].doc() < doc) {
+                        terms[i].cursor.advance(doc);
+                    }
+                }
+            }
+        }
+
+        ScoreDoc[] result = new ScoreDoc[top.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = top.poll();
+        }
+        return result;
+    }
+
+    private static void sortByDoc(Term[] terms) {
+        for (int i = 1; i < terms.length; i++) {
+            Term term = terms[i];
+            int j = i - 1;
+            for (; j >= 0 && terms[j].doc() > term.doc(); j--) {
+                terms[j + 1] = terms[j];
+            }
+            terms[j + 1] = term;
+        }
+    }
+
+    /**
+     * A token of the query with its cursor and score bounds.
+     */
+    private class Term {
+        final PostingsCursor cursor;
+        final TermImpacts impacts;
+        final int docFreq;
+        private final double averageLength;
+        double idf;
+        double maxScore;
+        private double[] blockMaxScores;
+        private int block = 0;
+        int blockLastDoc;
+
+        Term(String token, double averageLength) {
+            this.cursor = index.cursor(token);
+            this.impacts = index.impacts(token);
+            this.averageLength = averageLength;
+            // Without bounds the documents are counted on a cursor of their
+            // own, leaving the scoring cursor at the start.
+            docFreq = impacts != null ? impacts.getDocCount() : countDocs(index.cursor(token));
+        }
+
+        void setIdf(double idf) {
+            this.idf = idf;
+            if (impacts == null) {
+                maxScore = Double.POSITIVE_INFINITY;
+                return;
+            }
+            blockMaxScores = new double[impacts.getBlockCount()];
+            for (int i = 0; i < blockMaxScores.length; i++) {
+                int freq = impacts.getMaxFreq(i);
+                double norm = k1 * (1 - b + b * impacts.getMinLength(i) / averageLength);
+                blockMaxScores[i] = idf * freq * (k1 + 1) / (freq + norm) * BOUND_SLACK;
+                maxScore = Math.max(maxScore, blockMaxScores[i]);
+            }
+        }
+
+        int doc() {
+            return cursor.docId();
+        }
+
+        /**
+         * @return Bound of the scores in the block holding <code>doc</code>,
+         *         whose last document is left in {@link #blockLastDoc}.
+         */
+        double blockMaxScore(int doc) {
+            if (impacts == null) {
+                blockLastDoc = doc;
+                return Double.POSITIVE_INFINITY;
+            }
+            block = impacts.findBlock(doc, block);
+            if (block == blockMaxScores.length) {
+                blockLastDoc = PostingsCursor.NO_MORE_DOCS - 1;
+                return 0;
+            }
+            blockLastDoc = impacts.getLastDoc(block);
+            return blockMaxScores[block];
+        }
+    }
+
+    private int countDocs(PostingsCursor cursor) {
+        int count = 0;
+        while (cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+            count++;
+        }
+        return count;
+    }
+}
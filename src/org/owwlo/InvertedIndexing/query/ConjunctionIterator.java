@@ -0,0 +1,68 @@
+package org.owwlo.InvertedIndexing.query;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Documents matching all clauses.
+ * <p>
+ * Clauses are ordered by cost. The cheapest one leads and the others are
+ * advanced to its document; whenever one of them overshoots, the lead is
+ * advanced to that document instead (leapfrogging). Every advance gallops
+ * and uses skip data, so the work is bounded by the shortest list rather
+ * than the sum of all of them.
+ * 
+ * @author owwlo
+ */
+class ConjunctionIterator extends DocIterator {
+    private final DocIterator[] clauses;
+    private int doc = -1;
+
+    ConjunctionIterator(DocIterator[] clauses) {
+        this.clauses = clauses.clone();
+        Arrays.sort(this.clauses, new Comparator<DocIterator>() {
+            @Override
+            public int compare(DocIterator a, DocIterator b) {
+                long x = a.cost();
+                long y = b.cost();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+    }
+
+    @Override
+    public int docId() {
+        return doc;
+    }
+
+    @Override
+    public int advance(int target) {
+        DocIterator lead = clauses[0];
+        int candidate = lead.advance(target);
+        outer: while (candidate != NO_MORE_DOCS) {
+            for (int i = 1; i < clauses.length; i++) {
+                DocIterator other = clauses[i];
+                int found = other.docId();
+                if (found < candidate) {
+                    found = other.advance(candidate);
+                }
+                if (found > candidate) {
+                    candidate = lead.advance(found);
+                    continue outer;
+                }
+            }
+            break;
+        }
+        return doc = candidate;
+    }
+
+    @Override
+    public long cost() {
+        return clauses[0].cost();
+    }
+
+    @Override
+    public void close() {
+        Query.close(Arrays.asList(clauses));
+    }
+}
@@ -0,0 +1,62 @@
+package org.owwlo.InvertedIndexing.query;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Documents matching any clause, merged through a heap ordered by the
+ * current document of each clause.
+ * 
+ * @author owwlo
+ */
+class DisjunctionIterator extends DocIterator {
+    private final PriorityQueue<DocIterator> queue;
+    private final long cost;
+    private int doc = -1;
+
+    DisjunctionIterator(DocIterator[] clauses) {
+        queue = new PriorityQueue<DocIterator>(clauses.length, new Comparator<DocIterator>() {
+            @Override
+            public int compare(DocIterator a, DocIterator b) {
+                int x = a.docId();
+                int y = b.docId();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        long sum = 0;
+        for (DocIterator clause : clauses) {
+            queue.add(clause);
+            sum += clause.cost();
+        }
+        cost = sum;
+    }
+
+    @Override
+    public int docId() {
+        return doc;
+    }
+
+    @Override
+    public int advance(int target) {
+        DocIterator top = queue.peek();
+        while (top.docId() < target) {
+            queue.poll();
+            top.advance(target);
+            queue.add(top);
+            top = queue.peek();
+        }
+        return doc = top.docId();
+    }
+
+    @Override
+    public long cost() {
+        return cost;
+    }
+
+    @Override
+    public void close() {
+        for (DocIterator clause : queue) {
+            clause.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.owwlo.InvertedIndexing.query;
+
+/**
+ * Iterates the ids of matching documents in increasing order, each once.
+ * 
+ * @author owwlo
+ */
+public abstract class DocIterator {
+    /**
+     * Returned once the iterator is exhausted.
+     */
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    /**
+     * @return Current document id, -1 before the first move, or
+     *         {@link #NO_MORE_DOCS}.
+     */
+    public abstract int docId();
+
+    /**
+     * Move to the next matching document.
+     * 
+     * @return Its id, or {@link #NO_MORE_DOCS}.
+     */
+    public int nextDoc() {
+        int doc = docId();
+        return doc == NO_MORE_DOCS ? NO_MORE_DOCS : advance(doc + 1);
+    }
+
+    /**
+     * Move to the first matching document at or after <code>target</code>,
+     * which must be greater than {@link #docId()}.
+     * 
+     * @return Its id, or {@link #NO_MORE_DOCS}.
+     */
+    public abstract int advance(int target);
+
+    /**
+     * @return Estimated cost of iterating all documents, used to order
+     *         clauses.
+     */
+    public abstract long cost();
+
+    /**
+     * Release the cursors of this iterator. Cursors are released once they
+     * are exhausted, so this is only needed when iteration stops early.
+     */
+    public void close() {
+    }
+}
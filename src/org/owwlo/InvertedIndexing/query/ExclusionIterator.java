@@ -0,0 +1,49 @@
+package org.owwlo.InvertedIndexing.query;
+
+/**
+ * Documents of one iterator that another one does not match.
+ * 
+ * @author owwlo
+ */
+class ExclusionIterator extends DocIterator {
+    private final DocIterator include;
+    private final DocIterator exclude;
+    private int doc = -1;
+
+    ExclusionIterator(DocIterator include, DocIterator exclude) {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    @Override
+    public int docId() {
+        return doc;
+    }
+
+    @Override
+    public int advance(int target) {
+        int candidate = include.advance(target);
+        while (candidate != NO_MORE_DOCS) {
+            int excluded = exclude.docId();
+            if (excluded < candidate) {
+                excluded = exclude.advance(candidate);
+            }
+            if (excluded != candidate) {
+                break;
+            }
+            candidate = include.advance(candidate + 1);
+        }
+        return doc = candidate;
+    }
+
+    @Override
+    public long cost() {
+        return include.cost();
+    }
+
+    @Override
+    public void close() {
+        include.close();
+        exclude.close();
+    }
+}
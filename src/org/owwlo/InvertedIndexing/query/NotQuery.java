@@ -0,0 +1,32 @@
+package org.owwlo.InvertedIndexing.query;
+
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+/**
+ * Excludes the documents matching a query. The set of all documents is not
+ * known to the index, so a NOT query can only be a clause of an
+ * {@link AndQuery} next to a clause which is not negated.
+ * 
+ * @author owwlo
+ */
+public class NotQuery extends Query {
+    private final Query clause;
+
+    public NotQuery(Query clause) {
+        this.clause = clause;
+    }
+
+    public Query getClause() {
+        return clause;
+    }
+
+    @Override
+    public DocIterator iterator(IvtMapInteger index) {
+        throw new UnsupportedOperationException("NOT can only be used as a clause of AND.");
+    }
+
+    @Override
+    public String toString() {
+        return "NOT " + clause;
+    }
+}
@@ -0,0 +1,43 @@
+package org.owwlo.InvertedIndexing.query;
+
+import java.util.Arrays;
+
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+/**
+ * Documents matching any clause.
+ * 
+ * @author owwlo
+ */
+public class OrQuery extends Query {
+    private final Query[] clauses;
+
+    public OrQuery(Query... clauses) {
+        if (clauses.length == 0) {
+            throw new IllegalArgumentException("OR needs at least one clause.");
+        }
+        this.clauses = clauses.clone();
+    }
+
+    @Override
+    public DocIterator iterator(IvtMapInteger index) {
+        if (clauses.length == 1) {
+            return clauses[0].iterator(index);
+        }
+        DocIterator[] iterators = new DocIterator[clauses.length];
+        try {
+            for (int i = 0; i < clauses.length; i++) {
+                iterators[i] = clauses[i].iterator(index);
+            }
+        } catch (RuntimeException e) {
+            close(Arrays.asList(iterators));
+            throw e;
+        }
+        return new DisjunctionIterator(iterators);
+    }
+
+    @Override
+    public String toString() {
+        return QueryStrings.join("OR", clauses);
+    }
+}
@@ -0,0 +1,49 @@
+package org.owwlo.InvertedIndexing.query;
+
+import java.util.Arrays;
+
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+/**
+ * Documents where tokens occur in order at consecutive positions. Needs
+ * Posting Lists of <code>docId, position</code> pairs.
+ * 
+ * @author owwlo
+ */
+public class PhraseQuery extends Query {
+    private final String[] tokens;
+
+    public PhraseQuery(String... tokens) {
+        if (tokens.length == 0) {
+            throw new IllegalArgumentException("A phrase needs at least one token.");
+        }
+        this.tokens = tokens.clone();
+    }
+
+    @Override
+    public DocIterator iterator(IvtMapInteger index) {
+        return new PositionalIterator(termIterators(index, tokens), true, 0);
+    }
+
+    static TermIterator[] termIterators(IvtMapInteger index, String[] tokens) {
+        TermIterator[] terms = new TermIterator[tokens.length];
+        try {
+            for (int i = 0; i < tokens.length; i++) {
+                terms[i] = new TermIterator(index.cursor(tokens[i]));
+            }
+        } catch (RuntimeException e) {
+            close(Arrays.<DocIterator> asList(terms));
+            throw e;
+        }
+        return terms;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < tokens.length; i++) {
+            sb.append(i > 0 ? " " : "").append(tokens[i]);
+        }
+        return sb.append('"').toString();
+    }
+}
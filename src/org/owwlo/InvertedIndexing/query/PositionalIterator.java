@@ -0,0 +1,141 @@
+package org.owwlo.InvertedIndexing.query;
+
+import java.util.Arrays;
+
+import org.owwlo.InvertedIndexing.PostingsCursor;
+
+/**
+ * Documents where the tokens of a phrase occur next to each other, or all
+ * within a window of positions.
+ * <p>
+ * Candidates are found by intersecting the documents of all tokens first;
+ * positions are only read for candidates, and block-packed lists only
+ * unpack the positions of blocks holding a candidate.
+ * 
+ * @author owwlo
+ */
+class PositionalIterator extends DocIterator {
+    private final PostingsCursor[] cursors;
+    private final DocIterator approximation;
+    private final boolean phrase;
+    private final int distance;
+    private final int[][] positions;
+    private final int[] counts;
+    private final int[] at;
+    private int doc = -1;
+
+    /**
+     * @param phrase Whether tokens must occur in order at consecutive
+     *            positions. Otherwise they may occur in any order, as long as
+     *            all of them fit in <code>distance + 1</code> positions.
+     */
+    PositionalIterator(TermIterator[] terms, boolean phrase, int distance) {
+        this.phrase = phrase;
+        this.distance = distance;
+        cursors = new PostingsCursor[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            cursors[i] = terms[i].cursor;
+            if (cursors[i].cost() > 0 && !cursors[i].hasPositions()) {
+                Query.close(Arrays.<DocIterator> asList(terms));
+                throw new IllegalArgumentException(
+                        "Positional queries need lists of docId, position pairs.");
+            }
+        }
+        approximation = terms.length == 1 ? terms[0] : new ConjunctionIterator(terms);
+        positions = new int[terms.length][16];
+        counts = new int[terms.length];
+        at = new int[terms.length];
+    }
+
+    @Override
+    public int docId() {
+        return doc;
+    }
+
+    @Override
+    public int advance(int target) {
+        int candidate = approximation.advance(target);
+        while (candidate != NO_MORE_DOCS && !matches()) {
+            candidate = approximation.advance(candidate + 1);
+        }
+        return doc = candidate;
+    }
+
+    @Override
+    public long cost() {
+        return approximation.cost();
+    }
+
+    @Override
+    public void close() {
+        approximation.close();
+    }
+
+    private boolean matches() {
+        for (int i = 0; i < cursors.length; i++) {
+            int freq = cursors[i].freq();
+            if (positions[i].length < freq) {
+                positions[i] = new int[Math.max(freq, positions[i].length * 2)];
+            }
+            for (int j = 0; j < freq; j++) {
+                // Relative to the start of the phrase, a match has the same
+                // value in every list.
+                positions[i][j] = cursors[i].nextPosition() - (phrase ? i : 0);
+            }
+            counts[i] = freq;
+            at[i] = 0;
+        }
+        return phrase ? matchesPhrase() : matchesWindow();
+    }
+
+    /**
+     * Intersect the relative positions of all tokens.
+     */
+    private boolean matchesPhrase() {
+        int value = positions[0][0];
+        int agreed = 1;
+        for (int i = 1; agreed < cursors.length; i = (i + 1) % cursors.length) {
+            int j = at[i];
+            while (j < counts[i] && positions[i][j] < value) {
+                j++;
+            }
+            if (j == counts[i]) {
+                return false;
+            }
+            at[i] = j;
+            if (positions[i][j] == value) {
+                agreed++;
+            } else {
+                value = positions[i][j];
+                agreed = 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Slide a window over the positions of all tokens, always moving the
+     * token at its left end, until it is narrow enough.
+     */
+    private boolean matchesWindow() {
+        while (true) {
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+            int minToken = 0;
+            for (int i = 0; i < cursors.length; i++) {
+                int p = positions[i][at[i]];
+                if (p < min) {
+                    min = p;
+                    minToken = i;
+                }
+                max = Math.max(max, p);
+            }
+            if ((long) max - min <= distance) {
+                return true;
+            }
+            if (++at[minToken] == counts[minToken]) {
+                return false;
+            }
+        }
+    }
+}
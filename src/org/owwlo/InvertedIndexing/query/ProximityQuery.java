@@ -0,0 +1,41 @@
+package org.owwlo.InvertedIndexing.query;
+
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+/**
+ * Documents where all tokens occur, in any order, within a given distance
+ * of each other: the first and the last of them are at most
+ * <code>distance</code> positions apart. Needs Posting Lists of
+ * <code>docId, position</code> pairs.
+ * 
+ * @author owwlo
+ */
+public class ProximityQuery extends Query {
+    private final int distance;
+    private final String[] tokens;
+
+    public ProximityQuery(int distance, String... tokens) {
+        if (distance < 0) {
+            throw new IllegalArgumentException("Distance must not be negative: " + distance);
+        }
+        if (tokens.length == 0) {
+            throw new IllegalArgumentException("A proximity query needs at least one token.");
+        }
+        this.distance = distance;
+        this.tokens = tokens.clone();
+    }
+
+    @Override
+    public DocIterator iterator(IvtMapInteger index) {
+        return new PositionalIterator(PhraseQuery.termIterators(index, tokens), false, distance);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < tokens.length; i++) {
+            sb.append(i > 0 ? " " : "").append(tokens[i]);
+        }
+        return sb.append("\"~").append(distance).toString();
+    }
+}
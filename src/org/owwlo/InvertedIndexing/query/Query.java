@@ -0,0 +1,56 @@
+package org.owwlo.InvertedIndexing.query;
+
+import java.util.List;
+
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+import org.owwlo.InvertedIndexing.PostingBuffer;
+
+/**
+ * A query over the Posting Lists of an index, evaluated lazily on the stored
+ * lists through {@link org.owwlo.InvertedIndexing.PostingsCursor}s.
+ * <p>
+ * Queries are trees of {@link TermQuery}, {@link AndQuery},
+ * {@link OrQuery} and {@link NotQuery}. Document ids are the first int of
+ * each entry, so lists must be sorted by document id.
+ * 
+ * @author owwlo
+ */
+public abstract class Query {
+    /**
+     * Iterate the documents matching this query.
+     * 
+     * @param index Unified map of the index, from
+     *            {@link org.owwlo.InvertedIndexing.InvertedIndexBuilder#getUnifiedDistributedIvtiIntegerMap()}
+     *            .
+     * @return An iterator to {@link DocIterator#close() close} once done, as
+     *         clauses may be left before the end of their lists.
+     */
+    public abstract DocIterator iterator(IvtMapInteger index);
+
+    /**
+     * @return Ids of all matching documents in increasing order.
+     */
+    public int[] execute(IvtMapInteger index) {
+        DocIterator it = iterator(index);
+        try {
+            PostingBuffer result = new PostingBuffer();
+            for (int doc = it.nextDoc(); doc != DocIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+                result.add(doc);
+            }
+            return result.toArray();
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Close iterators, skipping null entries.
+     */
+    static void close(List<DocIterator> iterators) {
+        for (DocIterator it : iterators) {
+            if (it != null) {
+                it.close();
+            }
+        }
+    }
+}
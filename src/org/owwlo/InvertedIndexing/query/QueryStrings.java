@@ -0,0 +1,19 @@
+package org.owwlo.InvertedIndexing.query;
+
+/**
+ * Formatting helpers for {@link Query#toString()}.
+ * 
+ * @author owwlo
+ */
+class QueryStrings {
+    static String join(String operator, Query[] clauses) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < clauses.length; i++) {
+            if (i > 0) {
+                sb.append(' ').append(operator).append(' ');
+            }
+            sb.append(clauses[i]);
+        }
+        return sb.append(')').toString();
+    }
+}
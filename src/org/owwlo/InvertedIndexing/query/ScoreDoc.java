@@ -0,0 +1,29 @@
+package org.owwlo.InvertedIndexing.query;
+
+/**
+ * A document with its score.
+ * 
+ * @author owwlo
+ */
+public class ScoreDoc {
+    private final int docId;
+    private final float score;
+
+    public ScoreDoc(int docId, float score) {
+        this.docId = docId;
+        this.score = score;
+    }
+
+    public int getDocId() {
+        return docId;
+    }
+
+    public float getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return docId + ":" + score;
+    }
+}
@@ -0,0 +1,38 @@
+package org.owwlo.InvertedIndexing.query;
+
+import org.owwlo.InvertedIndexing.PostingsCursor;
+
+/**
+ * Documents of one token, read straight from its stored Posting List.
+ * 
+ * @author owwlo
+ */
+class TermIterator extends DocIterator {
+    final PostingsCursor cursor;
+
+    TermIterator(PostingsCursor cursor) {
+        this.cursor = cursor;
+    }
+
+    @Override
+    public int docId() {
+        return cursor.docId();
+    }
+
+    @Override
+    public int advance(int target) {
+        // Advancing past the current document also skips repeated entries
+        // of lists of document ids.
+        return cursor.advance(target);
+    }
+
+    @Override
+    public long cost() {
+        return cursor.cost();
+    }
+
+    @Override
+    public void close() {
+        cursor.close();
+    }
+}
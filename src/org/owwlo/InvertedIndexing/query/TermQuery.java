@@ -0,0 +1,62 @@
+package org.owwlo.InvertedIndexing.query;
+
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+import org.owwlo.InvertedIndexing.PostingsCursor;
+
+/**
+ * Documents containing a token.
+ * <p>
+ * The query states the layout of the Posting List it expects, and a list
+ * stored with another one is rejected, since reading positions as document
+ * ids would silently return wrong documents.
+ * 
+ * @author owwlo
+ */
+public class TermQuery extends Query {
+    private final String token;
+    private final int entrySize;
+
+    /**
+     * Documents containing a token whose Posting List holds
+     * <code>docId, position</code> pairs.
+     */
+    public TermQuery(String token) {
+        this(token, 2);
+    }
+
+    /**
+     * @param entrySize Ints per entry of the Posting List: 1 for document
+     *            ids, 2 for <code>docId, position</code> pairs.
+     */
+    public TermQuery(String token, int entrySize) {
+        if (entrySize != 1 && entrySize != 2) {
+            throw new IllegalArgumentException("Entry size must be 1 or 2: " + entrySize);
+        }
+        this.token = token;
+        this.entrySize = entrySize;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public int getEntrySize() {
+        return entrySize;
+    }
+
+    @Override
+    public DocIterator iterator(IvtMapInteger index) {
+        PostingsCursor cursor = index.cursor(token);
+        if (cursor.cost() > 0 && cursor.getEntrySize() != entrySize) {
+            cursor.close();
+            throw new IllegalArgumentException("Posting List of " + token
+                    + " does not hold entries of " + entrySize + " ints.");
+        }
+        return new TermIterator(cursor);
+    }
+
+    @Override
+    public String toString() {
+        return token;
+    }
+}
@@ -0,0 +1,495 @@
+package org.owwlo.InvertedIndexing.shard;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+import org.owwlo.InvertedIndexing.PostingCodec;
+import org.owwlo.InvertedIndexing.PostingsCursor;
+import org.owwlo.InvertedIndexing.TermImpacts;
+
+/**
+ * Index whose tokens are partitioned by hash over several
+ * {@link InvertedIndexBuilder} directories, so building and lookups scale
+ * over disks and cores.
+ * <p>
+ * Shard i lives in the subdirectory <code>shard{i}</code>, and a token
+ * belongs to the shard given by {@link #shardOf(String)}. Every shard is
+ * written by its own thread, in the order documents and batches were added,
+ * while shards proceed in parallel; adding blocks once a shard falls
+ * {@link #QUEUE_CAPACITY} tasks behind. A single token is read from its
+ * shard on the calling thread, and lookups of several tokens go to their
+ * shards in parallel.
+ * <p>
+ * Every shard records the length of every document, so statistics such as
+ * the average document length are the same in each of them.
+ *
+ * <pre>
+ * ShardedIndex index = ShardedIndex.open(new File(&quot;index&quot;), 4);
+ * index.addDocument(docId, tokens);
+ * index.commit();
+ * int[] postings = index.getInts(&quot;token&quot;);
+ * index.close();
+ * </pre>
+ *
+ * @author owwlo
+ */
+public class ShardedIndex {
+    /**
+     * Tasks a shard may have queued before adding blocks.
+     */
+    public static final int QUEUE_CAPACITY = 64;
+
+    private static final String LAYOUT_FILE = "shards";
+    private static final String SHARD_DIR_PREFIX = "shard";
+    private static final int LAYOUT_MAGIC = 0x53485244;
+
+    /**
+     * Wait for room in the queue instead of failing, so producers slow down
+     * to the pace of the shard.
+     */
+    private static final RejectedExecutionHandler BLOCK = new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Sharded index is closed.");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    };
+
+    private final InvertedIndexBuilder[] shards;
+    private final ThreadPoolExecutor[] writers;
+    private final ExecutorService readers;
+
+    /**
+     * Unified map of each shard, replaced after every commit.
+     */
+    private volatile IvtMapInteger[] maps;
+
+    /**
+     * First failure of a task run by a writer, thrown by the next commit.
+     */
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    private volatile boolean closed = false;
+
+    private ShardedIndex(File dir, int shardCount, boolean memoryMapped) {
+        shards = new InvertedIndexBuilder[shardCount];
+        writers = new ThreadPoolExecutor[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            File shardDir = new File(dir, SHARD_DIR_PREFIX + i);
+            shardDir.mkdirs();
+            shards[i] = InvertedIndexBuilder.getBuilder(shardDir, memoryMapped);
+            writers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), daemonThreads("Shard " + i
+                            + " writer"), BLOCK);
+        }
+        readers = Executors.newFixedThreadPool(
+                Math.min(shardCount, Runtime.getRuntime().availableProcessors()),
+                daemonThreads("Shard reader"));
+        refreshMaps();
+    }
+
+    /**
+     * @see #open(File, int, boolean)
+     */
+    public static ShardedIndex open(File dir, int shardCount) {
+        return open(dir, shardCount, false);
+    }
+
+    /**
+     * Open a sharded index, creating it if the directory holds none.
+     *
+     * @param shardCount Number of shards. It cannot change once the index
+     *            is created, as it decides where every token is stored.
+     * @param memoryMapped Whether shards memory map their files for reading.
+     */
+    public static ShardedIndex open(File dir, int shardCount, boolean memoryMapped) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+        }
+        dir.mkdirs();
+        if (!dir.isDirectory()) {
+            throw new Error(dir.getAbsolutePath() + " is not a directory.");
+        }
+        File layout = new File(dir, LAYOUT_FILE);
+        try {
+            if (layout.exists()) {
+                int stored = readLayout(layout);
+                if (stored != shardCount) {
+                    throw new Error(dir.getAbsolutePath() + " holds an index of " + stored
+                            + " shards, not " + shardCount + ".");
+                }
+            } else {
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(layout));
+                try {
+                    out.writeInt(LAYOUT_MAGIC);
+                    out.writeInt(shardCount);
+                } finally {
+                    out.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new Error("Cannot open sharded index in " + dir.getAbsolutePath(), e);
+        }
+        return new ShardedIndex(dir, shardCount, memoryMapped);
+    }
+
+    private static int readLayout(File layout) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(layout));
+        try {
+            if (in.readInt() != LAYOUT_MAGIC) {
+                throw new Error(layout.getAbsolutePath() + " is not a shard layout.");
+            }
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + " " + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return Builder of one shard, e.g. to tune or search it on its own.
+     */
+    public InvertedIndexBuilder getShard(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * @return Shard of a token. It only depends on the characters of the
+     *         token and the number of shards.
+     */
+    public int shardOf(String token) {
+        int h = token.hashCode();
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Index one document: each shard gets the tokens it owns, at their
+     * positions in <code>tokens</code>, and the length of the document.
+     * Documents must be added in increasing docId order. Returns once every
+     * shard has queued its part.
+     *
+     * @see InvertedIndexBuilder#addDocument(int, String[])
+     */
+    public void addDocument(final int docId, String[] tokens) {
+        ensureOpen();
+        int[] owners = new int[tokens.length];
+        int[] counts = new int[shards.length];
+        for (int i = 0; i < tokens.length; i++) {
+            if (tokens[i] == null) {
+                throw new IllegalArgumentException("Null token at index " + i + ".");
+            }
+            owners[i] = shardOf(tokens[i]);
+            counts[owners[i]]++;
+        }
+        String[][] parts = new String[shards.length][];
+        int[][] positions = new int[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            if (counts[i] > 0) {
+                parts[i] = new String[counts[i]];
+                positions[i] = new int[counts[i]];
+                counts[i] = 0;
+            }
+        }
+        for (int i = 0; i < tokens.length; i++) {
+            int shard = owners[i];
+            parts[shard][counts[shard]] = tokens[i];
+            positions[shard][counts[shard]++] = i;
+        }
+        final int length = tokens.length;
+        for (int i = 0; i < shards.length; i++) {
+            final InvertedIndexBuilder shard = shards[i];
+            final String[] part = parts[i];
+            final int[] partPositions = positions[i];
+            submit(i, new Runnable() {
+                @Override
+                public void run() {
+                    if (part == null) {
+                        shard.setDocumentLength(docId, length);
+                    } else {
+                        shard.addDocument(docId, part, partPositions, length);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Write a batch of Posting Lists, each to the shard of its token, as a
+     * new batch of every shard holding one of them.
+     *
+     * @param postingLists Map from token to its Posting List. It must not
+     *            be modified until the next {@link #commit()}.
+     * @param codec Codec of the new batches.
+     */
+    public void addBatch(Map<String, int[]> postingLists, final PostingCodec codec) {
+        ensureOpen();
+        List<Map<String, int[]>> parts = new ArrayList<Map<String, int[]>>();
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new LinkedHashMap<String, int[]>());
+        }
+        for (Map.Entry<String, int[]> entry : postingLists.entrySet()) {
+            parts.get(shardOf(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+        for (int i = 0; i < shards.length; i++) {
+            final InvertedIndexBuilder shard = shards[i];
+            final Map<String, int[]> part = parts.get(i);
+            if (part.isEmpty()) {
+                continue;
+            }
+            submit(i, new Runnable() {
+                @Override
+                public void run() {
+                    IvtMapInteger map = shard.createDistributedIvtiIntegerMap(codec);
+                    try {
+                        map.putAllInts(part);
+                    } finally {
+                        map.close();
+                    }
+                }
+            });
+        }
+    }
+
+    private void submit(int shard, final Runnable task) {
+        writers[shard].execute(new Runnable() {
+            @Override
+            public void run() {
+                if (failure.get() != null) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Commit all shards in parallel once they have written everything added
+     * so far.
+     *
+     * @throws IllegalStateException If adding a document or batch failed
+     *             since the index was opened.
+     */
+    public void commit() {
+        ensureOpen();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < shards.length; i++) {
+            final InvertedIndexBuilder shard = shards[i];
+            futures.add(writers[i].submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    shard.commit();
+                    return null;
+                }
+            }));
+        }
+        waitFor(futures);
+        refreshMaps();
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new IllegalStateException("Writing to a shard failed.", t);
+        }
+    }
+
+    /**
+     * Merge every shard in parallel into one segment of at most
+     * <code>maxBatches</code> batches, see
+     * {@link InvertedIndexBuilder#forceMerge(int)}.
+     */
+    public void forceMerge(final int maxBatches) {
+        commit();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < shards.length; i++) {
+            final InvertedIndexBuilder shard = shards[i];
+            futures.add(writers[i].submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    shard.forceMerge(maxBatches);
+                    return null;
+                }
+            }));
+        }
+        waitFor(futures);
+        refreshMaps();
+    }
+
+    private void refreshMaps() {
+        IvtMapInteger[] newMaps = new IvtMapInteger[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            newMaps[i] = shards[i].getUnifiedDistributedIvtiIntegerMap();
+        }
+        maps = newMaps;
+    }
+
+    /**
+     * @return Posting List of a token, read from its shard.
+     */
+    public int[] getInts(String token) {
+        return maps[shardOf(token)].getInts(token);
+    }
+
+    public PostingsCursor cursor(String token) {
+        return maps[shardOf(token)].cursor(token);
+    }
+
+    public TermImpacts impacts(String token) {
+        return maps[shardOf(token)].impacts(token);
+    }
+
+    /**
+     * Look up several tokens, the shards involved in parallel.
+     *
+     * @return Map from every token, in order, to its Posting List, empty if
+     *         the token does not exist.
+     * @see IvtMapInteger#getAll(Collection)
+     */
+    public Map<String, int[]> getAll(Collection<String> tokens) {
+        final IvtMapInteger[] shardMaps = maps;
+        List<List<String>> parts = new ArrayList<List<String>>();
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(new ArrayList<String>());
+        }
+        int involved = 0;
+        for (String token : tokens) {
+            List<String> part = parts.get(shardOf(token));
+            if (part.isEmpty()) {
+                involved++;
+            }
+            part.add(token);
+        }
+
+        List<Map<String, int[]>> found = new ArrayList<Map<String, int[]>>();
+        if (involved <= 1) {
+            for (int i = 0; i < shards.length; i++) {
+                if (!parts.get(i).isEmpty()) {
+                    found.add(shardMaps[i].getAll(parts.get(i)));
+                }
+            }
+        } else {
+            List<Future<Map<String, int[]>>> futures = new ArrayList<Future<Map<String, int[]>>>();
+            for (int i = 0; i < shards.length; i++) {
+                final IvtMapInteger map = shardMaps[i];
+                final List<String> part = parts.get(i);
+                if (part.isEmpty()) {
+                    continue;
+                }
+                futures.add(readers.submit(new Callable<Map<String, int[]>>() {
+                    @Override
+                    public Map<String, int[]> call() {
+                        return map.getAll(part);
+                    }
+                }));
+            }
+            found = waitFor(futures);
+        }
+
+        Map<String, int[]> union = new LinkedHashMap<String, int[]>();
+        for (Map<String, int[]> part : found) {
+            union.putAll(part);
+        }
+        Map<String, int[]> result = new LinkedHashMap<String, int[]>();
+        for (String token : tokens) {
+            result.put(token, union.get(token));
+        }
+        return result;
+    }
+
+    private static <T> List<T> waitFor(List<Future<T>> futures) {
+        List<T> results = new ArrayList<T>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for shards.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        return results;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Sharded index is closed.");
+        }
+    }
+
+    /**
+     * Commit and close all shards.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        try {
+            commit();
+        } finally {
+            closed = true;
+            for (ThreadPoolExecutor writer : writers) {
+                writer.shutdown();
+            }
+            readers.shutdown();
+            for (InvertedIndexBuilder shard : shards) {
+                shard.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.owwlo.InvertedIndexing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+public class AsyncFileOutputStreamTest {
+    /**
+     * Device on which every write fails with "No space left on device".
+     */
+    private static final File FULL_DEVICE = new File("/dev/full");
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("asyncOutput");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void bytesReachTheFileInOrder() throws IOException {
+        Random random = new Random(1);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        File file = new File(dir, "out");
+        AsyncFileOutputStream out = new AsyncFileOutputStream(file, 64, 3);
+        for (int i = 0; i < 2000; i++) {
+            if (random.nextInt(4) == 0) {
+                int b = random.nextInt(256);
+                out.write(b);
+                expected.write(b);
+            } else {
+                // Chunks smaller and larger than a buffer.
+                byte[] chunk = new byte[random.nextInt(200)];
+                random.nextBytes(chunk);
+                int off = chunk.length == 0 ? 0 : random.nextInt(chunk.length);
+                out.write(chunk, off, chunk.length - off);
+                expected.write(chunk, off, chunk.length - off);
+            }
+            if (random.nextInt(100) == 0) {
+                out.flush();
+            }
+        }
+        out.close();
+        // Closing again does nothing.
+        out.close();
+        assertArrayEquals(expected.toByteArray(), read(file));
+    }
+
+    private static void build(File dir, boolean async) {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        builder.setAsyncWrites(async);
+        builder.setIndexingMemoryBudget(64 * 1024);
+        Random random = new Random(2);
+        for (int i = 0; i < 3000; i++) {
+            String[] tokens = new String[random.nextInt(40)];
+            for (int j = 0; j < tokens.length; j++) {
+                tokens[j] = "t" + random.nextInt(500);
+            }
+            builder.addDocument(i, tokens);
+            if (i == 1500) {
+                builder.commit();
+            }
+        }
+        IvtMapInteger map = builder.createDistributedIvtiIntegerMap(PostingCodec.RAW);
+        for (int i = 0; i < 100; i++) {
+            map.put("raw" + i, new int[] { i, 0, i + 1, 0 });
+        }
+        map.close();
+        builder.close();
+    }
+
+    @Test
+    public void asyncIndexIsIdenticalToASynchronousOne() throws IOException {
+        File syncDir = new File(dir, "sync");
+        File asyncDir = new File(dir, "async");
+        syncDir.mkdir();
+        asyncDir.mkdir();
+        build(syncDir, false);
+        build(asyncDir, true);
+
+        String[] names = syncDir.list();
+        String[] asyncNames = asyncDir.list();
+        Arrays.sort(names);
+        Arrays.sort(asyncNames);
+        assertArrayEquals(names, asyncNames);
+        for (String name : names) {
+            assertArrayEquals(name, read(new File(syncDir, name)),
+                    read(new File(asyncDir, name)));
+        }
+
+        InvertedIndexBuilder reader = InvertedIndexBuilder.getBuilder(asyncDir);
+        IvtMapInteger index = reader.getUnifiedDistributedIvtiIntegerMap();
+        assertArrayEquals(new int[] { 7, 0, 8, 0 }, index.getInts("raw7"));
+        reader.close();
+    }
+
+    @Test
+    public void failureIsThrownByALaterWrite() throws IOException {
+        assumeTrue(FULL_DEVICE.exists());
+        AsyncFileOutputStream out = new AsyncFileOutputStream(FULL_DEVICE, 16, 2);
+        byte[] chunk = new byte[16];
+        try {
+            // The first buffer is only handed off by the second write, and
+            // fails on the background thread.
+            for (int i = 0; i < 1000; i++) {
+                out.write(chunk);
+                Thread.sleep(1);
+            }
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        } catch (InterruptedException e) {
+            fail();
+        }
+        try {
+            out.close();
+            fail();
+        } catch (IOException e) {
+            // The failure is thrown again.
+        }
+    }
+
+    @Test
+    public void failureIsThrownByClose() throws IOException {
+        assumeTrue(FULL_DEVICE.exists());
+        AsyncFileOutputStream out = new AsyncFileOutputStream(FULL_DEVICE, 16, 2);
+        out.write(new byte[10]);
+        try {
+            out.close();
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
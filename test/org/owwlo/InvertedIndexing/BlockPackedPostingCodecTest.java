@@ -0,0 +1,231 @@
+package org.owwlo.InvertedIndexing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockPackedPostingCodecTest {
+    private static final int BLOCK_SIZE = BlockPackedPostingCodec.BLOCK_SIZE;
+
+    private File dir;
+    private List<IndexInput> inputs = new ArrayList<IndexInput>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("blockPacked");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (IndexInput in : inputs) {
+            in.close();
+        }
+        TestFiles.delete(dir);
+    }
+
+    @Test
+    public void roundTripsAroundBlockBoundaries() {
+        Random random = new Random(5);
+        for (int docCount : new int[] { 0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1,
+                2 * BLOCK_SIZE, 1000 }) {
+            int[] pairs = VBytePostingCodecTest.randomPairs(random, docCount, 300, 4);
+            assertArrayEquals(pairs, VBytePostingCodecTest.roundTrip(
+                    PostingCodec.blockPacked(2), pairs));
+            int[] docs = documentIds(random, docCount, 300);
+            assertArrayEquals(docs, VBytePostingCodecTest.roundTrip(
+                    PostingCodec.blockPacked(1), docs));
+        }
+    }
+
+    @Test
+    public void roundTripsExceptions() {
+        // Mostly small gaps with a few large ones, stored as exceptions.
+        Random random = new Random(6);
+        int[] docs = new int[5 * BLOCK_SIZE];
+        for (int i = 1; i < docs.length; i++) {
+            docs[i] = docs[i - 1] + (random.nextInt(20) == 0 ? 1 << 20 : 1 + random.nextInt(4));
+        }
+        assertArrayEquals(docs, VBytePostingCodecTest.roundTrip(PostingCodec.blockPacked(1),
+                docs));
+        int[] pairs = new int[2 * docs.length];
+        for (int i = 0; i < docs.length; i++) {
+            pairs[2 * i] = docs[i];
+            pairs[2 * i + 1] = random.nextInt(10) == 0 ? 1 << 24 : random.nextInt(8);
+        }
+        assertArrayEquals(pairs, VBytePostingCodecTest.roundTrip(PostingCodec.blockPacked(2),
+                pairs));
+    }
+
+    @Test
+    public void skipTableHoldsTheLastDocumentOfEveryBlock() {
+        int[] docs = new int[3 * BLOCK_SIZE + 10];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = i * 7;
+        }
+        ByteArrayDataOutput out = new ByteArrayDataOutput();
+        PostingCodec.blockPacked(1).encode(docs, 0, docs.length, out);
+        byte[] bytes = out.bytes();
+        int[] pos = { 0 };
+        assertEquals(docs.length, ByteDataInput.readVInt(bytes, pos));
+        assertEquals(docs.length, ByteDataInput.readVInt(bytes, pos));
+        int skipAt = pos[0];
+        int dataStart = skipAt + 3 * BlockPackedPostingCodec.SKIP_ENTRY_SIZE;
+        int previousEnd = 0;
+        for (int block = 0; block < 3; block++) {
+            int at = skipAt + block * BlockPackedPostingCodec.SKIP_ENTRY_SIZE;
+            assertEquals(docs[(block + 1) * BLOCK_SIZE - 1], readInt(bytes, at));
+            int end = readInt(bytes, at + 4);
+            assertTrue(end > previousEnd && dataStart + end < out.size());
+            previousEnd = end;
+        }
+    }
+
+    @Test
+    public void cursorAdvancesOverFragmentsOfDifferentCodecs() throws IOException {
+        Random random = new Random(7);
+        int[] first = VBytePostingCodecTest.randomPairs(random, 2000, 40, 3);
+        int[] second = shift(VBytePostingCodecTest.randomPairs(random, 300, 40, 3),
+                first[first.length - 2] + 1);
+        PostingCodec[] codecs = { PostingCodec.blockPacked(2), PostingCodec.deltaVByte(2) };
+        int[][] lists = { first, second };
+        int[] all = new int[first.length + second.length];
+        System.arraycopy(first, 0, all, 0, first.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+
+        // Every document with its positions.
+        PostingsCursor cursor = open(codecs, lists);
+        assertTrue(cursor.hasPositions());
+        assertEquals(2, cursor.getEntrySize());
+        assertEquals(-1, cursor.docId());
+        int i = 0;
+        while (cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+            assertEquals(all[i], cursor.docId());
+            int freq = cursor.freq();
+            for (int j = 0; j < freq; j++) {
+                assertEquals(all[i], all[i + 2 * j]);
+                assertEquals(all[i + 2 * j + 1], cursor.nextPosition());
+            }
+            i += 2 * freq;
+        }
+        assertEquals(all.length, i);
+
+        // Increasing targets, some of which skip whole blocks.
+        for (int round = 0; round < 20; round++) {
+            cursor = open(codecs, lists);
+            int target = -1;
+            while (true) {
+                target += 1 + random.nextInt(round < 10 ? 50 : 5000);
+                int expected = firstAtOrAfter(all, target);
+                int doc = cursor.advance(target);
+                assertEquals(expected, doc);
+                if (doc == PostingsCursor.NO_MORE_DOCS) {
+                    break;
+                }
+                assertEquals(all[indexOf(all, doc) + 1], cursor.nextPosition());
+                target = doc;
+            }
+        }
+    }
+
+    @Test
+    public void emptyCursor() throws IOException {
+        PostingsCursor cursor = open(new PostingCodec[0], new int[0][]);
+        assertFalse(cursor.hasPositions());
+        assertEquals(0, cursor.getEntrySize());
+        assertEquals(PostingsCursor.NO_MORE_DOCS, cursor.nextDoc());
+    }
+
+    @Test
+    public void readErrorIsNotTheEndOfTheList() throws IOException {
+        int[] pairs = VBytePostingCodecTest.randomPairs(new Random(7), 50000, 20, 3);
+        PostingsCursor cursor = open(new PostingCodec[] { PostingCodec.blockPacked(2) },
+                new int[][] { pairs });
+        assertEquals(pairs[0], cursor.nextDoc());
+        inputs.get(inputs.size() - 1).close();
+        int read = 1;
+        try {
+            while (cursor.nextDoc() != PostingsCursor.NO_MORE_DOCS) {
+                read++;
+            }
+            fail("Read " + read + " documents of a closed file.");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private PostingsCursor open(PostingCodec[] codecs, int[][] lists) throws IOException {
+        int count = codecs.length;
+        IndexInput[] in = new IndexInput[count];
+        long[] starts = new long[count];
+        int[] lengths = new int[count];
+        File file = new File(dir, "pstl" + inputs.size());
+        FileOutputStream out = new FileOutputStream(file);
+        long position = 0;
+        for (int i = 0; i < count; i++) {
+            ByteArrayDataOutput record = new ByteArrayDataOutput();
+            codecs[i].encode(lists[i], 0, lists[i].length, record);
+            out.write(record.bytes(), 0, record.size());
+            starts[i] = position;
+            lengths[i] = record.size();
+            position += record.size();
+        }
+        out.close();
+        IndexInput input = new FileIndexInput(file);
+        inputs.add(input);
+        for (int i = 0; i < count; i++) {
+            in[i] = input;
+        }
+        return new PostingsCursor(in, codecs, starts, lengths);
+    }
+
+    private static int[] documentIds(Random random, int count, int maxGap) {
+        int[] docs = new int[count];
+        for (int i = 1; i < count; i++) {
+            docs[i] = docs[i - 1] + random.nextInt(maxGap);
+        }
+        return docs;
+    }
+
+    private static int[] shift(int[] pairs, int by) {
+        for (int i = 0; i < pairs.length; i += 2) {
+            pairs[i] += by;
+        }
+        return pairs;
+    }
+
+    private static int firstAtOrAfter(int[] pairs, int target) {
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (pairs[i] >= target) {
+                return pairs[i];
+            }
+        }
+        return PostingsCursor.NO_MORE_DOCS;
+    }
+
+    private static int indexOf(int[] pairs, int doc) {
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (pairs[i] == doc) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int readInt(byte[] b, int at) {
+        return (b[at] & 0xff) << 24 | (b[at + 1] & 0xff) << 16 | (b[at + 2] & 0xff) << 8
+                | b[at + 3] & 0xff;
+    }
+}
@@ -0,0 +1,134 @@
+package org.owwlo.InvertedIndexing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+public class FileIndexInputTest {
+    private File dir;
+    private byte[] content;
+    private FileIndexInput input;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("fileIndexInput");
+        content = new byte[1 << 16];
+        new Random(1).nextBytes(content);
+        File file = new File(dir, "data");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+        input = new FileIndexInput(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        input.close();
+        TestFiles.delete(dir);
+    }
+
+    private void checkRead(int pos, int length) throws IOException {
+        byte[] b = new byte[length];
+        input.readFully(pos, b, 0, length);
+        assertArrayEquals(Arrays.copyOfRange(content, pos, pos + length), b);
+    }
+
+    @Test
+    public void interruptedReaderKeepsTheInputOpen() throws Exception {
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final boolean[] stillInterrupted = new boolean[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                Thread.currentThread().interrupt();
+                try {
+                    checkRead(100, 1000);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+                stillInterrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        };
+        reader.start();
+        reader.join();
+        assertEquals(Arrays.asList(), failures);
+        assertTrue(stillInterrupted[0]);
+        checkRead(5000, 300);
+    }
+
+    @Test
+    public void readersSurviveRepeatedInterrupts() throws Exception {
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        final Random random = new Random(2);
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            int pos;
+                            synchronized (random) {
+                                pos = random.nextInt(content.length - 4096);
+                            }
+                            checkRead(pos, 4096);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (int i = 0; i < 200; i++) {
+            readers[i % readers.length].interrupt();
+            Thread.sleep(1);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(Arrays.asList(), failures);
+        checkRead(0, content.length);
+    }
+
+    @Test
+    public void lookupsAfterAnInterruptedLookup() throws Exception {
+        InvertedIndexBuilder writer = InvertedIndexBuilder.getBuilder(dir);
+        IvtMapInteger map = writer.createDistributedIvtiIntegerMap();
+        map.put("x", new int[] { 1, 0, 2, 5 });
+        map.close();
+        writer.close();
+
+        final InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        final IvtMapInteger index = builder.getUnifiedDistributedIvtiIntegerMap();
+        final int[][] interruptedResult = new int[1][];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                Thread.currentThread().interrupt();
+                interruptedResult[0] = index.getInts("x");
+            }
+        };
+        reader.start();
+        reader.join();
+        assertArrayEquals(new int[] { 1, 0, 2, 5 }, interruptedResult[0]);
+        assertArrayEquals(new int[] { 1, 0, 2, 5 }, index.getInts("x"));
+        assertTrue(index.containsKey("x"));
+        builder.close();
+    }
+}
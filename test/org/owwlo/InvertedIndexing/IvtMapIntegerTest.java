@@ -0,0 +1,182 @@
+package org.owwlo.InvertedIndexing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+public class IvtMapIntegerTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("ivtMap");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    @Test
+    public void primitivePutsRoundTrip() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        IvtMapInteger map = builder.createDistributedIvtiIntegerMap();
+        map.put("array", new int[] { 1, 0, 1, 4, 7, 2 });
+        map.put("slice", new int[] { -1, 3, 5, 8, 9, -1 }, 1, 4);
+        map.put("heap", IntBuffer.wrap(new int[] { 0, 0, 2, 6, 0 }, 2, 2));
+        // A read only buffer exposes no array.
+        map.put("readOnly", IntBuffer.wrap(new int[] { 4, 1, 5, 2 }).asReadOnlyBuffer());
+        map.put("boxed", Arrays.asList(6, 3));
+        map.close();
+        builder.close();
+
+        InvertedIndexBuilder reader = InvertedIndexBuilder.getBuilder(dir);
+        IvtMapInteger index = reader.getUnifiedDistributedIvtiIntegerMap();
+        assertArrayEquals(new int[] { 1, 0, 1, 4, 7, 2 }, index.getInts("array"));
+        assertArrayEquals(new int[] { 3, 5, 8, 9 }, index.getInts("slice"));
+        assertArrayEquals(new int[] { 2, 6 }, index.getInts("heap"));
+        assertArrayEquals(new int[] { 4, 1, 5, 2 }, index.getInts("readOnly"));
+        assertEquals(Arrays.asList(6, 3), index.get("boxed"));
+        assertArrayEquals(new int[0], index.getInts("missing"));
+        assertFalse(index.containsKey("missing"));
+        assertTrue(index.containsKey("slice"));
+        assertEquals(5, index.size());
+        reader.close();
+    }
+
+    @Test
+    public void reusedBufferIsCleared() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        IvtMapInteger map = builder.createDistributedIvtiIntegerMap();
+        map.put("a", new int[] { 1, 0, 2, 0, 3, 0 });
+        map.put("b", new int[] { 9, 1 });
+        map.close();
+        builder.commit();
+
+        IvtMapInteger index = builder.getUnifiedDistributedIvtiIntegerMap();
+        PostingBuffer buffer = new PostingBuffer(1);
+        assertSame(buffer, index.get("a", buffer));
+        assertArrayEquals(new int[] { 1, 0, 2, 0, 3, 0 }, buffer.toArray());
+        index.get("b", buffer);
+        assertArrayEquals(new int[] { 9, 1 }, buffer.toArray());
+        index.get("missing", buffer);
+        assertTrue(buffer.isEmpty());
+        builder.close();
+    }
+
+    @Test
+    public void listsOfSeveralBatchesAreConcatenated() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        for (int batch = 0; batch < 3; batch++) {
+            IvtMapInteger map = builder.createDistributedIvtiIntegerMap();
+            Map<String, int[]> lists = new LinkedHashMap<String, int[]>();
+            lists.put("all", new int[] { batch, 0 });
+            lists.put("batch" + batch, new int[] { batch, 1 });
+            map.putAllInts(lists);
+            map.close();
+        }
+        builder.close();
+
+        InvertedIndexBuilder reader = InvertedIndexBuilder.getBuilder(dir);
+        IvtMapInteger index = reader.getUnifiedDistributedIvtiIntegerMap();
+        assertArrayEquals(new int[] { 0, 0, 1, 0, 2, 0 }, index.getInts("all"));
+        assertArrayEquals(new int[] { 1, 1 }, index.getInts("batch1"));
+        Map<String, int[]> all = index.getAll(Arrays.asList("batch2", "all", "missing"));
+        assertEquals(Arrays.asList("batch2", "all", "missing"),
+                Arrays.asList(all.keySet().toArray()));
+        assertArrayEquals(new int[] { 2, 1 }, all.get("batch2"));
+        assertArrayEquals(new int[] { 0, 0, 1, 0, 2, 0 }, all.get("all"));
+        assertArrayEquals(new int[0], all.get("missing"));
+        reader.close();
+    }
+
+    @Test
+    public void mapsWrittenOnSeveralThreadsAreCommitted() throws InterruptedException {
+        final InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        final int threadCount = 8;
+        final int batchesPerThread = 5;
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int batch = 0; batch < batchesPerThread; batch++) {
+                            IvtMapInteger map = builder.createDistributedIvtiIntegerMap();
+                            for (int i = 0; i < 100; i++) {
+                                map.put("thread" + thread + "_" + i,
+                                        new int[] { batch, i });
+                                map.put("shared" + i, new int[] { thread, batch });
+                            }
+                            map.close();
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Arrays.asList(), failures);
+        builder.close();
+
+        InvertedIndexBuilder reader = InvertedIndexBuilder.getBuilder(dir);
+        IvtMapInteger index = reader.getUnifiedDistributedIvtiIntegerMap();
+        assertEquals(threadCount * batchesPerThread, reader.getTotalIvtiMapCount());
+        for (int t = 0; t < threadCount; t++) {
+            for (int i = 0; i < 100; i++) {
+                int[] list = index.getInts("thread" + t + "_" + i);
+                assertEquals(2 * batchesPerThread, list.length);
+                for (int batch = 0; batch < batchesPerThread; batch++) {
+                    // Batches of one thread keep their order.
+                    assertEquals(batch, list[2 * batch]);
+                    assertEquals(i, list[2 * batch + 1]);
+                }
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            int[] list = index.getInts("shared" + i);
+            assertEquals(2 * threadCount * batchesPerThread, list.length);
+            int[] batches = new int[threadCount];
+            for (int j = 0; j < list.length; j += 2) {
+                assertEquals(batches[list[j]]++, list[j + 1]);
+            }
+        }
+        reader.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void putAfterCloseFails() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        IvtMapInteger map = builder.createDistributedIvtiIntegerMap();
+        map.close();
+        try {
+            map.put("a", new int[] { 1, 0 });
+        } finally {
+            builder.close();
+        }
+    }
+}
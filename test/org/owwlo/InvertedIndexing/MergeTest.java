@@ -0,0 +1,260 @@
+package org.owwlo.InvertedIndexing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+public class MergeTest {
+    private File dir;
+    private File before;
+    private File after;
+    private Map<String, PostingBuffer> expected = new TreeMap<String, PostingBuffer>();
+    private int nextDoc = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("merge");
+        before = TestFiles.createTempDir("mergeBefore");
+        after = TestFiles.createTempDir("mergeAfter");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+        TestFiles.delete(before);
+        TestFiles.delete(after);
+    }
+
+    @Test
+    public void lookupsAfterMergeAndReopen() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        addCommits(builder, 4, PostingCodec.deltaVByte(2));
+        builder.forceMerge(2);
+        assertEquals(1, builder.getSegmentCount());
+        assertEquals(2, builder.getTotalIvtiMapCount());
+        check(builder);
+        addCommits(builder, 2, PostingCodec.blockPacked(2));
+        builder.merge();
+        check(builder);
+        builder.close();
+
+        InvertedIndexBuilder reader = InvertedIndexBuilder.getBuilder(dir, true);
+        assertEquals(1, reader.getSegmentCount());
+        assertEquals(1, reader.getTotalIvtiMapCount());
+        check(reader);
+        reader.close();
+    }
+
+    @Test
+    public void mergeChangesCodec() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        addCommits(builder, 3, PostingCodec.RAW);
+        builder.forceMerge(1, PostingCodec.blockPacked(2));
+        check(builder);
+        builder.close();
+    }
+
+    @Test
+    public void filesOfReplacedSegmentsAreDeleted() throws IOException {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        addCommits(builder, 3, PostingCodec.deltaVByte(2));
+        builder.close();
+        copyFiles(dir, before);
+        builder = InvertedIndexBuilder.getBuilder(dir);
+        builder.merge();
+        builder.close();
+        copyFiles(dir, after);
+
+        // Interrupted after the manifest switch: the old files are left.
+        copyFiles(before, dir, false);
+        InvertedIndexBuilder reader = InvertedIndexBuilder.getBuilder(dir);
+        check(reader);
+        reader.close();
+        assertEquals(new TreeSet<String>(Arrays.asList(after.list())), new TreeSet<String>(
+                Arrays.asList(dir.list())));
+    }
+
+    @Test
+    public void interruptedMergeLeavesTheOldIndex() throws IOException {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        addCommits(builder, 3, PostingCodec.deltaVByte(2));
+        builder.close();
+        copyFiles(dir, before);
+        builder = InvertedIndexBuilder.getBuilder(dir);
+        builder.merge();
+        builder.close();
+
+        // Interrupted before the manifest switch: the merged files are left.
+        copyFiles(dir, after);
+        TestFiles.delete(dir);
+        dir.mkdir();
+        copyFiles(before, dir);
+        copyFiles(after, dir, false);
+        builder = InvertedIndexBuilder.getBuilder(dir);
+        assertEquals(3, builder.getSegmentCount());
+        check(builder);
+        addCommits(builder, 1, PostingCodec.deltaVByte(2));
+        builder.merge();
+        builder.close();
+
+        InvertedIndexBuilder reader = InvertedIndexBuilder.getBuilder(dir);
+        check(reader);
+        reader.close();
+    }
+
+    @Test
+    public void cursorsAndTokenIteratorsOutliveMergeAndClose() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        addCommits(builder, 4, PostingCodec.deltaVByte(2));
+        IvtMapInteger index = builder.getUnifiedDistributedIvtiIntegerMap();
+        PostingsCursor cursor = index.cursor("t1");
+        int[] firstDoc = { cursor.nextDoc() };
+        Iterator<String> tokens = index.keySet().iterator();
+        String firstToken = tokens.next();
+        PostingsCursor unread = index.cursor("t2");
+        PostingsCursor abandoned = index.cursor("t4");
+        abandoned.nextDoc();
+
+        builder.forceMerge(1);
+        assertArrayEquals(docs("t1"), concat(firstDoc, readDocs(cursor)));
+        abandoned.close();
+        assertEquals(PostingsCursor.NO_MORE_DOCS, abandoned.nextDoc());
+        builder.close();
+
+        List<String> read = new ArrayList<String>();
+        read.add(firstToken);
+        while (tokens.hasNext()) {
+            read.add(tokens.next());
+        }
+        assertEquals(new ArrayList<String>(expected.keySet()), read);
+        assertArrayEquals(docs("t2"), readDocs(unread));
+    }
+
+    /**
+     * @return Distinct documents of the expected list of a token.
+     */
+    private int[] docs(String token) {
+        int[] list = expected.get(token).toArray();
+        PostingBuffer docs = new PostingBuffer();
+        for (int i = 0; i < list.length; i += 2) {
+            if (docs.isEmpty() || docs.get(docs.size() - 1) != list[i]) {
+                docs.add(list[i]);
+            }
+        }
+        return docs.toArray();
+    }
+
+    private static int[] readDocs(PostingsCursor cursor) {
+        PostingBuffer docs = new PostingBuffer();
+        for (int doc = cursor.nextDoc(); doc != PostingsCursor.NO_MORE_DOCS; doc = cursor
+                .nextDoc()) {
+            docs.add(doc);
+        }
+        return docs.toArray();
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        int[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void mergeWithOpenMapFails() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        addCommits(builder, 2, PostingCodec.deltaVByte(2));
+        IvtMapInteger map = builder.createDistributedIvtiIntegerMap();
+        try {
+            builder.merge();
+        } finally {
+            map.close();
+            builder.close();
+        }
+    }
+
+    /**
+     * Commit batches of two maps each. Every token is in some of the
+     * batches only.
+     */
+    private void addCommits(InvertedIndexBuilder builder, int commits, PostingCodec codec) {
+        for (int c = 0; c < commits; c++) {
+            for (int m = 0; m < 2; m++) {
+                IvtMapInteger map = builder.createDistributedIvtiIntegerMap(codec);
+                int doc = nextDoc++;
+                for (int t = 0; t < 40; t++) {
+                    if ((t + doc) % 3 == 0) {
+                        continue;
+                    }
+                    int[] postings = { doc, t, doc, t + 7 };
+                    map.put("t" + t, postings);
+                    PostingBuffer list = expected.get("t" + t);
+                    if (list == null) {
+                        list = new PostingBuffer();
+                        expected.put("t" + t, list);
+                    }
+                    list.add(postings, 0, postings.length);
+                }
+                map.close();
+            }
+            builder.commit();
+        }
+    }
+
+    private void check(InvertedIndexBuilder builder) {
+        IvtMapInteger index = builder.getUnifiedDistributedIvtiIntegerMap();
+        assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(index
+                .keySet()));
+        for (Map.Entry<String, PostingBuffer> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue().toArray(), index.getInts(entry
+                    .getKey()));
+        }
+        List<String> tokens = new ArrayList<String>(expected.keySet());
+        Map<String, int[]> all = index.getAll(tokens);
+        for (String token : tokens) {
+            assertArrayEquals(token, expected.get(token).toArray(), all.get(token));
+        }
+    }
+
+    private static void copyFiles(File from, File to) throws IOException {
+        copyFiles(from, to, true);
+    }
+
+    /**
+     * @param overwrite Whether to replace files which exist in both.
+     */
+    private static void copyFiles(File from, File to, boolean overwrite) throws IOException {
+        for (File file : from.listFiles()) {
+            File target = new File(to, file.getName());
+            if (!overwrite && target.exists()) {
+                continue;
+            }
+            InputStream in = new FileInputStream(file);
+            OutputStream out = new FileOutputStream(target);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            in.close();
+            out.close();
+        }
+    }
+}
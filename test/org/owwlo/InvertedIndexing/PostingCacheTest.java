@@ -0,0 +1,154 @@
+package org.owwlo.InvertedIndexing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+public class PostingCacheTest {
+    /**
+     * Bytes of each of the 16 stripes.
+     */
+    private static final int STRIPE_BYTES = 1000;
+
+    /**
+     * Estimated heap of a cached list of 50 values under a two character
+     * token.
+     */
+    private static final int ENTRY_BYTES = 120 + 2 * 2 + 4 * 50;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("postingCache");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    /**
+     * @return Two character tokens which share a stripe.
+     */
+    private static List<String> tokensOfOneStripe(int count) {
+        List<String> tokens = new ArrayList<String>();
+        int stripe = -1;
+        for (char c = 'a'; tokens.size() < count; c++) {
+            String token = "k" + c;
+            int h = token.hashCode();
+            h ^= (h >>> 16);
+            if (stripe < 0) {
+                stripe = h & 15;
+            }
+            if ((h & 15) == stripe) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    private static int[] values(int first, int length) {
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = first + i;
+        }
+        return values;
+    }
+
+    @Test
+    public void leastRecentlyUsedListsAreEvicted() {
+        PostingCache cache = new PostingCache(16 * STRIPE_BYTES);
+        List<String> tokens = tokensOfOneStripe(4);
+        for (int i = 0; i < 3; i++) {
+            cache.put(tokens.get(i), 1, values(i, 50), 0, 50);
+        }
+        assertEquals(3 * ENTRY_BYTES, cache.getSizeInBytes());
+        assertEquals(0, cache.getEvictionCount());
+
+        PostingBuffer buffer = new PostingBuffer();
+        assertTrue(cache.get(tokens.get(0), 1, buffer));
+        assertArrayEquals(values(0, 50), buffer.toArray());
+        // The fourth list only fits once the least recently used is gone.
+        cache.put(tokens.get(3), 1, values(3, 60), 5, 50);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3 * ENTRY_BYTES, cache.getSizeInBytes());
+        assertTrue(cache.getSizeInBytes() <= STRIPE_BYTES);
+
+        assertFalse(cache.get(tokens.get(1), 1, new PostingBuffer()));
+        buffer = new PostingBuffer();
+        assertTrue(cache.get(tokens.get(3), 1, buffer));
+        assertArrayEquals(values(8, 50), buffer.toArray());
+        assertTrue(cache.get(tokens.get(2), 1, new PostingBuffer()));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.clear();
+        assertEquals(0, cache.getSizeInBytes());
+        assertEquals(3, cache.getHitCount());
+    }
+
+    @Test
+    public void listsLargerThanAStripeAreNotCached() {
+        PostingCache cache = new PostingCache(16 * STRIPE_BYTES);
+        cache.put("big", 1, values(0, STRIPE_BYTES / 4), 0, STRIPE_BYTES / 4);
+        assertEquals(0, cache.getSizeInBytes());
+        assertFalse(cache.get("big", 1, new PostingBuffer()));
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void listsAreOnlyServedToTheirGeneration() {
+        PostingCache cache = new PostingCache(16 * STRIPE_BYTES);
+        cache.put("a", 2, values(0, 10), 0, 10);
+        // A lookup of an older index neither sees nor replaces the entry.
+        assertFalse(cache.get("a", 1, new PostingBuffer()));
+        cache.put("a", 1, values(100, 10), 0, 10);
+        PostingBuffer buffer = new PostingBuffer();
+        assertTrue(cache.get("a", 2, buffer));
+        assertArrayEquals(values(0, 10), buffer.toArray());
+
+        // A lookup of a newer index drops the entry.
+        assertFalse(cache.get("a", 3, new PostingBuffer()));
+        assertEquals(0, cache.getSizeInBytes());
+    }
+
+    @Test
+    public void listsCachedBeforeACommitAreNotServedAfterIt() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        builder.setPostingCacheSize(1 << 20);
+        IvtMapInteger map = builder.createDistributedIvtiIntegerMap();
+        map.put("a", new int[] { 1, 0 });
+        map.close();
+        builder.commit();
+
+        IvtMapInteger index = builder.getUnifiedDistributedIvtiIntegerMap();
+        PostingCache cache = builder.getPostingCache();
+        assertArrayEquals(new int[] { 1, 0 }, index.getInts("a"));
+        assertArrayEquals(new int[] { 1, 0 }, index.getInts("a"));
+        assertEquals(1, cache.getHitCount());
+
+        map = builder.createDistributedIvtiIntegerMap();
+        map.put("a", new int[] { 2, 0 });
+        map.close();
+        builder.commit();
+        // A lookup which read an older index caches its list after the
+        // commit.
+        cache.put("a", 0, new int[] { 1, 0 }, 0, 2);
+        assertArrayEquals(new int[] { 1, 0, 2, 0 }, index.getInts("a"));
+        assertArrayEquals(new int[] { 1, 0, 2, 0 }, index.getInts("a"));
+        assertEquals(2, cache.getHitCount());
+        builder.close();
+    }
+}
@@ -0,0 +1,154 @@
+package org.owwlo.InvertedIndexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SecondIndexSorterTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("secondIndexSorter");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    /**
+     * A record as added, in the order expected back.
+     */
+    private static class Record {
+        final byte[] term;
+        final int mapId;
+        final long offset;
+        final int length;
+
+        Record(byte[] term, int mapId, long offset, int length) {
+            this.term = term;
+            this.mapId = mapId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Add random records with few distinct terms, so many share a term. The
+     * map id numbers the records of a part in the order they are added.
+     */
+    private static List<Record> addRecords(SecondIndexSorter sorter, Random random, int part,
+            int count) throws IOException {
+        List<Record> added = new ArrayList<Record>();
+        for (int i = 0; i < count; i++) {
+            byte[] term = ("term" + random.nextInt(100)).getBytes(TermDictionary.UTF_8);
+            Record record = new Record(term, part * 100000 + i, random.nextLong() >>> 1,
+                    random.nextInt(1000));
+            // Trailing garbage past the term length must be ignored.
+            byte[] padded = Arrays.copyOf(term, term.length + 3);
+            sorter.add(padded, term.length, record.mapId, record.offset, record.length);
+            added.add(record);
+        }
+        return added;
+    }
+
+    /**
+     * Sort records by term, keeping the order of equal terms.
+     */
+    private static void stableSort(List<Record> records) {
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+                return TermDictionary.compare(a.term, a.term.length, b.term, b.term.length);
+            }
+        });
+    }
+
+    private static void check(List<Record> expected, SecondIndexSorter.Records records)
+            throws IOException {
+        for (Record record : expected) {
+            assertTrue(records.next());
+            assertEquals(new String(record.term, TermDictionary.UTF_8),
+                    new String(records.term, 0, records.termLength, TermDictionary.UTF_8));
+            assertEquals(record.mapId, records.mapId);
+            assertEquals(record.offset, records.offset);
+            assertEquals(record.length, records.length);
+        }
+        assertFalse(records.next());
+    }
+
+    private int runFileCount() {
+        int count = 0;
+        for (String name : dir.list()) {
+            if (name.startsWith("seIdxRun")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void sortsInMemory() throws IOException {
+        SecondIndexSorter sorter = new SecondIndexSorter(dir, 1 << 20);
+        List<Record> records = addRecords(sorter, new Random(1), 0, 500);
+        stableSort(records);
+        check(records, sorter.sort());
+        assertEquals(0, runFileCount());
+        sorter.close();
+    }
+
+    @Test
+    public void spillsToRunsWithinBudget() throws IOException {
+        SecondIndexSorter sorter = new SecondIndexSorter(dir, 512);
+        List<Record> records = addRecords(sorter, new Random(2), 0, 2000);
+        assertTrue(runFileCount() > 1);
+        stableSort(records);
+        check(records, sorter.sort());
+        sorter.close();
+        assertEquals(0, runFileCount());
+    }
+
+    @Test
+    public void emptySorter() throws IOException {
+        SecondIndexSorter sorter = new SecondIndexSorter(dir, 512);
+        assertFalse(sorter.sort().next());
+        sorter.close();
+    }
+
+    @Test
+    public void mergeOrdersByTermThenPart() throws IOException {
+        Random random = new Random(3);
+        SecondIndexSorter first = new SecondIndexSorter(dir, 512, 1);
+        SecondIndexSorter second = new SecondIndexSorter(dir, 1 << 20, 2);
+        SecondIndexSorter third = new SecondIndexSorter(dir, 512, 3);
+        List<Record> records = new ArrayList<Record>();
+        records.addAll(addRecords(first, random, 0, 1000));
+        records.addAll(addRecords(second, random, 1, 300));
+        records.addAll(addRecords(third, random, 2, 700));
+        stableSort(records);
+
+        List<SecondIndexSorter.Records> parts = new ArrayList<SecondIndexSorter.Records>();
+        parts.add(first.sort());
+        parts.add(second.sort());
+        parts.add(third.sort());
+        check(records, SecondIndexSorter.merge(parts));
+        first.close();
+        second.close();
+        third.close();
+        assertEquals(0, runFileCount());
+    }
+}
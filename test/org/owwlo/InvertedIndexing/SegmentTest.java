@@ -0,0 +1,181 @@
+package org.owwlo.InvertedIndexing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+
+public class SegmentTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("segment");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    private static void addBatch(InvertedIndexBuilder builder, int batch) {
+        IvtMapInteger map = builder.createDistributedIvtiIntegerMap();
+        map.put("all", new int[] { batch, 0 });
+        map.put("batch" + batch, new int[] { batch, 1 });
+        map.close();
+    }
+
+    @Test
+    public void manifestRoundTrip() throws IOException {
+        File file = new File(dir, "segments");
+        List<Segment> written = Arrays.asList(new Segment(3, 0, 4), new Segment(7, 4, 1),
+                new Segment(8, 5, 2));
+        Segment.writeManifest(file, written, 9);
+        // Replacing an existing manifest leaves no temporary file.
+        Segment.writeManifest(file, written, 9);
+        assertEquals(Arrays.asList("segments"), Arrays.asList(dir.list()));
+
+        List<Segment> read = new ArrayList<Segment>();
+        assertEquals(9, Segment.readManifest(file, read));
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals(written.get(i).id, read.get(i).id);
+            assertEquals(written.get(i).firstMap, read.get(i).firstMap);
+            assertEquals(written.get(i).mapCount, read.get(i).mapCount);
+        }
+    }
+
+    @Test
+    public void foreignManifestIsRejected() throws IOException {
+        File file = new File(dir, "segments");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 1, 2, 3, 4, 0, 0, 0, 0, 0, 0, 0, 0 });
+        out.close();
+        try {
+            Segment.readManifest(file, new ArrayList<Segment>());
+            fail();
+        } catch (Error e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void indexOfAnOlderFormatIsRejected() throws IOException {
+        // Releases before segments wrote an "idx" file and no manifest.
+        new FileOutputStream(new File(dir, "idx")).close();
+        try {
+            InvertedIndexBuilder.getBuilder(dir);
+            fail();
+        } catch (Error e) {
+            // Expected.
+        }
+        assertEquals(Arrays.asList("idx"), Arrays.asList(dir.list()));
+    }
+
+    @Test
+    public void commitsAppendSegments() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        for (int batch = 0; batch < 3; batch++) {
+            addBatch(builder, batch);
+            builder.commit();
+            assertEquals(batch + 1, builder.getSegmentCount());
+        }
+        // Nothing new to commit.
+        builder.commit();
+        assertEquals(3, builder.getSegmentCount());
+        builder.close();
+
+        InvertedIndexBuilder reopened = InvertedIndexBuilder.getBuilder(dir);
+        assertEquals(3, reopened.getSegmentCount());
+        addBatch(reopened, 3);
+        reopened.close();
+
+        InvertedIndexBuilder reader = InvertedIndexBuilder.getBuilder(dir);
+        assertEquals(4, reader.getSegmentCount());
+        IvtMapInteger index = reader.getUnifiedDistributedIvtiIntegerMap();
+        assertArrayEquals(new int[] { 0, 0, 1, 0, 2, 0, 3, 0 }, index.getInts("all"));
+        for (int batch = 0; batch < 4; batch++) {
+            assertArrayEquals(new int[] { batch, 1 }, index.getInts("batch" + batch));
+        }
+        assertEquals(5, index.size());
+        reader.close();
+    }
+
+    @Test
+    public void openMapIsCommittedOnceClosed() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        addBatch(builder, 0);
+        IvtMapInteger open = builder.createDistributedIvtiIntegerMap();
+        open.put("open", new int[] { 1, 0 });
+        addBatch(builder, 2);
+        builder.commit();
+
+        // The batch after the open map waits for it.
+        IvtMapInteger index = builder.getUnifiedDistributedIvtiIntegerMap();
+        assertEquals(1, builder.getSegmentCount());
+        assertArrayEquals(new int[] { 0, 0 }, index.getInts("all"));
+        assertFalse(index.containsKey("open"));
+        assertFalse(index.containsKey("batch2"));
+
+        open.close();
+        builder.commit();
+        assertEquals(2, builder.getSegmentCount());
+        assertArrayEquals(new int[] { 0, 0, 2, 0 }, index.getInts("all"));
+        assertArrayEquals(new int[] { 1, 0 }, index.getInts("open"));
+        assertTrue(index.containsKey("batch2"));
+        builder.close();
+    }
+
+    @Test
+    public void closeCommitsOpenMaps() {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        IvtMapInteger map = builder.createDistributedIvtiIntegerMap();
+        map.put("a", new int[] { 5, 0 });
+        builder.close();
+
+        InvertedIndexBuilder reader = InvertedIndexBuilder.getBuilder(dir);
+        assertArrayEquals(new int[] { 5, 0 },
+                reader.getUnifiedDistributedIvtiIntegerMap().getInts("a"));
+        reader.close();
+    }
+
+    @Test
+    public void documentLengthsOfAnInterruptedCommitAreIgnored() throws IOException {
+        InvertedIndexBuilder builder = InvertedIndexBuilder.getBuilder(dir);
+        builder.addDocument(1, new String[] { "a", "b" });
+        builder.close();
+
+        // Lengths written under the next segment id by a commit which never
+        // reached the manifest.
+        int nextId = Segment.readManifest(new File(dir, "segments"), new ArrayList<Segment>());
+        DocumentLengths stale = new DocumentLengths();
+        stale.set(99, 7);
+        stale.write(new File(dir, "docLen" + nextId));
+
+        InvertedIndexBuilder reopened = InvertedIndexBuilder.getBuilder(dir);
+        assertEquals(-1, reopened.getDocumentLength(99));
+        // The next segment takes that id without lengths of its own.
+        addBatch(reopened, 0);
+        reopened.close();
+
+        InvertedIndexBuilder reader = InvertedIndexBuilder.getBuilder(dir);
+        assertEquals(2, reader.getDocumentLength(1));
+        assertEquals(-1, reader.getDocumentLength(99));
+        assertEquals(1, reader.getDocumentCount());
+        assertFalse(new File(dir, "docLen" + nextId).exists());
+        reader.close();
+    }
+}
@@ -0,0 +1,166 @@
+package org.owwlo.InvertedIndexing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TermDictionaryTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("termDictionary");
+    }
+
+    @After
+    public void tearDown() {
+        TestFiles.delete(dir);
+    }
+
+    /**
+     * Terms with shared prefixes, non-ASCII characters and a supplementary
+     * character, sorted by their UTF-8 bytes and spanning several blocks.
+     */
+    private static List<String> terms() {
+        List<String> terms = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            terms.add("term" + i);
+            terms.add("prefix" + i + "suffix");
+        }
+        terms.add("a");
+        terms.add("ab");
+        terms.add("abc");
+        terms.add("caf\u00e9");
+        terms.add("\u4e2d\u6587");
+        terms.add("\ud83d\ude00");
+        Collections.sort(terms, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                byte[] x = a.getBytes(TermDictionary.UTF_8);
+                byte[] y = b.getBytes(TermDictionary.UTF_8);
+                return TermDictionary.compare(x, x.length, y, y.length);
+            }
+        });
+        return terms;
+    }
+
+    private TermDictionary write(List<String> terms) throws IOException {
+        File file = new File(dir, "dict");
+        TermDictionaryWriter writer = new TermDictionaryWriter(file);
+        for (int i = 0; i < terms.size(); i++) {
+            writer.add(terms.get(i), i * 1000L);
+        }
+        writer.close();
+        return new TermDictionary(new FileIndexInput(file));
+    }
+
+    @Test
+    public void lookupsFindEveryTerm() throws IOException {
+        List<String> terms = terms();
+        assertTrue(terms.size() > 3 * TermDictionary.BLOCK_SIZE);
+        TermDictionary dictionary = write(terms);
+        assertEquals(terms.size(), dictionary.size());
+        for (int i = 0; i < terms.size(); i++) {
+            assertEquals(terms.get(i), i * 1000L, dictionary.get(terms.get(i)));
+            assertEquals(terms.get(i), i, dictionary.getOrdinal(terms.get(i)));
+        }
+        dictionary.close();
+    }
+
+    @Test
+    public void missingTermsAreNotFound() throws IOException {
+        TermDictionary dictionary = write(terms());
+        String[] missing = { "", "0", "aa", "abcd", "prefix1", "term", "term100", "zzz",
+                "caf", "\u4e2d", "\uffff" };
+        for (String term : missing) {
+            assertEquals(term, -1, dictionary.get(term));
+            assertEquals(term, -1, dictionary.getOrdinal(term));
+        }
+        dictionary.close();
+    }
+
+    @Test
+    public void cursorWalksAndSeeks() throws IOException {
+        List<String> terms = terms();
+        TermDictionary dictionary = write(terms);
+        TermDictionary.Cursor cursor = dictionary.cursor();
+        for (int i = 0; i < terms.size(); i++) {
+            assertTrue(cursor.next());
+            assertEquals(terms.get(i), new String(cursor.termBytes(), 0, cursor.termLength(),
+                    TermDictionary.UTF_8));
+            assertEquals(i * 1000L, cursor.value());
+            assertEquals(i, cursor.ordinal());
+        }
+        assertFalse(cursor.next());
+
+        for (int i = terms.size() - 1; i >= 0; i -= 7) {
+            assertTrue(cursor.seek(terms.get(i).getBytes(TermDictionary.UTF_8)));
+            assertEquals(i, cursor.ordinal());
+            assertEquals(i * 1000L, cursor.value());
+        }
+        assertFalse(cursor.seek("abcd".getBytes(TermDictionary.UTF_8)));
+        dictionary.close();
+    }
+
+    @Test
+    public void mapViewMatchesTerms() throws IOException {
+        List<String> terms = terms();
+        TermDictionary dictionary = write(terms);
+        Map<String, Long> map = dictionary.asMap();
+        assertEquals(terms.size(), map.size());
+        assertTrue(map.containsKey("caf\u00e9"));
+        assertFalse(map.containsKey("cafe"));
+        assertNull(map.get("cafe"));
+        int i = 0;
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            assertEquals(terms.get(i), entry.getKey());
+            assertEquals(Long.valueOf(i * 1000L), entry.getValue());
+            i++;
+        }
+        assertEquals(terms.size(), i);
+        dictionary.close();
+    }
+
+    @Test
+    public void emptyDictionary() throws IOException {
+        TermDictionary dictionary = write(new ArrayList<String>());
+        assertEquals(0, dictionary.size());
+        assertEquals(-1, dictionary.get("a"));
+        assertFalse(dictionary.cursor().next());
+        assertTrue(dictionary.asMap().isEmpty());
+        dictionary.close();
+    }
+
+    @Test
+    public void unsortedTermsAreRejected() throws IOException {
+        TermDictionaryWriter writer = new TermDictionaryWriter(new File(dir, "dict"));
+        writer.add("b", 0);
+        try {
+            writer.add("a", 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            writer.add("b", 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        writer.close();
+    }
+}
@@ -0,0 +1,38 @@
+package org.owwlo.InvertedIndexing;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Temporary directories for tests.
+ *
+ * @author owwlo
+ */
+public class TestFiles {
+    private TestFiles() {
+    }
+
+    /**
+     * @return A new empty directory under the system temporary directory.
+     */
+    public static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir.getAbsolutePath());
+        }
+        return dir;
+    }
+
+    /**
+     * Delete a directory and everything under it.
+     */
+    public static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+        dir.delete();
+    }
+}
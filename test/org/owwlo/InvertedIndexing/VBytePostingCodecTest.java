@@ -0,0 +1,103 @@
+package org.owwlo.InvertedIndexing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class VBytePostingCodecTest {
+    /**
+     * Sorted <code>docId, position</code> pairs with up to
+     * <code>maxFreq</code> positions per document.
+     */
+    static int[] randomPairs(Random random, int docCount, int maxGap, int maxFreq) {
+        PostingBuffer buffer = new PostingBuffer();
+        int doc = 0;
+        for (int i = 0; i < docCount; i++) {
+            doc += random.nextInt(maxGap) + (i == 0 ? 0 : 1);
+            int position = 0;
+            int freq = 1 + random.nextInt(maxFreq);
+            for (int j = 0; j < freq; j++) {
+                position += random.nextInt(50) + (j == 0 ? 0 : 1);
+                buffer.add(doc);
+                buffer.add(position);
+            }
+        }
+        return buffer.toArray();
+    }
+
+    static int[] roundTrip(PostingCodec codec, int[] values) {
+        ByteArrayDataOutput out = new ByteArrayDataOutput();
+        out.writeInt(0x12345678);
+        codec.encode(values, 0, values.length, out);
+        PostingBuffer decoded = new PostingBuffer();
+        decoded.add(-1);
+        codec.decode(out.bytes(), 4, out.size() - 4, decoded);
+        assertEquals(-1, decoded.get(0));
+        int[] result = new int[decoded.size() - 1];
+        System.arraycopy(decoded.array(), 1, result, 0, result.length);
+        return result;
+    }
+
+    @Test
+    public void pairsRoundTrip() {
+        Random random = new Random(4);
+        PostingCodec codec = PostingCodec.deltaVByte(2);
+        for (int docCount : new int[] { 0, 1, 2, 100, 5000 }) {
+            int[] values = randomPairs(random, docCount, 1000, 5);
+            assertArrayEquals(values, roundTrip(codec, values));
+        }
+    }
+
+    @Test
+    public void documentIdsRoundTrip() {
+        PostingCodec codec = PostingCodec.deltaVByte(1);
+        int[] values = { 0, 0, 3, 127, 128, 16383, 16384, 1 << 21, Integer.MAX_VALUE - 1,
+                Integer.MAX_VALUE };
+        assertArrayEquals(values, roundTrip(codec, values));
+    }
+
+    @Test
+    public void smallGapsTakeOneByte() {
+        int[] values = new int[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 3;
+        }
+        ByteArrayDataOutput out = new ByteArrayDataOutput();
+        PostingCodec.deltaVByte(1).encode(values, 0, values.length, out);
+        assertTrue(out.size() < values.length + 8);
+    }
+
+    @Test
+    public void encodesASlice() {
+        int[] values = { 99, 1, 2, 5, 1, 99 };
+        ByteArrayDataOutput out = new ByteArrayDataOutput();
+        PostingCodec codec = PostingCodec.deltaVByte(2);
+        codec.encode(values, 1, 4, out);
+        PostingBuffer decoded = new PostingBuffer();
+        codec.decode(out.bytes(), 0, out.size(), decoded);
+        assertArrayEquals(new int[] { 1, 2, 5, 1 }, decoded.toArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsortedDocuments() {
+        PostingCodec.deltaVByte(2).encode(new int[] { 5, 0, 3, 0 }, 0, 4,
+                new ByteArrayDataOutput());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPartialEntries() {
+        PostingCodec.deltaVByte(2).encode(new int[] { 1, 2, 3 }, 0, 3,
+                new ByteArrayDataOutput());
+    }
+
+    @Test
+    public void codecIsFoundById() {
+        PostingCodec codec = PostingCodec.deltaVByte(2);
+        assertEquals(codec, PostingCodec.forId(codec.getId(), 2));
+        assertEquals(PostingCodec.RAW, PostingCodec.forId(PostingCodec.ID_RAW, 2));
+    }
+}
@@ -0,0 +1,273 @@
+package org.owwlo.InvertedIndexing.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+import org.owwlo.InvertedIndexing.PostingBuffer;
+import org.owwlo.InvertedIndexing.PostingCodec;
+import org.owwlo.InvertedIndexing.TermImpacts;
+import org.owwlo.InvertedIndexing.TestFiles;
+
+public class Bm25SearcherTest {
+    private static final int TOKEN_COUNT = 40;
+    private static final double K1 = Bm25Searcher.DEFAULT_K1;
+    private static final double B = Bm25Searcher.DEFAULT_B;
+
+    private File dir;
+    private InvertedIndexBuilder builder;
+    private String[][] docs;
+
+    /**
+     * Whether the length of each document is recorded.
+     */
+    private boolean[] known;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("bm25");
+    }
+
+    @After
+    public void tearDown() {
+        if (builder != null) {
+            builder.close();
+        }
+        TestFiles.delete(dir);
+    }
+
+    private static int docId(int index) {
+        return index * 2 + 1;
+    }
+
+    /**
+     * Index random documents in three segments. The documents of the middle
+     * one are written through a map, so their lengths are unknown.
+     */
+    private void index(PostingCodec codec, long seed) {
+        Random random = new Random(seed);
+        docs = new String[4000][];
+        known = new boolean[docs.length];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = new String[1 + random.nextInt(40)];
+            for (int j = 0; j < docs[i].length; j++) {
+                int token = (int) (TOKEN_COUNT * Math.pow(random.nextDouble(), 2.5));
+                docs[i][j] = "t" + token;
+            }
+        }
+        InvertedIndexBuilder writer = InvertedIndexBuilder.getBuilder(dir);
+        writer.setIndexingCodec(codec);
+        writer.setIndexingMemoryBudget(64 * 1024);
+        int third = docs.length / 3;
+        for (int i = 0; i < third; i++) {
+            writer.addDocument(docId(i), docs[i]);
+            known[i] = true;
+        }
+        writer.commit();
+        for (int start = third; start < 2 * third; start += 400) {
+            Map<String, PostingBuffer> lists = new LinkedHashMap<String, PostingBuffer>();
+            for (int i = start; i < Math.min(start + 400, 2 * third); i++) {
+                for (int j = 0; j < docs[i].length; j++) {
+                    PostingBuffer list = lists.get(docs[i][j]);
+                    if (list == null) {
+                        list = new PostingBuffer();
+                        lists.put(docs[i][j], list);
+                    }
+                    list.add(docId(i));
+                    list.add(j);
+                }
+            }
+            IvtMapInteger map = writer.createDistributedIvtiIntegerMap(codec);
+            for (Map.Entry<String, PostingBuffer> entry : lists.entrySet()) {
+                map.put(entry.getKey(), entry.getValue().toArray());
+            }
+            map.close();
+        }
+        writer.commit();
+        for (int i = 2 * third; i < docs.length; i++) {
+            writer.addDocument(docId(i), docs[i]);
+            known[i] = true;
+        }
+        writer.close();
+        builder = InvertedIndexBuilder.getBuilder(dir);
+        assertEquals(3, builder.getSegmentCount());
+    }
+
+    private void deleteImpacts(int segments) {
+        builder.close();
+        builder = null;
+        int deleted = 0;
+        String[] names = dir.list();
+        Arrays.sort(names);
+        for (String name : names) {
+            if (name.startsWith("impact") && deleted < segments) {
+                assertTrue(new File(dir, name).delete());
+                deleted++;
+            }
+        }
+        assertEquals(segments, deleted);
+        builder = InvertedIndexBuilder.getBuilder(dir);
+    }
+
+    /**
+     * @return BM25 score of every document matching any token, keyed by
+     *         document id.
+     */
+    private Map<Integer, Double> exhaustiveScores(String[] tokens) {
+        double averageLength = builder.getAverageDocumentLength();
+        int docCount = builder.getDocumentCount();
+        int[] docFreqs = new int[tokens.length];
+        for (int t = 0; t < tokens.length; t++) {
+            for (String[] doc : docs) {
+                if (BooleanQueryTest.contains(doc, tokens[t])) {
+                    docFreqs[t]++;
+                }
+            }
+            docCount = Math.max(docCount, docFreqs[t]);
+        }
+        Map<Integer, Double> scores = new LinkedHashMap<Integer, Double>();
+        for (int i = 0; i < docs.length; i++) {
+            double length = known[i] ? docs[i].length : averageLength;
+            double norm = K1 * (1 - B + B * length / averageLength);
+            double score = 0;
+            boolean matched = false;
+            for (int t = 0; t < tokens.length; t++) {
+                int freq = 0;
+                for (String token : docs[i]) {
+                    if (token.equals(tokens[t])) {
+                        freq++;
+                    }
+                }
+                if (freq > 0) {
+                    double idf = Math.log(1 + (docCount - docFreqs[t] + 0.5)
+                            / (docFreqs[t] + 0.5));
+                    score += idf * freq * (K1 + 1) / (freq + norm);
+                    matched = true;
+                }
+            }
+            if (matched) {
+                scores.put(docId(i), score);
+            }
+        }
+        return scores;
+    }
+
+    private void checkRandomSearches(long seed) {
+        Random random = new Random(seed);
+        for (int q = 0; q < 150; q++) {
+            // Repeated and missing tokens are allowed.
+            String[] tokens = new String[1 + random.nextInt(4)];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = "t" + random.nextInt(TOKEN_COUNT + 2);
+            }
+            int k = 1 + random.nextInt(30);
+            check(k, tokens);
+        }
+    }
+
+    private void check(int k, String[] tokens) {
+        String query = Arrays.toString(tokens) + " k=" + k;
+        Map<Integer, Double> scores = exhaustiveScores(tokens);
+        List<Double> sorted = new ArrayList<Double>(scores.values());
+        Collections.sort(sorted, Collections.reverseOrder());
+        ScoreDoc[] top = new Bm25Searcher(builder).search(k, tokens);
+        assertEquals(query, Math.min(k, sorted.size()), top.length);
+        Set<Integer> seen = new HashSet<Integer>();
+        for (int i = 0; i < top.length; i++) {
+            // Documents of equal scores may come in any order, so the
+            // scores are compared by rank.
+            assertEquals(query, sorted.get(i), top[i].getScore(), 1e-4);
+            Double actual = scores.get(top[i].getDocId());
+            assertTrue(query + " returned " + top[i], actual != null);
+            assertEquals(query, actual, top[i].getScore(), 1e-4);
+            assertTrue(query, seen.add(top[i].getDocId()));
+        }
+    }
+
+    @Test
+    public void topDocsOfVByteLists() {
+        index(PostingCodec.deltaVByte(2), 1);
+        checkRandomSearches(11);
+    }
+
+    @Test
+    public void topDocsOfBlockPackedLists() {
+        index(PostingCodec.blockPacked(2), 2);
+        checkRandomSearches(12);
+    }
+
+    @Test
+    public void topDocsOfRawLists() {
+        index(PostingCodec.RAW, 3);
+        checkRandomSearches(13);
+    }
+
+    @Test
+    public void topDocsWithoutImpacts() {
+        index(PostingCodec.blockPacked(2), 4);
+        deleteImpacts(3);
+        assertNull(builder.getUnifiedDistributedIvtiIntegerMap().impacts("t0"));
+        checkRandomSearches(14);
+    }
+
+    @Test
+    public void topDocsWithImpactsOfSomeSegments() {
+        index(PostingCodec.deltaVByte(2), 5);
+        deleteImpacts(1);
+        checkRandomSearches(15);
+    }
+
+    @Test
+    public void impactsOfSegmentsAreJoined() {
+        index(PostingCodec.blockPacked(2), 6);
+        IvtMapInteger index = builder.getUnifiedDistributedIvtiIntegerMap();
+        for (int t = 0; t < TOKEN_COUNT; t++) {
+            String token = "t" + t;
+            TermImpacts impacts = index.impacts(token);
+            int docFreq = 0;
+            int lastDoc = -1;
+            for (int i = 0; i < docs.length; i++) {
+                if (BooleanQueryTest.contains(docs[i], token)) {
+                    docFreq++;
+                    lastDoc = docId(i);
+                }
+            }
+            if (docFreq == 0) {
+                continue;
+            }
+            assertEquals(token, docFreq, impacts.getDocCount());
+            assertEquals(token, lastDoc, impacts.getLastDoc(impacts.getBlockCount() - 1));
+            for (int i = 0; i < docs.length; i++) {
+                if (!BooleanQueryTest.contains(docs[i], token)) {
+                    continue;
+                }
+                int block = impacts.findBlock(docId(i), 0);
+                int freq = 0;
+                for (String s : docs[i]) {
+                    freq += s.equals(token) ? 1 : 0;
+                }
+                // Bounds hold for every document of the block.
+                assertTrue(token, impacts.getMaxFreq(block) >= freq);
+                assertTrue(token, impacts.getMinLength(block) <= (known[i] ? docs[i].length
+                        : 0));
+            }
+        }
+    }
+}
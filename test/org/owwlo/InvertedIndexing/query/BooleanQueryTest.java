@@ -0,0 +1,246 @@
+package org.owwlo.InvertedIndexing.query;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+import org.owwlo.InvertedIndexing.PostingBuffer;
+import org.owwlo.InvertedIndexing.PostingCodec;
+import org.owwlo.InvertedIndexing.TestFiles;
+
+public class BooleanQueryTest {
+    /**
+     * Tokens of the random documents, the first ones far more frequent than
+     * the last ones.
+     */
+    static final String[] VOCABULARY = { "a", "b", "c", "d", "e", "f", "g", "h" };
+
+    private File dir;
+    private InvertedIndexBuilder builder;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("booleanQuery");
+    }
+
+    @After
+    public void tearDown() {
+        if (builder != null) {
+            builder.close();
+        }
+        TestFiles.delete(dir);
+    }
+
+    /**
+     * Random documents of skewed tokens. The document at index
+     * <code>i</code> has id {@link #docId(int)}. Some documents are empty.
+     */
+    static String[][] randomDocs(Random random, int count) {
+        String[][] docs = new String[count][];
+        for (int i = 0; i < count; i++) {
+            docs[i] = new String[random.nextInt(25)];
+            for (int j = 0; j < docs[i].length; j++) {
+                int token = (int) (VOCABULARY.length * Math.pow(random.nextDouble(), 3));
+                docs[i][j] = VOCABULARY[token];
+            }
+        }
+        return docs;
+    }
+
+    static int docId(int index) {
+        return index * 3 + 1;
+    }
+
+    /**
+     * Index documents through {@link InvertedIndexBuilder#addDocument}, in
+     * several batches and two commits, then reopen the index.
+     */
+    static InvertedIndexBuilder index(File dir, String[][] docs, PostingCodec codec) {
+        InvertedIndexBuilder writer = InvertedIndexBuilder.getBuilder(dir);
+        writer.setIndexingCodec(codec);
+        writer.setIndexingMemoryBudget(16 * 1024);
+        for (int i = 0; i < docs.length; i++) {
+            writer.addDocument(docId(i), docs[i]);
+            if (i == docs.length / 2) {
+                writer.commit();
+            }
+        }
+        writer.close();
+        return InvertedIndexBuilder.getBuilder(dir);
+    }
+
+    static boolean contains(String[] doc, String token) {
+        for (String t : doc) {
+            if (token.equals(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Brute force evaluation of a query on one document.
+     */
+    static abstract class Matcher {
+        abstract boolean matches(String[] doc);
+
+        int[] matching(String[][] docs) {
+            PostingBuffer ids = new PostingBuffer();
+            for (int i = 0; i < docs.length; i++) {
+                if (matches(docs[i])) {
+                    ids.add(docId(i));
+                }
+            }
+            return ids.toArray();
+        }
+    }
+
+    /**
+     * Compare a query with its brute force evaluation, both by iterating
+     * all documents and by advancing to random targets.
+     */
+    static void check(Query query, Matcher matcher, String[][] docs, IvtMapInteger index,
+            Random random) {
+        int[] expected = matcher.matching(docs);
+        assertArrayEquals(query.toString(), expected, query.execute(index));
+
+        DocIterator it = query.iterator(index);
+        int target = 0;
+        int next = 0;
+        while (true) {
+            target += random.nextInt(docId(docs.length) / 20 + 1);
+            while (next < expected.length && expected[next] < target) {
+                next++;
+            }
+            int doc = it.advance(target);
+            if (next == expected.length) {
+                assertEquals(query.toString(), DocIterator.NO_MORE_DOCS, doc);
+                break;
+            }
+            assertEquals(query.toString(), expected[next], doc);
+            assertEquals(doc, it.docId());
+            target = doc + 1;
+        }
+        it.close();
+    }
+
+    private static class Case {
+        final Query query;
+        final Matcher matcher;
+
+        Case(Query query, Matcher matcher) {
+            this.query = query;
+            this.matcher = matcher;
+        }
+    }
+
+    private static Case term(Random random) {
+        final String token = random.nextInt(10) == 0 ? "missing"
+                : VOCABULARY[random.nextInt(VOCABULARY.length)];
+        return new Case(new TermQuery(token), new Matcher() {
+            @Override
+            boolean matches(String[] doc) {
+                return contains(doc, token);
+            }
+        });
+    }
+
+    /**
+     * A random tree of AND, OR and NOT over terms.
+     */
+    private static Case randomCase(Random random, int depth) {
+        if (depth == 0 || random.nextInt(3) == 0) {
+            return term(random);
+        }
+        int count = 1 + random.nextInt(3);
+        final Case[] clauses = new Case[count];
+        Query[] queries = new Query[count];
+        for (int i = 0; i < count; i++) {
+            clauses[i] = randomCase(random, depth - 1);
+            queries[i] = clauses[i].query;
+        }
+        if (random.nextBoolean()) {
+            return new Case(new OrQuery(queries), new Matcher() {
+                @Override
+                boolean matches(String[] doc) {
+                    for (Case clause : clauses) {
+                        if (clause.matcher.matches(doc)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            });
+        }
+        // The first clause stays positive, so the AND is valid.
+        final boolean[] negated = new boolean[count];
+        for (int i = 1; i < count; i++) {
+            if (random.nextBoolean()) {
+                negated[i] = true;
+                queries[i] = new NotQuery(queries[i]);
+            }
+        }
+        return new Case(new AndQuery(queries), new Matcher() {
+            @Override
+            boolean matches(String[] doc) {
+                for (int i = 0; i < clauses.length; i++) {
+                    if (clauses[i].matcher.matches(doc) == negated[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    private void checkRandomQueries(PostingCodec codec, long seed) {
+        Random random = new Random(seed);
+        String[][] docs = randomDocs(random, 3000);
+        builder = index(dir, docs, codec);
+        IvtMapInteger index = builder.getUnifiedDistributedIvtiIntegerMap();
+        for (int i = 0; i < 300; i++) {
+            Case c = randomCase(random, 3);
+            check(c.query, c.matcher, docs, index, random);
+        }
+    }
+
+    @Test
+    public void randomQueriesOnVByteLists() {
+        checkRandomQueries(PostingCodec.deltaVByte(2), 1);
+    }
+
+    @Test
+    public void randomQueriesOnBlockPackedLists() {
+        checkRandomQueries(PostingCodec.blockPacked(2), 2);
+    }
+
+    @Test
+    public void randomQueriesOnRawLists() {
+        checkRandomQueries(PostingCodec.RAW, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void andOfOnlyNotClausesIsRejected() {
+        new AndQuery(new NotQuery(new TermQuery("a")), new NotQuery(new TermQuery("b")));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void notOnItsOwnIsRejected() {
+        builder = index(dir, new String[][] { { "a" } }, PostingCodec.deltaVByte(2));
+        new NotQuery(new TermQuery("a")).execute(builder.getUnifiedDistributedIvtiIntegerMap());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void termOfAnotherEntrySizeIsRejected() {
+        builder = index(dir, new String[][] { { "a" } }, PostingCodec.deltaVByte(2));
+        new TermQuery("a", 1).execute(builder.getUnifiedDistributedIvtiIntegerMap());
+    }
+}
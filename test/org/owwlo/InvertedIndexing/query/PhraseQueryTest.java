@@ -0,0 +1,171 @@
+package org.owwlo.InvertedIndexing.query;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+import org.owwlo.InvertedIndexing.PostingCodec;
+import org.owwlo.InvertedIndexing.TestFiles;
+
+public class PhraseQueryTest {
+    private File dir;
+    private InvertedIndexBuilder builder;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("phraseQuery");
+    }
+
+    @After
+    public void tearDown() {
+        if (builder != null) {
+            builder.close();
+        }
+        TestFiles.delete(dir);
+    }
+
+    private static String[] randomTokens(Random random, int count, boolean distinct) {
+        String[] tokens = new String[count];
+        for (int i = 0; i < count; i++) {
+            String[] vocabulary = BooleanQueryTest.VOCABULARY;
+            tokens[i] = vocabulary[random.nextInt(vocabulary.length)];
+            for (int j = 0; distinct && j < i; j++) {
+                if (tokens[j].equals(tokens[i])) {
+                    i--;
+                    break;
+                }
+            }
+        }
+        return tokens;
+    }
+
+    private static BooleanQueryTest.Matcher phrase(final String[] tokens) {
+        return new BooleanQueryTest.Matcher() {
+            @Override
+            boolean matches(String[] doc) {
+                for (int start = 0; start + tokens.length <= doc.length; start++) {
+                    int i = 0;
+                    while (i < tokens.length && tokens[i].equals(doc[start + i])) {
+                        i++;
+                    }
+                    if (i == tokens.length) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Whether all tokens occur within <code>distance + 1</code> positions.
+     * Tokens must be distinct.
+     */
+    private static BooleanQueryTest.Matcher proximity(final int distance, final String[] tokens) {
+        return new BooleanQueryTest.Matcher() {
+            @Override
+            boolean matches(String[] doc) {
+                for (int start = 0; start < doc.length; start++) {
+                    int end = Math.min(doc.length, start + distance + 1);
+                    boolean all = true;
+                    for (String token : tokens) {
+                        boolean found = false;
+                        for (int p = start; p < end && !found; p++) {
+                            found = token.equals(doc[p]);
+                        }
+                        all &= found;
+                    }
+                    if (all) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    private void checkRandomQueries(PostingCodec codec, long seed) {
+        Random random = new Random(seed);
+        String[][] docs = BooleanQueryTest.randomDocs(random, 3000);
+        builder = BooleanQueryTest.index(dir, docs, codec);
+        IvtMapInteger index = builder.getUnifiedDistributedIvtiIntegerMap();
+        for (int i = 0; i < 200; i++) {
+            // Phrases may repeat a token, such as "a a".
+            String[] tokens = randomTokens(random, 1 + random.nextInt(3), false);
+            BooleanQueryTest.check(new PhraseQuery(tokens), phrase(tokens), docs, index, random);
+
+            tokens = randomTokens(random, 1 + random.nextInt(3), true);
+            int distance = random.nextInt(6);
+            BooleanQueryTest.check(new ProximityQuery(distance, tokens),
+                    proximity(distance, tokens), docs, index, random);
+        }
+    }
+
+    @Test
+    public void randomQueriesOnVByteLists() {
+        checkRandomQueries(PostingCodec.deltaVByte(2), 4);
+    }
+
+    @Test
+    public void randomQueriesOnBlockPackedLists() {
+        checkRandomQueries(PostingCodec.blockPacked(2), 5);
+    }
+
+    @Test
+    public void phraseInsideBooleanQuery() {
+        Random random = new Random(6);
+        String[][] docs = BooleanQueryTest.randomDocs(random, 3000);
+        builder = BooleanQueryTest.index(dir, docs, PostingCodec.blockPacked(2));
+        IvtMapInteger index = builder.getUnifiedDistributedIvtiIntegerMap();
+        final BooleanQueryTest.Matcher ab = phrase(new String[] { "a", "b" });
+        final BooleanQueryTest.Matcher ca = phrase(new String[] { "c", "a" });
+        Query query = new AndQuery(new PhraseQuery("a", "b"),
+                new NotQuery(new PhraseQuery("c", "a")));
+        BooleanQueryTest.check(query, new BooleanQueryTest.Matcher() {
+            @Override
+            boolean matches(String[] doc) {
+                return ab.matches(doc) && !ca.matches(doc);
+            }
+        }, docs, index, random);
+    }
+
+    @Test
+    public void partsOfDocumentsKeepTheirPositions() {
+        InvertedIndexBuilder writer = InvertedIndexBuilder.getBuilder(dir);
+        writer.addDocument(1, new String[] { "a", "b" }, new int[] { 0, 2 }, 3);
+        writer.addDocument(2, new String[] { "a", "b" });
+        writer.addDocument(3, new String[] { "b", "a" }, new int[] { 0, 2 }, 4);
+        writer.close();
+        builder = InvertedIndexBuilder.getBuilder(dir);
+        IvtMapInteger index = builder.getUnifiedDistributedIvtiIntegerMap();
+        assertEquals(4, builder.getDocumentLength(3));
+        assertArrayEquals(new int[] { 2 }, new PhraseQuery("a", "b").execute(index));
+        assertArrayEquals(new int[] { 2 }, new ProximityQuery(1, "a", "b").execute(index));
+        assertArrayEquals(new int[] { 1, 2, 3 }, new ProximityQuery(2, "a", "b").execute(index));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void positionsMustIncrease() {
+        builder = InvertedIndexBuilder.getBuilder(dir);
+        builder.addDocument(1, new String[] { "a", "b" }, new int[] { 2, 1 }, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void listsWithoutPositionsAreRejected() {
+        InvertedIndexBuilder writer = InvertedIndexBuilder.getBuilder(dir);
+        IvtMapInteger map = writer.createDistributedIvtiIntegerMap(PostingCodec.deltaVByte(1));
+        map.put("a", new int[] { 1, 2, 3 });
+        map.close();
+        writer.close();
+        builder = InvertedIndexBuilder.getBuilder(dir);
+        new PhraseQuery("a").execute(builder.getUnifiedDistributedIvtiIntegerMap());
+    }
+}
@@ -0,0 +1,227 @@
+package org.owwlo.InvertedIndexing.shard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder;
+import org.owwlo.InvertedIndexing.InvertedIndexBuilder.IvtMapInteger;
+import org.owwlo.InvertedIndexing.PostingCodec;
+import org.owwlo.InvertedIndexing.TermImpacts;
+import org.owwlo.InvertedIndexing.TestFiles;
+
+public class ShardedIndexTest {
+    private static final int TOKEN_COUNT = 60;
+    private static final int SHARD_COUNT = 3;
+
+    private File dir;
+    private InvertedIndexBuilder plain;
+    private ShardedIndex sharded;
+    private String[][] docs;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = TestFiles.createTempDir("shardedIndex");
+    }
+
+    @After
+    public void tearDown() {
+        if (plain != null) {
+            plain.close();
+        }
+        if (sharded != null) {
+            sharded.close();
+        }
+        TestFiles.delete(dir);
+    }
+
+    private static int docId(int index) {
+        return index * 2 + 1;
+    }
+
+    /**
+     * Index the same random documents and batch in a plain and a sharded
+     * index, over two commits.
+     */
+    private void index(long seed) {
+        Random random = new Random(seed);
+        docs = new String[2000][];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = new String[random.nextInt(30)];
+            for (int j = 0; j < docs[i].length; j++) {
+                docs[i][j] = "t" + (int) (TOKEN_COUNT * Math.pow(random.nextDouble(), 2));
+            }
+        }
+        Map<String, int[]> batch = new LinkedHashMap<String, int[]>();
+        for (int i = 0; i < 20; i++) {
+            batch.put("b" + i, new int[] { docId(docs.length + i), 0 });
+        }
+
+        File plainDir = new File(dir, "plain");
+        assertTrue(plainDir.mkdir());
+        plain = InvertedIndexBuilder.getBuilder(plainDir);
+        plain.setIndexingMemoryBudget(32 * 1024);
+        sharded = ShardedIndex.open(new File(dir, "sharded"), SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            sharded.getShard(i).setIndexingMemoryBudget(16 * 1024);
+        }
+        for (int i = 0; i < docs.length; i++) {
+            plain.addDocument(docId(i), docs[i]);
+            sharded.addDocument(docId(i), docs[i]);
+            if (i == docs.length / 2) {
+                plain.commit();
+                sharded.commit();
+            }
+        }
+        IvtMapInteger map = plain.createDistributedIvtiIntegerMap(PostingCodec.deltaVByte(2));
+        map.putAllInts(batch);
+        map.close();
+        plain.commit();
+        sharded.addBatch(batch, PostingCodec.deltaVByte(2));
+        sharded.commit();
+    }
+
+    private static List<String> tokens() {
+        List<String> tokens = new ArrayList<String>();
+        for (int i = 0; i < TOKEN_COUNT + 2; i++) {
+            tokens.add("t" + i);
+        }
+        for (int i = 0; i < 21; i++) {
+            tokens.add("b" + i);
+        }
+        return tokens;
+    }
+
+    @Test
+    public void listsAreThoseOfAnUnshardedIndex() {
+        index(1);
+        IvtMapInteger expected = plain.getUnifiedDistributedIvtiIntegerMap();
+        for (String token : tokens()) {
+            assertArrayEquals(token, expected.getInts(token), sharded.getInts(token));
+        }
+    }
+
+    @Test
+    public void getAllKeepsTokenOrderAndDuplicates() {
+        index(2);
+        IvtMapInteger expected = plain.getUnifiedDistributedIvtiIntegerMap();
+        List<String> all = tokens();
+        Random random = new Random(12);
+        for (int q = 0; q < 100; q++) {
+            // Tokens of one or several shards, some repeated or missing.
+            List<String> tokens = new ArrayList<String>();
+            int count = random.nextInt(12);
+            for (int i = 0; i < count; i++) {
+                tokens.add(all.get(random.nextInt(all.size())));
+            }
+            if (count > 0 && random.nextBoolean()) {
+                tokens.add(tokens.get(0));
+            }
+            Map<String, int[]> wanted = expected.getAll(tokens);
+            Map<String, int[]> found = sharded.getAll(tokens);
+            assertEquals(tokens.toString(), new ArrayList<String>(wanted.keySet()),
+                    new ArrayList<String>(found.keySet()));
+            for (Map.Entry<String, int[]> entry : wanted.entrySet()) {
+                assertArrayEquals(entry.getKey(), entry.getValue(), found.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void impactsAreThoseOfAnUnshardedIndex() {
+        index(3);
+        IvtMapInteger expected = plain.getUnifiedDistributedIvtiIntegerMap();
+        for (String token : tokens()) {
+            TermImpacts wanted = expected.impacts(token);
+            TermImpacts found = sharded.impacts(token);
+            if (wanted == null) {
+                assertNull(token, found);
+                continue;
+            }
+            assertEquals(token, wanted.getDocCount(), found.getDocCount());
+            assertEquals(token, wanted.getBlockCount(), found.getBlockCount());
+            for (int b = 0; b < wanted.getBlockCount(); b++) {
+                assertEquals(token, wanted.getLastDoc(b), found.getLastDoc(b));
+                assertEquals(token, wanted.getMaxFreq(b), found.getMaxFreq(b));
+                assertEquals(token, wanted.getMinLength(b), found.getMinLength(b));
+            }
+        }
+    }
+
+    @Test
+    public void everyShardRecordsEveryDocumentLength() {
+        index(4);
+        for (int s = 0; s < SHARD_COUNT; s++) {
+            InvertedIndexBuilder shard = sharded.getShard(s);
+            assertEquals(plain.getDocumentCount(), shard.getDocumentCount());
+            assertEquals(plain.getAverageDocumentLength(), shard.getAverageDocumentLength(),
+                    1e-9);
+            for (int i = 0; i < docs.length; i++) {
+                assertEquals(docs[i].length, shard.getDocumentLength(docId(i)));
+            }
+        }
+    }
+
+    @Test
+    public void tokensAreOnlyStoredInTheirShard() {
+        index(5);
+        for (String token : tokens()) {
+            for (int s = 0; s < SHARD_COUNT; s++) {
+                IvtMapInteger map = sharded.getShard(s).getUnifiedDistributedIvtiIntegerMap();
+                if (s != sharded.shardOf(token)) {
+                    assertEquals(token, 0, map.getInts(token).length);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reopenedIndexKeepsItsLists() {
+        index(6);
+        IvtMapInteger expected = plain.getUnifiedDistributedIvtiIntegerMap();
+        sharded.close();
+        sharded = ShardedIndex.open(new File(dir, "sharded"), SHARD_COUNT);
+        for (String token : tokens()) {
+            assertArrayEquals(token, expected.getInts(token), sharded.getInts(token));
+        }
+    }
+
+    @Test
+    public void reopeningWithAnotherShardCountIsRejected() {
+        File shardedDir = new File(dir, "sharded");
+        sharded = ShardedIndex.open(shardedDir, SHARD_COUNT);
+        sharded.addDocument(1, new String[] { "a", "b" });
+        sharded.close();
+        sharded = null;
+        try {
+            ShardedIndex.open(shardedDir, SHARD_COUNT + 1);
+            fail();
+        } catch (Error e) {
+            // Expected.
+        }
+        // The index is left as it was.
+        sharded = ShardedIndex.open(shardedDir, SHARD_COUNT);
+        assertArrayEquals(new int[] { 1, 0 }, sharded.getInts("a"));
+        assertTrue(new File(shardedDir, "shard" + (SHARD_COUNT - 1)).isDirectory());
+        assertTrue(!new File(shardedDir, "shard" + SHARD_COUNT).exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullTokensAreRejected() {
+        sharded = ShardedIndex.open(new File(dir, "sharded"), SHARD_COUNT);
+        sharded.addDocument(1, new String[] { "a", null });
+    }
+}